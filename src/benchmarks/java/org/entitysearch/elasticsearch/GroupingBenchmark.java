@@ -0,0 +1,62 @@
+package org.entitysearch.elasticsearch;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.entitysearch.elasticsearch.ClusteringAction.ClusteringActionRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Grouping synthetic hits by <code>entityContent</code>, with the key read
+ * from a fetched field or from the source.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GroupingBenchmark {
+    @Param({"100", "10000", "100000"})
+    public int hits;
+
+    @Param({"10", "1000", "100000"})
+    public int cardinality;
+
+    @Param({"true", "false"})
+    public boolean fetchedField;
+
+    private SearchResponse response;
+    private ClusteringActionRequest request;
+    private ClusteringActionRequest topGroupsRequest;
+
+    @Setup
+    public void setup() throws IOException {
+        response = SyntheticHits.response(SyntheticHits.hits(hits, cardinality, fetchedField, 42));
+        request = new ClusteringActionRequest();
+        topGroupsRequest = new ClusteringActionRequest()
+                .setMaxGroups(10)
+                .setMaxDocsPerGroup(10);
+    }
+
+    @Benchmark
+    public EntityClusters groupAll() throws IOException {
+        return EntityGrouping.groupHits(response, request);
+    }
+
+    @Benchmark
+    public EntityClusters groupTop() throws IOException {
+        return EntityGrouping.groupHits(response, topGroupsRequest);
+    }
+}
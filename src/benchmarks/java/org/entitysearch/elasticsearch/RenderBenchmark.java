@@ -0,0 +1,66 @@
+package org.entitysearch.elasticsearch;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.entitysearch.elasticsearch.ClusteringAction.ClusteringActionRequest;
+import org.entitysearch.elasticsearch.ClusteringAction.ClusteringActionResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rendering a clustering response to JSON, SMILE and CBOR, with full hits,
+ * hit ids only or no hits.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RenderBenchmark {
+    @Param({"100", "10000"})
+    public int hits;
+
+    @Param({"10", "1000"})
+    public int cardinality;
+
+    @Param({"JSON", "SMILE", "CBOR"})
+    public XContentType contentType;
+
+    @Param({"FULL", "IDS", "NONE"})
+    public HitsMode hitsMode;
+
+    private ClusteringActionResponse response;
+
+    @Setup
+    public void setup() throws IOException {
+        SearchResponse searchResponse = SyntheticHits.response(SyntheticHits.hits(hits, cardinality, false, 42));
+        EntityClusters clusters = EntityGrouping.groupHits(searchResponse, new ClusteringActionRequest());
+        response = new ClusteringActionResponse(searchResponse, clusters, null, hitsMode);
+    }
+
+    @Benchmark
+    public BytesReference render() throws IOException {
+        XContentBuilder builder = XContentFactory.contentBuilder(contentType);
+        builder.startObject();
+        response.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        builder.endObject();
+        return builder.bytes();
+    }
+}
@@ -0,0 +1,74 @@
+package org.entitysearch.elasticsearch;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Random;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.internal.InternalSearchResponse;
+
+/**
+ * Synthetic search hits for benchmarks. Entity keys are drawn from a fixed
+ * number of distinct values with a skewed (roughly Zipfian) distribution,
+ * which resembles how entity mentions are spread over real documents.
+ */
+final class SyntheticHits {
+    private SyntheticHits() {
+    }
+
+    /**
+     * @param fetchedField If <code>true</code>, the entity key is a fetched
+     * (doc values) field; otherwise it is read from the source.
+     */
+    static SearchHit[] hits(int count, int cardinality, boolean fetchedField, long seed) throws IOException {
+        Random random = new Random(seed);
+        SearchHit[] hits = new SearchHit[count];
+        for (int i = 0; i < count; i++) {
+            String key = key(random, cardinality);
+            String id = "doc-" + i;
+
+            SearchHit hit;
+            if (fetchedField) {
+                hit = new SearchHit(i, id, new Text(EntityQueryTranslator.DOCUMENT_TYPE),
+                        Collections.singletonMap(EntityGrouping.ENTITY_FIELD,
+                                new SearchHitField(EntityGrouping.ENTITY_FIELD, Collections.singletonList(key))));
+            } else {
+                hit = new SearchHit(i, id, new Text(EntityQueryTranslator.DOCUMENT_TYPE), Collections.emptyMap());
+                hit.sourceRef(source(id, key));
+            }
+            hit.score(1f / (1 + random.nextInt(100)));
+            hits[i] = hit;
+        }
+        return hits;
+    }
+
+    static SearchResponse response(SearchHit[] hits) {
+        InternalSearchResponse internal = new InternalSearchResponse(
+                new SearchHits(hits, hits.length, 1f), null, null, null, false, null, 1);
+        return new SearchResponse(internal, null, 1, 1, 1, ShardSearchFailure.EMPTY_ARRAY);
+    }
+
+    static String key(Random random, int cardinality) {
+        // Squaring a uniform variate skews the keys towards low ordinals.
+        double u = random.nextDouble();
+        return "entity_" + (int) (u * u * cardinality);
+    }
+
+    private static BytesReference source(String id, String key) throws IOException {
+        XContentBuilder builder = XContentFactory.jsonBuilder();
+        builder.startObject();
+        builder.field("id", id);
+        builder.field(EntityQueryTranslator.TEXT_FIELD, "lorem ipsum " + EntityQueryTranslator.ENTITY_PLACEHOLDER + " dolor sit amet");
+        builder.field(EntityGrouping.ENTITY_FIELD, key);
+        builder.endObject();
+        return builder.bytes();
+    }
+}
@@ -0,0 +1,88 @@
+package org.entitysearch.elasticsearch;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.search.SearchModule;
+import org.entitysearch.elasticsearch.ClusteringAction.ClusteringActionRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing a <code>_search_with_clusters</code> body and translating its
+ * entity query into span queries, with and without the query cache.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TranslationBenchmark {
+    @Param({"2", "8", "32"})
+    public int tokens;
+
+    @Param({"1", "4"})
+    public int entities;
+
+    @Param({"false", "true"})
+    public boolean cached;
+
+    private BytesReference source;
+    private NamedXContentRegistry registry;
+    private EntityQueryCache queryCache;
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(42);
+        StringBuilder query = new StringBuilder();
+        for (int i = 0; i < tokens; i++) {
+            if (query.length() > 0) {
+                query.append(' ');
+            }
+            if (i < entities) {
+                query.append(EntityQueryTranslator.ENTITY_PREFIX).append("type").append(random.nextInt(10));
+            } else {
+                query.append("term").append(random.nextInt(1000));
+            }
+        }
+
+        XContentBuilder builder = XContentFactory.jsonBuilder();
+        builder.startObject();
+        builder.startObject("search_request");
+        builder.field("query", query.toString());
+        builder.field("type", EntityQueryTranslator.DOCUMENT_TYPE);
+        builder.field("size", 100);
+        builder.endObject();
+        builder.field("max_groups", 10);
+        builder.endObject();
+        source = builder.bytes();
+
+        registry = new NamedXContentRegistry(
+                new SearchModule(Settings.EMPTY, false, Collections.emptyList()).getNamedXContents());
+        queryCache = cached ? new EntityQueryCache(Settings.EMPTY) : null;
+    }
+
+    @Benchmark
+    public ClusteringActionRequest source() {
+        ClusteringActionRequest request = new ClusteringActionRequest();
+        request.source(source, registry, queryCache);
+        return request;
+    }
+}
@@ -0,0 +1,295 @@
+package org.entitysearch.elasticsearch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+
+/**
+ * Indexes a synthetic entity corpus into a running cluster and drives
+ * <code>_search_with_clusters</code> at fixed concurrency levels (closed
+ * loop: each client thread sends its next request as soon as the previous
+ * one completes). Throughput and latency percentiles of each level are
+ * written to a JSON file, so runs on the same machine can be compared.
+ *
+ * <p>Configured with system properties (see the <code>loadTest</code> task):
+ * <ul>
+ *   <li><code>loadtest.hosts</code> - comma-separated <code>host:port</code> HTTP addresses,</li>
+ *   <li><code>loadtest.docs</code> - number of documents to index (50000),</li>
+ *   <li><code>loadtest.vocabulary</code> - number of distinct words (20000),</li>
+ *   <li><code>loadtest.entities</code> - number of distinct entities per type (5000),</li>
+ *   <li><code>loadtest.doc_length</code> - words per document (40),</li>
+ *   <li><code>loadtest.concurrency</code> - comma-separated client thread counts (1,4,16),</li>
+ *   <li><code>loadtest.warmup</code> - warm-up seconds per level (10),</li>
+ *   <li><code>loadtest.duration</code> - measured seconds per level (30),</li>
+ *   <li><code>loadtest.size</code> - <code>size</code> of each delegate search (100),</li>
+ *   <li><code>loadtest.seed</code> - corpus and query seed (42),</li>
+ *   <li><code>loadtest.output</code> - the JSON report's path.</li>
+ * </ul>
+ */
+public final class LoadTest {
+    private static final String INDEX = "loadtest";
+    private static final String TYPE = EntityQueryTranslator.DOCUMENT_TYPE;
+    private static final int BULK_SIZE = 1000;
+
+    private final String[] hosts;
+    private final int docs;
+    private final int size;
+    private final long seed;
+    private final SyntheticCorpus corpus;
+
+    private LoadTest() {
+        this.hosts = System.getProperty("loadtest.hosts", "localhost:9200").split(",");
+        this.docs = Integer.getInteger("loadtest.docs", 50000);
+        this.size = Integer.getInteger("loadtest.size", 100);
+        this.seed = Long.getLong("loadtest.seed", 42L);
+        this.corpus = new SyntheticCorpus(seed,
+                Integer.getInteger("loadtest.vocabulary", 20000),
+                Integer.getInteger("loadtest.entities", 5000),
+                Integer.getInteger("loadtest.doc_length", 40));
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LoadTest().run();
+    }
+
+    private void run() throws Exception {
+        int[] concurrencyLevels = Arrays.stream(System.getProperty("loadtest.concurrency", "1,4,16").split(","))
+                .mapToInt(s -> Integer.parseInt(s.trim()))
+                .toArray();
+        int warmupSeconds = Integer.getInteger("loadtest.warmup", 10);
+        int durationSeconds = Integer.getInteger("loadtest.duration", 30);
+        Path output = Paths.get(System.getProperty("loadtest.output", "loadtest-result.json"));
+
+        long tsIndexStart = System.nanoTime();
+        index();
+        long indexMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - tsIndexStart);
+        List<String> queries = corpus.queries();
+        System.out.println("Indexed " + docs + " documents in " + indexMillis + " ms, "
+                + queries.size() + " distinct queries.");
+
+        List<Level> levels = new ArrayList<>();
+        for (int concurrency : concurrencyLevels) {
+            drive(concurrency, queries, TimeUnit.SECONDS.toNanos(warmupSeconds));
+            Level level = drive(concurrency, queries, TimeUnit.SECONDS.toNanos(durationSeconds));
+            System.out.println(String.format(Locale.ROOT,
+                    "concurrency=%d qps=%.1f p50=%.2fms p99=%.2fms errors=%d",
+                    concurrency, level.qps(), level.percentileMillis(0.5), level.percentileMillis(0.99), level.errors));
+            levels.add(level);
+        }
+
+        XContentBuilder report = XContentFactory.jsonBuilder().prettyPrint();
+        report.startObject();
+        report.startObject("corpus")
+                .field("docs", docs)
+                .field("queries", queries.size())
+                .field("seed", seed)
+                .field("index_time_in_millis", indexMillis)
+                .endObject();
+        report.startArray("levels");
+        for (Level level : levels) {
+            level.toXContent(report);
+        }
+        report.endArray();
+        report.endObject();
+        Files.write(output, report.string().getBytes(StandardCharsets.UTF_8));
+        System.out.println("Report written to " + output.toAbsolutePath());
+    }
+
+    private void index() throws IOException {
+        request("DELETE", "/" + INDEX, null, true);
+        request("PUT", "/" + INDEX, SyntheticCorpus.indexDefinition(TYPE).string(), false);
+
+        StringBuilder bulk = new StringBuilder();
+        for (int i = 0; i < docs; i++) {
+            bulk.append("{\"index\":{\"_index\":\"").append(INDEX)
+                .append("\",\"_type\":\"").append(TYPE)
+                .append("\",\"_id\":\"").append(i).append("\"}}\n");
+            bulk.append(corpus.nextDocument().string()).append('\n');
+            if ((i + 1) % BULK_SIZE == 0 || i + 1 == docs) {
+                request("POST", "/_bulk", bulk.toString(), false);
+                bulk.setLength(0);
+            }
+        }
+        request("POST", "/" + INDEX + "/_refresh", null, false);
+    }
+
+    /**
+     * Runs <code>concurrency</code> client threads for the given time.
+     */
+    private Level drive(int concurrency, List<String> queries, long durationNanos) throws InterruptedException {
+        final long deadline = System.nanoTime() + durationNanos;
+        final AtomicLong errors = new AtomicLong();
+        final long[][] latencies = new long[concurrency][];
+        final int[] counts = new int[concurrency];
+        final CountDownLatch done = new CountDownLatch(concurrency);
+
+        for (int t = 0; t < concurrency; t++) {
+            final int thread = t;
+            Thread client = new Thread(() -> {
+                Random random = new Random(seed + thread);
+                long[] own = new long[1024];
+                int count = 0;
+                try {
+                    while (System.nanoTime() < deadline) {
+                        String body = body(queries.get(random.nextInt(queries.size())), random.nextBoolean());
+                        long tsStart = System.nanoTime();
+                        try {
+                            request("POST", "/" + INDEX + "/" + ClusteringAction.RestClusteringAction.NAME,
+                                    body, false, hosts[(thread + count) % hosts.length]);
+                        } catch (IOException e) {
+                            errors.incrementAndGet();
+                            continue;
+                        }
+                        if (count == own.length) {
+                            own = Arrays.copyOf(own, count * 2);
+                        }
+                        own[count++] = System.nanoTime() - tsStart;
+                    }
+                } finally {
+                    latencies[thread] = own;
+                    counts[thread] = count;
+                    done.countDown();
+                }
+            }, "loadtest-client-" + t);
+            client.start();
+        }
+        done.await();
+
+        int total = 0;
+        for (int count : counts) {
+            total += count;
+        }
+        long[] all = new long[total];
+        int offset = 0;
+        for (int t = 0; t < concurrency; t++) {
+            System.arraycopy(latencies[t], 0, all, offset, counts[t]);
+            offset += counts[t];
+        }
+        Arrays.sort(all);
+        return new Level(concurrency, durationNanos, all, errors.get());
+    }
+
+    private String body(String query, boolean beginFields) {
+        try {
+            XContentBuilder builder = XContentFactory.jsonBuilder();
+            builder.startObject();
+            builder.startObject("search_request");
+            builder.field("query", query);
+            if (beginFields) {
+                builder.field("type", TYPE);
+            }
+            builder.field("size", size);
+            builder.endObject();
+            builder.endObject();
+            return builder.string();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void request(String method, String path, String body, boolean ignoreNotFound) throws IOException {
+        request(method, path, body, ignoreNotFound, hosts[0]);
+    }
+
+    static void request(String method, String path, String body, boolean ignoreNotFound, String host)
+            throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://" + host + path).openConnection();
+        connection.setRequestMethod(method);
+        if (body != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type",
+                    path.endsWith("_bulk") ? "application/x-ndjson" : "application/json");
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        // Read the response fully so that the connection can be reused.
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        if (in != null) {
+            try (InputStream stream = in) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = stream.read(buffer)) > 0) {
+                    response.write(buffer, 0, read);
+                }
+            }
+        }
+
+        if (status >= 400 && !(ignoreNotFound && status == 404)) {
+            throw new IOException(method + " " + path + " failed with " + status + ": "
+                    + new String(response.toByteArray(), StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Results of a single concurrency level.
+     */
+    static final class Level {
+        final int concurrency;
+        final long durationNanos;
+        final long[] sortedLatencies;
+        final long errors;
+
+        Level(int concurrency, long durationNanos, long[] sortedLatencies, long errors) {
+            this.concurrency = concurrency;
+            this.durationNanos = durationNanos;
+            this.sortedLatencies = sortedLatencies;
+            this.errors = errors;
+        }
+
+        double qps() {
+            return sortedLatencies.length / (durationNanos / 1e9);
+        }
+
+        double percentileMillis(double quantile) {
+            if (sortedLatencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(quantile * sortedLatencies.length) - 1;
+            return sortedLatencies[Math.max(0, index)] / 1e6;
+        }
+
+        void toXContent(XContentBuilder builder) throws IOException {
+            double sum = 0;
+            for (long latency : sortedLatencies) {
+                sum += latency;
+            }
+
+            builder.startObject();
+            builder.field("concurrency", concurrency);
+            builder.field("requests", sortedLatencies.length);
+            builder.field("errors", errors);
+            builder.field("qps", qps());
+            builder.startObject("latency_in_millis");
+            builder.field("mean", sortedLatencies.length == 0 ? 0 : sum / sortedLatencies.length / 1e6);
+            builder.field("p50", percentileMillis(0.5));
+            builder.field("p90", percentileMillis(0.9));
+            builder.field("p99", percentileMillis(0.99));
+            builder.field("p999", percentileMillis(0.999));
+            builder.field("max", percentileMillis(1.0));
+            builder.endObject();
+            builder.endObject();
+        }
+    }
+}
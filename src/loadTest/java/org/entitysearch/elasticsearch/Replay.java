@@ -0,0 +1,210 @@
+package org.entitysearch.elasticsearch;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+
+/**
+ * Replays requests captured by the clustering slow log (see
+ * <code>carrot2.slowlog.capture_file</code>) against a running cluster, so
+ * that production workloads can be reproduced and benchmarked. Captured
+ * requests are sent in file order by a fixed number of client threads
+ * (closed loop); latency percentiles are written to a JSON report in the
+ * same format as {@link LoadTest}'s levels.
+ *
+ * <p>Configured with system properties (see the <code>replay</code> task):
+ * <ul>
+ *   <li><code>replay.hosts</code> - comma-separated <code>host:port</code> HTTP addresses,</li>
+ *   <li><code>replay.file</code> - the captured NDJSON file,</li>
+ *   <li><code>replay.index</code> - indices to run all requests against (the captured ones),</li>
+ *   <li><code>replay.concurrency</code> - client thread count (1),</li>
+ *   <li><code>replay.repeat</code> - number of passes over the file (1),</li>
+ *   <li><code>replay.request_cache</code> - whether the clustering result cache is used (false),</li>
+ *   <li><code>replay.output</code> - the JSON report's path.</li>
+ * </ul>
+ *
+ * <p>Captured requests without a body (GET requests) are skipped.
+ */
+public final class Replay {
+    private final String[] hosts;
+    private final String index;
+    private final int concurrency;
+    private final int repeat;
+    private final boolean requestCache;
+
+    private Replay() {
+        this.hosts = System.getProperty("replay.hosts", "localhost:9200").split(",");
+        this.index = System.getProperty("replay.index");
+        this.concurrency = Integer.getInteger("replay.concurrency", 1);
+        this.repeat = Integer.getInteger("replay.repeat", 1);
+        this.requestCache = Boolean.parseBoolean(System.getProperty("replay.request_cache", "false"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Replay().run();
+    }
+
+    private void run() throws Exception {
+        String file = System.getProperty("replay.file");
+        if (file == null) {
+            throw new IllegalArgumentException("replay.file is required.");
+        }
+        Path output = Paths.get(System.getProperty("replay.output", "replay-result.json"));
+
+        List<Captured> requests = new ArrayList<>();
+        int skipped = 0;
+        for (String line : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            Captured captured = parse(line);
+            if (captured == null) {
+                skipped++;
+            } else {
+                requests.add(captured);
+            }
+        }
+        System.out.println("Loaded " + requests.size() + " requests, skipped " + skipped + " without a body.");
+        if (requests.isEmpty()) {
+            return;
+        }
+
+        LoadTest.Level level = drive(requests);
+        System.out.println(String.format(Locale.ROOT,
+                "concurrency=%d qps=%.1f p50=%.2fms p99=%.2fms errors=%d",
+                concurrency, level.qps(), level.percentileMillis(0.5), level.percentileMillis(0.99), level.errors));
+
+        XContentBuilder report = XContentFactory.jsonBuilder().prettyPrint();
+        report.startObject();
+        report.startObject("capture")
+                .field("file", file)
+                .field("requests", requests.size())
+                .field("skipped", skipped)
+                .field("repeat", repeat)
+                .endObject();
+        report.startArray("levels");
+        level.toXContent(report);
+        report.endArray();
+        report.endObject();
+        Files.write(output, report.string().getBytes(StandardCharsets.UTF_8));
+        System.out.println("Report written to " + output.toAbsolutePath());
+    }
+
+    /**
+     * @return The request of a captured line, <code>null</code> if it has no body.
+     */
+    @SuppressWarnings("unchecked")
+    private Captured parse(String line) throws IOException {
+        Map<String, Object> entry = XContentHelper.convertToMap(XContentType.JSON.xContent(), line, true);
+        Map<String, Object> body = (Map<String, Object>) entry.get("body");
+        if (body == null) {
+            return null;
+        }
+
+        StringBuilder path = new StringBuilder("/");
+        if (index != null) {
+            path.append(index);
+        } else {
+            path.append(Strings.collectionToCommaDelimitedString((List<?>) entry.get("indices")));
+        }
+        List<?> types = (List<?>) entry.get("types");
+        if (types != null && !types.isEmpty()) {
+            path.append('/').append(Strings.collectionToCommaDelimitedString(types));
+        }
+        path.append('/').append(ClusteringAction.RestClusteringAction.NAME);
+        path.append("?request_cache=").append(requestCache);
+        Map<String, Object> params = (Map<String, Object>) entry.get("params");
+        if (params != null) {
+            for (Map.Entry<String, Object> param : params.entrySet()) {
+                path.append('&').append(param.getKey()).append('=').append(param.getValue());
+            }
+        }
+
+        return new Captured(path.toString(), XContentFactory.jsonBuilder().map(body).string());
+    }
+
+    private LoadTest.Level drive(List<Captured> requests) throws InterruptedException {
+        final int total = requests.size() * repeat;
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicLong errors = new AtomicLong();
+        final long[][] latencies = new long[concurrency][];
+        final int[] counts = new int[concurrency];
+        final CountDownLatch done = new CountDownLatch(concurrency);
+
+        final long tsStart = System.nanoTime();
+        for (int t = 0; t < concurrency; t++) {
+            final int thread = t;
+            Thread client = new Thread(() -> {
+                long[] own = new long[1024];
+                int count = 0;
+                try {
+                    int i;
+                    while ((i = next.getAndIncrement()) < total) {
+                        Captured request = requests.get(i % requests.size());
+                        long tsRequestStart = System.nanoTime();
+                        try {
+                            LoadTest.request("POST", request.path, request.body, false,
+                                    hosts[i % hosts.length]);
+                        } catch (IOException e) {
+                            errors.incrementAndGet();
+                            continue;
+                        }
+                        if (count == own.length) {
+                            own = Arrays.copyOf(own, count * 2);
+                        }
+                        own[count++] = System.nanoTime() - tsRequestStart;
+                    }
+                } finally {
+                    latencies[thread] = own;
+                    counts[thread] = count;
+                    done.countDown();
+                }
+            }, "replay-client-" + t);
+            client.start();
+        }
+        done.await();
+        final long durationNanos = System.nanoTime() - tsStart;
+
+        int completed = 0;
+        for (int count : counts) {
+            completed += count;
+        }
+        long[] all = new long[completed];
+        int offset = 0;
+        for (int t = 0; t < concurrency; t++) {
+            System.arraycopy(latencies[t], 0, all, offset, counts[t]);
+            offset += counts[t];
+        }
+        Arrays.sort(all);
+        return new LoadTest.Level(concurrency, durationNanos, all, errors.get());
+    }
+
+    /**
+     * A captured request, ready to be sent.
+     */
+    private static final class Captured {
+        final String path;
+        final String body;
+
+        Captured(String path, String body) {
+            this.path = path;
+            this.body = body;
+        }
+    }
+}
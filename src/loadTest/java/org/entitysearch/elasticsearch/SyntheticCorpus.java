@@ -0,0 +1,153 @@
+package org.entitysearch.elasticsearch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+
+/**
+ * Generates documents in the layout the entity queries expect: a
+ * whitespace-tokenized <code>text</code> field, one field per entity type in
+ * which the words of each mention of that type are replaced with
+ * <code>oentityo</code> (aligned by position with <code>text</code>), its
+ * <code>_begin</code> variant in which only the first word of a mention is
+ * replaced, and the <code>entityContent</code> grouping key.
+ *
+ * <p>Words and entities are drawn with a skewed distribution, so some entity
+ * groups are much larger than others. Generation is deterministic for a seed.
+ */
+final class SyntheticCorpus {
+    static final List<String> ENTITY_TYPES = Arrays.asList("person", "location", "organization");
+
+    /** Maximum number of remembered queries. */
+    private static final int MAX_QUERIES = 10000;
+
+    private final Random random;
+    private final int vocabulary;
+    private final int entities;
+    private final int documentLength;
+
+    /** Entity query strings which match at least one generated document. */
+    private final List<String> queries = new ArrayList<>();
+
+    SyntheticCorpus(long seed, int vocabulary, int entities, int documentLength) {
+        this.random = new Random(seed);
+        this.vocabulary = vocabulary;
+        this.entities = entities;
+        this.documentLength = documentLength;
+    }
+
+    /**
+     * @return The index settings and mapping for documents of the given type.
+     */
+    static XContentBuilder indexDefinition(String type) throws IOException {
+        XContentBuilder builder = XContentFactory.jsonBuilder();
+        builder.startObject();
+        builder.startObject("settings")
+                .field("number_of_replicas", 0)
+                .endObject();
+        builder.startObject("mappings").startObject(type).startObject("properties");
+        textField(builder, EntityQueryTranslator.TEXT_FIELD);
+        for (String entityType : ENTITY_TYPES) {
+            textField(builder, entityType);
+            textField(builder, entityType + EntityQueryTranslator.BEGIN_SUFFIX);
+        }
+        builder.startObject(EntityGrouping.ENTITY_FIELD)
+                .field("type", "keyword")
+                .endObject();
+        builder.endObject().endObject().endObject();
+        builder.endObject();
+        return builder;
+    }
+
+    private static void textField(XContentBuilder builder, String name) throws IOException {
+        builder.startObject(name)
+                .field("type", "text")
+                .field("analyzer", "whitespace")
+                .endObject();
+    }
+
+    /**
+     * @return The next document's source.
+     */
+    XContentBuilder nextDocument() throws IOException {
+        String[] text = new String[documentLength];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = "w" + skewed(vocabulary);
+        }
+
+        // Non-overlapping mentions of one to three words each.
+        int mentions = 1 + random.nextInt(3);
+        int[] mentionTypes = new int[mentions];
+        int[] mentionStarts = new int[mentions];
+        int[] mentionLengths = new int[mentions];
+        String key = null;
+        int position = random.nextInt(Math.max(1, documentLength / 4));
+        int m = 0;
+        for (; m < mentions && position < documentLength; m++) {
+            int type = random.nextInt(ENTITY_TYPES.size());
+            int entity = skewed(entities);
+            int length = Math.min(1 + random.nextInt(3), documentLength - position);
+            if (key == null) {
+                key = ENTITY_TYPES.get(type) + "_" + entity;
+            }
+
+            mentionTypes[m] = type;
+            mentionStarts[m] = position;
+            mentionLengths[m] = length;
+            for (int i = 0; i < length; i++) {
+                text[position + i] = "e" + entity + "_" + i;
+            }
+            position += length + 1 + random.nextInt(Math.max(1, documentLength / 2));
+        }
+
+        String[][] masked = new String[ENTITY_TYPES.size()][];
+        String[][] maskedBegin = new String[ENTITY_TYPES.size()][];
+        for (int i = 0; i < m; i++) {
+            int type = mentionTypes[i];
+            if (masked[type] == null) {
+                masked[type] = text.clone();
+                maskedBegin[type] = text.clone();
+            }
+            for (int j = 0; j < mentionLengths[i]; j++) {
+                masked[type][mentionStarts[i] + j] = EntityQueryTranslator.ENTITY_PLACEHOLDER;
+            }
+            maskedBegin[type][mentionStarts[i]] = EntityQueryTranslator.ENTITY_PLACEHOLDER;
+
+            // Remember a query for a word shortly after the mention.
+            int next = mentionStarts[i] + mentionLengths[i] + random.nextInt(3);
+            if (next < documentLength && queries.size() < MAX_QUERIES) {
+                queries.add(EntityQueryTranslator.ENTITY_PREFIX + ENTITY_TYPES.get(type) + " " + text[next]);
+            }
+        }
+
+        XContentBuilder builder = XContentFactory.jsonBuilder();
+        builder.startObject();
+        builder.field(EntityQueryTranslator.TEXT_FIELD, String.join(" ", text));
+        for (int t = 0; t < ENTITY_TYPES.size(); t++) {
+            if (masked[t] != null) {
+                builder.field(ENTITY_TYPES.get(t), String.join(" ", masked[t]));
+                builder.field(ENTITY_TYPES.get(t) + EntityQueryTranslator.BEGIN_SUFFIX, String.join(" ", maskedBegin[t]));
+            }
+        }
+        builder.field(EntityGrouping.ENTITY_FIELD, key);
+        builder.endObject();
+        return builder;
+    }
+
+    List<String> queries() {
+        return queries;
+    }
+
+    /**
+     * Squaring a uniform variate skews values towards zero.
+     */
+    private int skewed(int bound) {
+        double u = random.nextDouble();
+        return (int) (u * u * bound);
+    }
+}
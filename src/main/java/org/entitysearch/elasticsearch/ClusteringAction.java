@@ -6,15 +6,14 @@ import static org.elasticsearch.rest.RestRequest.Method.POST;
 import static org.elasticsearch.rest.RestRequest.Method.GET;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.EnumMap;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
@@ -23,6 +22,7 @@ import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.TimeUnit;
 
+import org.apache.lucene.index.Term;
 import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.action.Action;
 import org.elasticsearch.action.ActionListener;
@@ -30,30 +30,41 @@ import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.ActionRequestBuilder;
 import org.elasticsearch.action.ActionRequestValidationException;
 import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.admin.indices.stats.TransportIndicesStatsAction;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.action.search.TransportClearScrollAction;
 import org.elasticsearch.action.search.TransportSearchAction;
+import org.elasticsearch.action.search.TransportSearchScrollAction;
 import org.elasticsearch.action.support.ActionFilters;
-import org.elasticsearch.action.support.TransportAction;
+import org.elasticsearch.action.support.HandledTransportAction;
 import org.elasticsearch.client.ElasticsearchClient;
 import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.cluster.ClusterState;
 import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.service.ClusterService;
 import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.breaker.CircuitBreaker;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
 import org.elasticsearch.common.xcontent.NamedXContentRegistry;
 import org.elasticsearch.common.xcontent.ToXContent;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.common.xcontent.XContentHelper;
 import org.elasticsearch.common.xcontent.XContentParser;
-import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.Index;
 import org.elasticsearch.index.query.QueryParseContext;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
 import org.elasticsearch.rest.BaseRestHandler;
 import org.elasticsearch.rest.BytesRestResponse;
 import org.elasticsearch.rest.RestController;
@@ -62,13 +73,16 @@ import org.elasticsearch.rest.action.search.RestSearchAction;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.SearchHitField;
 import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.SearchShardTarget;
 import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.aggregations.Aggregations;
 import org.elasticsearch.search.aggregations.InternalAggregation;
 import org.elasticsearch.search.aggregations.InternalAggregations;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
 import org.elasticsearch.search.fetch.subphase.highlight.HighlightField;
 import org.elasticsearch.search.internal.InternalSearchResponse;
 import org.elasticsearch.search.profile.SearchProfileShardResults;
+import org.entitysearch.elasticsearch.EntityTermStatsAction.TransportEntityTermStatsAction;
 import org.elasticsearch.threadpool.ThreadPool;
 import org.elasticsearch.transport.TransportChannel;
 import org.elasticsearch.transport.TransportRequestHandler;
@@ -109,6 +123,27 @@ public class ClusteringAction
         private String algorithm;
         private int maxHits = Integer.MAX_VALUE;
         private Map<String, Object> attributes;
+        private GroupingMode groupingMode = GroupingMode.HITS;
+        private boolean includeDocuments = true;
+        private int maxGroups = Integer.MAX_VALUE;
+        private int maxDocsPerGroup = Integer.MAX_VALUE;
+        private GroupRanking groupRanking = GroupRanking.SIZE;
+        private Boolean requestCache;
+        private boolean phaseTook;
+        private HitsMode hitsMode = HitsMode.FULL;
+        private boolean explainPlan;
+        private String entityQuery;
+        private ClustersCursor clustersAfter;
+        private Boolean approximate;
+
+        /** Fingerprint of the delegate search before grouping rewrote it; not serialized. */
+        private int searchFingerprint;
+
+        /** Time spent parsing and translating the source; not serialized. */
+        private long translateNanos;
+
+        /** The source the request was parsed from; not serialized. */
+        private BytesReference rawSource;
 
         /**
          * Set the {@link SearchRequest} to use for fetching documents to be clustered.
@@ -133,73 +168,305 @@ public class ClusteringAction
             return searchRequest;
         }
 
+        /**
+         * Sets the maximum number of matches to group. If set, the delegate
+         * search is paged through with a scroll (in {@link GroupingMode#HITS})
+         * and clusters cover up to this many matches rather than the first page
+         * of hits only.
+         */
+        public ClusteringActionRequest setMaxHits(int maxHits) {
+            if (maxHits <= 0) {
+                throw new IllegalArgumentException("max_hits must be positive: " + maxHits);
+            }
+            this.maxHits = maxHits;
+            return this;
+        }
+
+        public int getMaxHits() {
+            return maxHits;
+        }
+
+        /**
+         * @return <code>true</code> if {@link #setMaxHits(int)} was set.
+         */
+        public boolean isStreaming() {
+            return maxHits != Integer.MAX_VALUE;
+        }
+
+        /**
+         * Sets where search results are grouped by entity. Defaults to
+         * {@link GroupingMode#HITS}.
+         */
+        public ClusteringActionRequest setGroupingMode(GroupingMode groupingMode) {
+            this.groupingMode = Preconditions.checkNotNull(groupingMode);
+            return this;
+        }
+
+        public GroupingMode getGroupingMode() {
+            return groupingMode;
+        }
+
+        /**
+         * In {@link GroupingMode#AGGREGATION} and {@link GroupingMode#ENTITY_GROUPS},
+         * sets whether document ids of
+         * each group should be collected. Defaults to <code>true</code>.
+         */
+        public ClusteringActionRequest setIncludeDocuments(boolean includeDocuments) {
+            this.includeDocuments = includeDocuments;
+            return this;
+        }
+
+        public boolean isIncludeDocuments() {
+            return includeDocuments;
+        }
+
+        /**
+         * Sets the maximum number of groups in the response. Only the best
+         * groups by {@link #setGroupRanking(GroupRanking)} are returned.
+         */
+        public ClusteringActionRequest setMaxGroups(int maxGroups) {
+            if (maxGroups <= 0) {
+                throw new IllegalArgumentException("max_groups must be positive: " + maxGroups);
+            }
+            this.maxGroups = maxGroups;
+            return this;
+        }
+
+        public int getMaxGroups() {
+            return maxGroups;
+        }
+
+        /**
+         * Sets the maximum number of document ids returned per group. Groups
+         * still report their full document count.
+         */
+        public ClusteringActionRequest setMaxDocsPerGroup(int maxDocsPerGroup) {
+            if (maxDocsPerGroup < 0) {
+                throw new IllegalArgumentException("max_docs_per_group must not be negative: " + maxDocsPerGroup);
+            }
+            this.maxDocsPerGroup = maxDocsPerGroup;
+            return this;
+        }
+
+        public int getMaxDocsPerGroup() {
+            return maxDocsPerGroup;
+        }
+
+        /**
+         * Sets how groups are ranked. Defaults to {@link GroupRanking#SIZE}.
+         */
+        public ClusteringActionRequest setGroupRanking(GroupRanking groupRanking) {
+            this.groupRanking = Preconditions.checkNotNull(groupRanking);
+            return this;
+        }
+
+        public GroupRanking getGroupRanking() {
+            return groupRanking;
+        }
+
+        /**
+         * Sets whether the response may be served from (and stored in) the
+         * node's clustering result cache. <code>null</code> (the default) uses
+         * the node's setting.
+         */
+        public ClusteringActionRequest setRequestCache(Boolean requestCache) {
+            this.requestCache = requestCache;
+            return this;
+        }
+
+        public Boolean getRequestCache() {
+            return requestCache;
+        }
+
+        /**
+         * Sets whether the response should include the time spent in each
+         * phase of the request. Defaults to <code>false</code>.
+         */
+        public ClusteringActionRequest setPhaseTook(boolean phaseTook) {
+            this.phaseTook = phaseTook;
+            return this;
+        }
+
+        public boolean isPhaseTook() {
+            return phaseTook;
+        }
+
+        /**
+         * Sets how much of the search response is returned with the clusters.
+         * Defaults to {@link HitsMode#FULL}.
+         */
+        public ClusteringActionRequest setHitsMode(HitsMode hitsMode) {
+            this.hitsMode = Preconditions.checkNotNull(hitsMode);
+            return this;
+        }
+
+        public HitsMode getHitsMode() {
+            return hitsMode;
+        }
+
+        /**
+         * Sets whether the response should include the {@link QueryPlan} of
+         * the entity query. Defaults to <code>false</code>.
+         */
+        public ClusteringActionRequest setExplainPlan(boolean explainPlan) {
+            this.explainPlan = explainPlan;
+            return this;
+        }
+
+        public boolean isExplainPlan() {
+            return explainPlan;
+        }
+
+        /**
+         * Sets the <code>clusters_after</code> token of a previous response:
+         * only groups ranked after its last group are returned. The request
+         * must otherwise be the same as the one the token came from.
+         *
+         * @see ClusteringActionResponse#getClusters()
+         * @see EntityClusters#getNextAfter()
+         */
+        public ClusteringActionRequest setClustersAfter(String clustersAfter) {
+            this.clustersAfter = clustersAfter == null ? null : ClustersCursor.decode(clustersAfter);
+            return this;
+        }
+
+        ClustersCursor getClustersAfter() {
+            return clustersAfter;
+        }
+
+        /**
+         * Sets whether group counts are scaled from a sample of the matching
+         * documents to all matches, each with its standard error.
+         * Aggregation-based modes group the best scoring
+         * <code>carrot2.approximate.shard_sample_size</code> matches of each
+         * shard; every match is still scored, only grouping work is saved.
+         * Streaming {@link GroupingMode#HITS} stops each shard after
+         * <code>max_hits</code> matches with <code>terminate_after</code> and
+         * groups the first <code>max_hits</code> of them; non-streaming
+         * {@link GroupingMode#HITS} rejects it. <code>null</code> (the
+         * default) uses the node's setting.
+         *
+         * @see EntityClusters#isApproximate()
+         */
+        public ClusteringActionRequest setApproximate(Boolean approximate) {
+            this.approximate = approximate;
+            return this;
+        }
+
+        public Boolean getApproximate() {
+            return approximate;
+        }
+
+        /**
+         * @return <code>true</code> if {@link #setApproximate(Boolean)} was set
+         * to <code>true</code>, or resolved so from the node's setting.
+         */
+        public boolean isApproximate() {
+            return Boolean.TRUE.equals(approximate);
+        }
+
+        void setSearchFingerprint(int searchFingerprint) {
+            this.searchFingerprint = searchFingerprint;
+        }
+
+        int getSearchFingerprint() {
+            return searchFingerprint;
+        }
+
+        /**
+         * @return The entity query string the delegate search was translated
+         * from, or <code>null</code> if the request was not parsed from a source.
+         */
+        public String getEntityQuery() {
+            return entityQuery;
+        }
+
+        /**
+         * @return The source this request was parsed from on this node, if any.
+         */
+        BytesReference getRawSource() {
+            return rawSource;
+        }
+
+        /**
+         * @return Time spent in {@link #source(BytesReference, NamedXContentRegistry)}
+         * on this node, or 0 if the request was built programmatically.
+         */
+        long getTranslateNanos() {
+            return translateNanos;
+        }
 
         /**
          * Parses some {@link org.elasticsearch.common.xcontent.XContent} and fills in the request.
+         * Entity queries are translated to the default query type of
+         * {@link EntityQueryTranslator#ENTITY_NEAR_SETTING}.
          */
-        @SuppressWarnings("unchecked")
         public void source(BytesReference source, NamedXContentRegistry xContentRegistry) {
+            source(source, xContentRegistry, null);
+        }
+
+        /**
+         * Parses some {@link org.elasticsearch.common.xcontent.XContent} and fills in the request,
+         * reusing translated entity queries from the given cache (if not <code>null</code>).
+         */
+        void source(BytesReference source, NamedXContentRegistry xContentRegistry, EntityQueryCache queryCache) {
             if (source == null || source.length() == 0) {
                 return;
             }
 
+            final long tsStart = System.nanoTime();
             try (XContentParser parser = XContentFactory.xContent(source).createParser(xContentRegistry, source)) {
-                // TODO: we should avoid reparsing search_request here 
-                // but it's terribly difficult to slice the underlying byte 
-                // buffer to get just the search request.
-                Map<String, Object> asMap = parser.mapOrdered();
-                Map<String, Object> searchRequestMap = (Map<String, Object>) asMap.get("search_request");
-                final String DELIMITER = " ";
-                if (searchRequestMap != null) {
-                    if (this.searchRequest == null) {
-                        searchRequest = new SearchRequest();
-                    }
-                    String[] tokens = ((String)searchRequestMap.get("query")).split(DELIMITER);
-                    boolean flag = false;
-                    if(searchRequestMap.get("type")!=null && ((String)searchRequestMap.get("type")).equals("d_document")) {
-                        flag = true;
-                        searchRequestMap.remove("type");
-                    }
-                    searchRequestMap.put("query", new HashMap<String, Object>());
-                    HashMap<String, Object> query = (HashMap<String, Object>)searchRequestMap.get("query");
-                    query.put("span_near", new HashMap<String, Object>());
-                    List<HashMap<String, Object>> hashMapArray = new ArrayList<>();
-                    int i = 0;
-                    for(String token:tokens) {
-                        if(token.charAt(0)=='#') {
-                            token = token.substring(1);
-                            HashMap<String, Object> hashMapElement = new HashMap<String, Object> ();
-                            hashMapElement.put("field_masking_span", new HashMap<String, Object>());
-                            HashMap<String, Object> fieldMaskingSpan = (HashMap<String, Object>) hashMapElement.get("field_masking_span");
-                            fieldMaskingSpan.put("query", new HashMap<String, Object>());
-                            HashMap<String, Object> queryH = (HashMap<String, Object>) fieldMaskingSpan.get("query");
-                            queryH.put("span_term", new HashMap<String, Object>());
-                            HashMap<String, Object> spanTerm = (HashMap<String, Object>) queryH.get("span_term");
-                            if(flag)
-                                spanTerm.put(token + "_begin", "oentityo");         
-                            else
-                                spanTerm.put(token, "oentityo");                           
-                            fieldMaskingSpan.put("field", "text");
-                            hashMapArray.add(hashMapElement);                           
-                        }
-                        else {
-                            HashMap<String, Object> hashMapElement = new HashMap<String, Object> ();
-                            hashMapElement.put("span_term", new HashMap<String, Object>());
-                            HashMap<String, Object> spanTerm = (HashMap<String, Object>) hashMapElement.get("span_term");
-                            spanTerm.put("text", token);
-                            hashMapArray.add(hashMapElement);
-                        }
+                XContentParser.Token token = parser.nextToken();
+                if (token != XContentParser.Token.START_OBJECT) {
+                    throw new IllegalArgumentException("Expected an object, got: " + token);
+                }
+
+                String currentFieldName = null;
+                while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                    if (token == XContentParser.Token.FIELD_NAME) {
+                        currentFieldName = parser.currentName();
+                    } else if (token == XContentParser.Token.START_OBJECT
+                            && "search_request".equals(currentFieldName)) {
+                        parseSearchRequest(parser, xContentRegistry, queryCache);
+                    } else if (token == XContentParser.Token.VALUE_STRING
+                            && "grouping".equals(currentFieldName)) {
+                        setGroupingMode(GroupingMode.fromString(parser.text()));
+                    } else if (token == XContentParser.Token.VALUE_BOOLEAN
+                            && "include_documents".equals(currentFieldName)) {
+                        setIncludeDocuments(parser.booleanValue());
+                    } else if (token == XContentParser.Token.VALUE_NUMBER
+                            && "max_hits".equals(currentFieldName)) {
+                        setMaxHits(parser.intValue());
+                    } else if (token == XContentParser.Token.VALUE_NUMBER
+                            && "max_groups".equals(currentFieldName)) {
+                        setMaxGroups(parser.intValue());
+                    } else if (token == XContentParser.Token.VALUE_NUMBER
+                            && "max_docs_per_group".equals(currentFieldName)) {
+                        setMaxDocsPerGroup(parser.intValue());
+                    } else if (token == XContentParser.Token.VALUE_STRING
+                            && "rank_groups_by".equals(currentFieldName)) {
+                        setGroupRanking(GroupRanking.fromString(parser.text()));
+                    } else if (token == XContentParser.Token.VALUE_BOOLEAN
+                            && "request_cache".equals(currentFieldName)) {
+                        setRequestCache(parser.booleanValue());
+                    } else if (token == XContentParser.Token.VALUE_BOOLEAN
+                            && "phase_took".equals(currentFieldName)) {
+                        setPhaseTook(parser.booleanValue());
+                    } else if (token == XContentParser.Token.VALUE_STRING
+                            && "hits".equals(currentFieldName)) {
+                        setHitsMode(HitsMode.fromString(parser.text()));
+                    } else if (token == XContentParser.Token.VALUE_BOOLEAN
+                            && "explain_plan".equals(currentFieldName)) {
+                        setExplainPlan(parser.booleanValue());
+                    } else if (token == XContentParser.Token.VALUE_STRING
+                            && "clusters_after".equals(currentFieldName)) {
+                        setClustersAfter(parser.text());
+                    } else if (token == XContentParser.Token.VALUE_BOOLEAN
+                            && "approximate".equals(currentFieldName)) {
+                        setApproximate(parser.booleanValue());
+                    } else {
+                        parser.skipChildren();
                     }
-                    ((HashMap<String, Object>) query.get("span_near")).put("clauses", hashMapArray);
-                    ((HashMap<String, Object>) query.get("span_near")).put("slop", 7);
-                    System.out.println(searchRequestMap);
-                    XContentBuilder builder = XContentFactory.contentBuilder(XContentType.JSON).map(searchRequestMap);
-                    XContentParser searchXParser = XContentFactory.xContent(XContentType.JSON)
-                            .createParser(xContentRegistry, builder.bytes());
-                    QueryParseContext parseContext = new QueryParseContext(searchXParser);
-                    SearchSourceBuilder searchSourceBuilder =
-                            SearchSourceBuilder.fromXContent(parseContext);
-                    searchRequest.source(searchSourceBuilder);
                 }
             } catch (Exception e) {
                 String sSource = "_na_";
@@ -211,6 +478,66 @@ public class ClusteringAction
                 e.printStackTrace();
                 throw new ClusteringException("Failed to parse source [" + sSource + "]" + e, e);
             }
+            translateNanos = System.nanoTime() - tsStart;
+            rawSource = source;
+        }
+
+        /**
+         * Parses the <code>search_request</code> object in a single pass. The
+         * entity <code>query</code> string and the <code>d_document</code> type are
+         * consumed here and translated directly into query builders; any other
+         * keys (including other types, which it rejects) are copied verbatim and
+         * handed over to {@link SearchSourceBuilder}.
+         */
+        private void parseSearchRequest(XContentParser parser, NamedXContentRegistry xContentRegistry,
+                                        EntityQueryCache queryCache) throws IOException {
+            String query = null;
+            boolean beginFields = false;
+            XContentBuilder remaining = null;
+
+            String currentFieldName = null;
+            XContentParser.Token token;
+            while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                if (token == XContentParser.Token.FIELD_NAME) {
+                    currentFieldName = parser.currentName();
+                } else if (token == XContentParser.Token.VALUE_STRING && "query".equals(currentFieldName)) {
+                    query = parser.text();
+                } else if (token == XContentParser.Token.VALUE_STRING && "type".equals(currentFieldName)
+                        && EntityQueryTranslator.DOCUMENT_TYPE.equals(parser.text())) {
+                    beginFields = true;
+                } else {
+                    if (remaining == null) {
+                        remaining = XContentFactory.contentBuilder(parser.contentType());
+                        remaining.startObject();
+                    }
+                    remaining.field(currentFieldName);
+                    remaining.copyCurrentStructure(parser);
+                }
+            }
+
+            if (query == null) {
+                throw new IllegalArgumentException("Expected a [query] string in [search_request].");
+            }
+
+            SearchSourceBuilder searchSourceBuilder;
+            if (remaining == null) {
+                searchSourceBuilder = new SearchSourceBuilder();
+            } else {
+                remaining.endObject();
+                try (XContentParser remainingParser = XContentFactory.xContent(remaining.contentType())
+                        .createParser(xContentRegistry, remaining.bytes())) {
+                    searchSourceBuilder = SearchSourceBuilder.fromXContent(new QueryParseContext(remainingParser));
+                }
+            }
+            entityQuery = query;
+            searchSourceBuilder.query(queryCache != null
+                    ? queryCache.translate(query, beginFields)
+                    : EntityQueryTranslator.translate(query, beginFields, Settings.EMPTY));
+
+            if (this.searchRequest == null) {
+                searchRequest = new SearchRequest();
+            }
+            searchRequest.source(searchSourceBuilder);
         }
 
         @Override
@@ -229,11 +556,48 @@ public class ClusteringAction
                 validationException.addValidationErrors(ex.validationErrors());
             }
 
+            if (isStreaming() && groupingMode == GroupingMode.HITS
+                    && searchRequest != null && searchRequest.source() != null
+                    && searchRequest.source().from() > 0) {
+                validationException = addValidationError("from is not supported with max_hits",
+                        validationException);
+            }
+
+            if (isApproximate() && groupingMode == GroupingMode.HITS && !isStreaming()) {
+                validationException = addValidationError("approximate requires max_hits in hits mode",
+                        validationException);
+            }
+
+            if (clustersAfter != null) {
+                if (groupingMode == GroupingMode.AGGREGATION) {
+                    validationException = addValidationError("clusters_after is not supported with grouping ["
+                            + groupingMode + "]", validationException);
+                } else if (clustersAfter.getGroupingMode() != groupingMode
+                        || clustersAfter.getRanking() != groupRanking) {
+                    validationException = addValidationError("clusters_after token was issued for grouping ["
+                            + clustersAfter.getGroupingMode() + "] ranked by [" + clustersAfter.getRanking()
+                            + "]", validationException);
+                }
+            }
+
             return validationException;
         }
 
         @Override
         public void writeTo(StreamOutput out) throws IOException {
+            writeTo(out, true);
+        }
+
+        /**
+         * Writes the request without the options that only change how its
+         * response is presented (<code>phase_took</code>) or whether it is
+         * cached (<code>request_cache</code>), as the key of cached responses.
+         */
+        void writeCacheKey(StreamOutput out) throws IOException {
+            writeTo(out, false);
+        }
+
+        private void writeTo(StreamOutput out, boolean presentation) throws IOException {
             assert searchRequest != null;
             this.searchRequest.writeTo(out);
             out.writeOptionalString(algorithm);
@@ -244,6 +608,19 @@ public class ClusteringAction
             if (hasAttributes) {
                 out.writeMap(attributes);
             }
+
+            out.writeByte(groupingMode.id());
+            out.writeBoolean(includeDocuments);
+            out.writeVInt(maxGroups);
+            out.writeVInt(maxDocsPerGroup);
+            out.writeByte(groupRanking.id());
+            out.writeOptionalBoolean(presentation ? requestCache : null);
+            out.writeBoolean(presentation && phaseTook);
+            out.writeByte(hitsMode.id());
+            out.writeBoolean(explainPlan);
+            out.writeOptionalString(entityQuery);
+            out.writeOptionalWriteable(clustersAfter);
+            out.writeOptionalBoolean(approximate);
         }
 
         @Override
@@ -259,6 +636,19 @@ public class ClusteringAction
             if (hasAttributes) {
                 attributes = in.readMap();
             }
+
+            this.groupingMode = GroupingMode.fromId(in.readByte());
+            this.includeDocuments = in.readBoolean();
+            this.maxGroups = in.readVInt();
+            this.maxDocsPerGroup = in.readVInt();
+            this.groupRanking = GroupRanking.fromId(in.readByte());
+            this.requestCache = in.readOptionalBoolean();
+            this.phaseTook = in.readBoolean();
+            this.hitsMode = HitsMode.fromId(in.readByte());
+            this.explainPlan = in.readBoolean();
+            this.entityQuery = in.readOptionalString();
+            this.clustersAfter = in.readOptionalWriteable(ClustersCursor::new);
+            this.approximate = in.readOptionalBoolean();
         }
     }
 
@@ -284,11 +674,78 @@ public class ClusteringAction
             return this;
         }
 
+        public ClusteringActionRequestBuilder setMaxHits(int maxHits) {
+            super.request.setMaxHits(maxHits);
+            return this;
+        }
+
+        public ClusteringActionRequestBuilder setMaxGroups(int maxGroups) {
+            super.request.setMaxGroups(maxGroups);
+            return this;
+        }
+
+        public ClusteringActionRequestBuilder setMaxDocsPerGroup(int maxDocsPerGroup) {
+            super.request.setMaxDocsPerGroup(maxDocsPerGroup);
+            return this;
+        }
+
+        public ClusteringActionRequestBuilder setGroupRanking(GroupRanking groupRanking) {
+            super.request.setGroupRanking(groupRanking);
+            return this;
+        }
+
+        public ClusteringActionRequestBuilder setRequestCache(Boolean requestCache) {
+            super.request.setRequestCache(requestCache);
+            return this;
+        }
+
+        public ClusteringActionRequestBuilder setPhaseTook(boolean phaseTook) {
+            super.request.setPhaseTook(phaseTook);
+            return this;
+        }
+
+        public ClusteringActionRequestBuilder setHitsMode(HitsMode hitsMode) {
+            super.request.setHitsMode(hitsMode);
+            return this;
+        }
+
+        public ClusteringActionRequestBuilder setExplainPlan(boolean explainPlan) {
+            super.request.setExplainPlan(explainPlan);
+            return this;
+        }
+
+        public ClusteringActionRequestBuilder setApproximate(Boolean approximate) {
+            super.request.setApproximate(approximate);
+            return this;
+        }
+
+        public ClusteringActionRequestBuilder setClustersAfter(String clustersAfter) {
+            super.request.setClustersAfter(clustersAfter);
+            return this;
+        }
+
+        public ClusteringActionRequestBuilder setGroupingMode(GroupingMode groupingMode) {
+            super.request.setGroupingMode(groupingMode);
+            return this;
+        }
+
+        public ClusteringActionRequestBuilder setIncludeDocuments(boolean includeDocuments) {
+            super.request.setIncludeDocuments(includeDocuments);
+            return this;
+        }
+
         public ClusteringActionRequestBuilder setSource(BytesReference content,
                                                 NamedXContentRegistry xContentRegistry) {
             super.request.source(content, xContentRegistry);
             return this;
         }
+
+        ClusteringActionRequestBuilder setSource(BytesReference content,
+                                                 NamedXContentRegistry xContentRegistry,
+                                                 EntityQueryCache queryCache) {
+            super.request.source(content, xContentRegistry, queryCache);
+            return this;
+        }
     }
 
     /**
@@ -301,6 +758,8 @@ public class ClusteringAction
         static final class Fields {
             static final String SEARCH_RESPONSE = "search_response";
             static final String CLUSTERS = "clusters";
+            static final String NEXT_CLUSTERS_AFTER = "next_clusters_after";
+            static final String APPROXIMATE = "approximate";
 
             // from SearchResponse
             static final String _SCROLL_ID = "_scroll_id";
@@ -315,96 +774,417 @@ public class ClusteringAction
             static final String REASON = "reason";
             static final String TOOK = "took";
             static final String TIMED_OUT = "timed_out";
+            static final String TERMINATED_EARLY = "terminated_early";
+            static final String HITS = "hits";
+            static final String MAX_SCORE = "max_score";
+            static final String _INDEX = "_index";
+            static final String _TYPE = "_type";
+            static final String _ID = "_id";
+            static final String _SCORE = "_score";
+            static final String AGGREGATIONS = "aggregations";
         }
 
+        /**
+         * Version of the compact wire format, written ahead of it. Responses
+         * of nodes running the original plugin start with a boolean instead
+         * (whether a search response follows), read as version 0 or 1, so the
+         * compact format's versions start above it.
+         */
+        private static final int COMPACT_VERSION = 2;
+
         private SearchResponse searchResponse;
+        private EntityClusters clusters;
+        private PhaseTook phaseTook;
+        private HitsMode hitsMode = HitsMode.FULL;
+        private QueryPlan plan;
 
         ClusteringActionResponse() {
         }
 
+        /**
+         * A response with the search response's hits grouped with default
+         * options: all groups, largest first.
+         */
         public ClusteringActionResponse(
                 SearchResponse searchResponse) {
+            this(searchResponse, groupHits(searchResponse));
+        }
+
+        public ClusteringActionResponse(
+                SearchResponse searchResponse,
+                EntityClusters clusters) {
+            this(searchResponse, clusters, null);
+        }
+
+        public ClusteringActionResponse(
+                SearchResponse searchResponse,
+                EntityClusters clusters,
+                PhaseTook phaseTook) {
+            this(searchResponse, clusters, phaseTook, HitsMode.FULL);
+        }
+
+        public ClusteringActionResponse(
+                SearchResponse searchResponse,
+                EntityClusters clusters,
+                PhaseTook phaseTook,
+                HitsMode hitsMode) {
             this.searchResponse = Preconditions.checkNotNull(searchResponse);
+            this.clusters = Preconditions.checkNotNull(clusters);
+            this.phaseTook = phaseTook;
+            this.hitsMode = Preconditions.checkNotNull(hitsMode);
+        }
+
+        private static EntityClusters groupHits(SearchResponse searchResponse) {
+            try {
+                return EntityGrouping.groupHits(Preconditions.checkNotNull(searchResponse).getHits().getHits());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
         }
 
         public SearchResponse getSearchResponse() {
             return searchResponse;
         }
 
+        public EntityClusters getClusters() {
+            return clusters;
+        }
+
+        /**
+         * @return Per-phase timings, if requested with
+         * {@link ClusteringActionRequest#setPhaseTook(boolean)}.
+         */
+        public PhaseTook getPhaseTook() {
+            return phaseTook;
+        }
+
+        /**
+         * @return How much of the search response {@link #toXContent} renders.
+         */
+        public HitsMode getHitsMode() {
+            return hitsMode;
+        }
+
+        /**
+         * @return The entity query's plan, if requested with
+         * {@link ClusteringActionRequest#setExplainPlan(boolean)}.
+         */
+        public QueryPlan getPlan() {
+            return plan;
+        }
+
+        void setPlan(QueryPlan plan) {
+            this.plan = plan;
+        }
+
         @Override
         public XContentBuilder toXContent(XContentBuilder builder, Params params)
                 throws IOException {
             if (searchResponse != null) {
-                searchResponse.innerToXContent(builder, ToXContent.EMPTY_PARAMS);
-            }   
+                if (hitsMode == HitsMode.FULL) {
+                    searchResponse.innerToXContent(builder, ToXContent.EMPTY_PARAMS);
+                } else {
+                    searchResponseHeaderToXContent(builder, params);
+                }
+            }
 
-            SearchHit[] hits = searchResponse.getHits().getHits();
-            HashMap<String, List<SearchHit>> hm = new HashMap<>();
+            builder.startArray(Fields.CLUSTERS);
+            if (clusters != null) {
+                clusters.toXContent(builder, params);
+            }
+            builder.endArray();
+            if (clusters != null && clusters.getNextAfter() != null) {
+                builder.field(Fields.NEXT_CLUSTERS_AFTER, clusters.getNextAfter());
+            }
+            if (clusters != null && clusters.isApproximate()) {
+                builder.field(Fields.APPROXIMATE, true);
+            }
 
-            for(SearchHit hit : hits) {
-                String entityContent = (String)hit.sourceAsMap().get("entityContent");
-                List<SearchHit> ls = hm.getOrDefault(entityContent, new ArrayList<SearchHit> ());
-                ls.add(hit);
-                hm.put(entityContent, ls);
+            if (phaseTook != null) {
+                phaseTook.toXContent(builder, params);
+            }
+            if (plan != null) {
+                plan.toXContent(builder, params);
             }
+            return builder;
+        }
 
-            List<List<String>> list = new ArrayList<>();
-            for(String name : hm.keySet()) {
-                List<String> cur = new ArrayList<>();
-                List<SearchHit> hl = hm.get(name);
-                cur.add(name);
-                for(SearchHit h: hl) 
-                    cur.add(String.valueOf(h.getId()));
-                list.add(cur);     
+        /**
+         * Renders the search response without sources: the header, hit totals,
+         * hit ids (in {@link HitsMode#IDS}) and aggregations other than the
+         * ones added for grouping.
+         */
+        private void searchResponseHeaderToXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.field(Fields.TOOK, searchResponse.getTookInMillis());
+            builder.field(Fields.TIMED_OUT, searchResponse.isTimedOut());
+            if (searchResponse.isTerminatedEarly() != null) {
+                builder.field(Fields.TERMINATED_EARLY, searchResponse.isTerminatedEarly());
             }
 
-            Collections.sort(list, new Comparator<List<String>>(){
-                public int compare(List<String> a, List<String> b) {
-                    return b.size() - a.size();
+            builder.startObject(Fields._SHARDS);
+            builder.field(Fields.TOTAL, searchResponse.getTotalShards());
+            builder.field(Fields.SUCCESSFUL, searchResponse.getSuccessfulShards());
+            builder.field(Fields.FAILED, searchResponse.getFailedShards());
+            if (searchResponse.getShardFailures().length > 0) {
+                builder.startArray(Fields.FAILURES);
+                for (ShardSearchFailure failure : searchResponse.getShardFailures()) {
+                    builder.startObject();
+                    builder.field(Fields.INDEX, failure.index());
+                    builder.field(Fields.SHARD, failure.shardId());
+                    builder.field(Fields.STATUS, failure.status().name());
+                    builder.field(Fields.REASON, failure.reason());
+                    builder.endObject();
                 }
-            });
-
-            builder.startArray(Fields.CLUSTERS);
-
-            for(List<String> ls : list) {
-                builder.startObject();
-                builder.field("name", ls.get(0));
-                builder.startArray("document");
-                for(int i = 1; i < ls.size(); i++ ){
+                builder.endArray();
+            }
+            builder.endObject();
+
+            SearchHits hits = searchResponse.getHits();
+            builder.startObject(Fields.HITS);
+            builder.field(Fields.TOTAL, hits.getTotalHits());
+            if (Float.isNaN(hits.getMaxScore())) {
+                builder.nullField(Fields.MAX_SCORE);
+            } else {
+                builder.field(Fields.MAX_SCORE, hits.getMaxScore());
+            }
+            if (hitsMode == HitsMode.IDS) {
+                builder.startArray(Fields.HITS);
+                for (SearchHit hit : hits.getHits()) {
                     builder.startObject();
-                    builder.field("id", ls.get(i));
+                    builder.field(Fields._INDEX, hit.getIndex());
+                    builder.field(Fields._TYPE, hit.getType());
+                    builder.field(Fields._ID, hit.getId());
+                    if (!Float.isNaN(hit.getScore())) {
+                        builder.field(Fields._SCORE, hit.getScore());
+                    }
                     builder.endObject();
                 }
                 builder.endArray();
-                builder.endObject();
             }
-
-            builder.endArray();
-            return builder;
+            builder.endObject();
+
+            Aggregations aggregations = searchResponse.getAggregations();
+            if (aggregations != null) {
+                boolean started = false;
+                for (Aggregation aggregation : aggregations) {
+                    if (aggregation.getName().startsWith(EntityGrouping.INTERNAL_AGGREGATION_PREFIX)) {
+                        continue;
+                    }
+                    if (!started) {
+                        builder.startObject(Fields.AGGREGATIONS);
+                        started = true;
+                    }
+                    ((ToXContent) aggregation).toXContent(builder, params);
+                }
+                if (started) {
+                    builder.endObject();
+                }
+            }
         }
 
+        /**
+         * Writes the response in the compact format: a string table shared by
+         * group names, document ids and hit coordinates, then the search
+         * response and the groups referring to it. Unless hits are returned in
+         * {@link HitsMode#FULL} (or the search response carries suggestions or
+         * profile results), only the parts of the search response that
+         * {@link #toXContent} renders are written.
+         */
         @Override
         public void writeTo(StreamOutput out) throws IOException {
             super.writeTo(out);
 
-            boolean hasSearchResponse = searchResponse != null;
-            out.writeBoolean(hasSearchResponse);
-            if (hasSearchResponse) {
-                this.searchResponse.writeTo(out);
+            out.writeVInt(COMPACT_VERSION);
+            out.writeByte(hitsMode.id());
+
+            boolean fullSearchResponse = searchResponse != null && isFullSearchResponse();
+            StringTable table = new StringTable();
+            if (searchResponse != null && !fullSearchResponse) {
+                addSearchResponseStrings(table);
             }
+            if (clusters != null) {
+                clusters.addStrings(table);
+            }
+            table.writeTo(out);
+
+            out.writeBoolean(searchResponse != null);
+            if (searchResponse != null) {
+                out.writeBoolean(fullSearchResponse);
+                if (fullSearchResponse) {
+                    searchResponse.writeTo(out);
+                } else {
+                    writeSearchResponseHeader(out, table);
+                }
+            }
+            out.writeBoolean(clusters != null);
+            if (clusters != null) {
+                clusters.writeTo(out, table);
+            }
+            out.writeOptionalWriteable(phaseTook);
+            out.writeOptionalWriteable(plan);
         }
 
+        /**
+         * Reads the compact format or, from nodes running the original plugin,
+         * the search response alone, grouping its hits as those nodes did.
+         * Nodes running the original plugin cannot read the compact format.
+         */
         @Override
         public void readFrom(StreamInput in) throws IOException {
             super.readFrom(in);
 
-            boolean hasSearchResponse = in.readBoolean();
+            int version = in.readVInt();
+            if (version == 0 || version == 1) {
+                readOriginal(in, version == 1);
+                return;
+            }
+            if (version != COMPACT_VERSION) {
+                throw new IOException("Unknown clustering response format version: " + version);
+            }
+            this.hitsMode = HitsMode.fromId(in.readByte());
+
+            StringTable table = new StringTable(in);
+            if (in.readBoolean()) {
+                if (in.readBoolean()) {
+                    this.searchResponse = new SearchResponse();
+                    this.searchResponse.readFrom(in);
+                } else {
+                    this.searchResponse = readSearchResponseHeader(in, table);
+                }
+            }
+            if (in.readBoolean()) {
+                this.clusters = new EntityClusters(in, table);
+            }
+            this.phaseTook = in.readOptionalWriteable(PhaseTook::new);
+            this.plan = in.readOptionalWriteable(QueryPlan::new);
+        }
+
+        /**
+         * Reads the format written by the original plugin: an optional search
+         * response, led by the boolean already read.
+         */
+        private void readOriginal(StreamInput in, boolean hasSearchResponse) throws IOException {
+            this.hitsMode = HitsMode.FULL;
             if (hasSearchResponse) {
                 this.searchResponse = new SearchResponse();
                 this.searchResponse.readFrom(in);
+                this.clusters = EntityGrouping.groupHits(searchResponse.getHits().getHits());
+            }
+        }
+
+        private boolean isFullSearchResponse() {
+            return hitsMode == HitsMode.FULL
+                    || searchResponse.getSuggest() != null
+                    || !searchResponse.getProfileResults().isEmpty();
+        }
+
+        private void addSearchResponseStrings(StringTable table) {
+            if (hitsMode != HitsMode.IDS) {
+                return;
+            }
+            for (SearchHit hit : searchResponse.getHits().getHits()) {
+                SearchShardTarget shard = hit.getShard();
+                if (shard != null) {
+                    table.add(shard.getNodeId());
+                    table.add(shard.getShardId().getIndexName());
+                    table.add(shard.getShardId().getIndex().getUUID());
+                }
+                table.add(hit.getType());
+                table.add(hit.getId());
             }
         }
 
+        /**
+         * Writes what {@link #searchResponseHeaderToXContent} renders: the
+         * header, hit totals, hit coordinates (in {@link HitsMode#IDS}) and
+         * aggregations other than the ones added for grouping.
+         */
+        private void writeSearchResponseHeader(StreamOutput out, StringTable table) throws IOException {
+            out.writeVLong(searchResponse.getTookInMillis());
+            out.writeBoolean(searchResponse.isTimedOut());
+            out.writeOptionalBoolean(searchResponse.isTerminatedEarly());
+            out.writeVInt(searchResponse.getNumReducePhases());
+            out.writeOptionalString(searchResponse.getScrollId());
+            out.writeVInt(searchResponse.getTotalShards());
+            out.writeVInt(searchResponse.getSuccessfulShards());
+            out.writeVInt(searchResponse.getShardFailures().length);
+            for (ShardSearchFailure failure : searchResponse.getShardFailures()) {
+                failure.writeTo(out);
+            }
+
+            SearchHits hits = searchResponse.getHits();
+            out.writeVLong(hits.getTotalHits());
+            out.writeFloat(hits.getMaxScore());
+            SearchHit[] returnedHits = hitsMode == HitsMode.IDS ? hits.getHits() : new SearchHit[0];
+            out.writeVInt(returnedHits.length);
+            for (SearchHit hit : returnedHits) {
+                SearchShardTarget shard = hit.getShard();
+                out.writeBoolean(shard != null);
+                if (shard != null) {
+                    table.writeRef(out, shard.getNodeId());
+                    table.writeRef(out, shard.getShardId().getIndexName());
+                    table.writeRef(out, shard.getShardId().getIndex().getUUID());
+                    out.writeVInt(shard.getShardId().id());
+                }
+                table.writeRef(out, hit.getType());
+                table.writeRef(out, hit.getId());
+                out.writeFloat(hit.getScore());
+            }
+
+            List<InternalAggregation> aggregations = new ArrayList<>();
+            if (searchResponse.getAggregations() != null) {
+                for (Aggregation aggregation : searchResponse.getAggregations()) {
+                    if (!aggregation.getName().startsWith(EntityGrouping.INTERNAL_AGGREGATION_PREFIX)) {
+                        aggregations.add((InternalAggregation) aggregation);
+                    }
+                }
+            }
+            out.writeBoolean(!aggregations.isEmpty());
+            if (!aggregations.isEmpty()) {
+                new InternalAggregations(aggregations).writeTo(out);
+            }
+        }
+
+        private static SearchResponse readSearchResponseHeader(StreamInput in, StringTable table) throws IOException {
+            long tookInMillis = in.readVLong();
+            boolean timedOut = in.readBoolean();
+            Boolean terminatedEarly = in.readOptionalBoolean();
+            int numReducePhases = in.readVInt();
+            String scrollId = in.readOptionalString();
+            int totalShards = in.readVInt();
+            int successfulShards = in.readVInt();
+            ShardSearchFailure[] failures = new ShardSearchFailure[in.readVInt()];
+            for (int i = 0; i < failures.length; i++) {
+                failures[i] = ShardSearchFailure.readShardSearchFailure(in);
+            }
+
+            long totalHits = in.readVLong();
+            float maxScore = in.readFloat();
+            SearchHit[] hits = new SearchHit[in.readVInt()];
+            for (int i = 0; i < hits.length; i++) {
+                SearchShardTarget shard = null;
+                if (in.readBoolean()) {
+                    String nodeId = table.readRef(in);
+                    Index index = new Index(table.readRef(in), table.readRef(in));
+                    shard = new SearchShardTarget(nodeId, new ShardId(index, in.readVInt()));
+                }
+                String type = table.readRef(in);
+                String id = table.readRef(in);
+                hits[i] = new SearchHit(-1, id, type == null ? null : new Text(type), Collections.emptyMap());
+                hits[i].score(in.readFloat());
+                if (shard != null) {
+                    hits[i].shard(shard);
+                }
+            }
+
+            InternalAggregations aggregations = in.readBoolean() ? InternalAggregations.readAggregations(in) : null;
+            InternalSearchResponse internalResponse = new InternalSearchResponse(
+                    new SearchHits(hits, totalHits, maxScore), aggregations, null, null,
+                    timedOut, terminatedEarly, numReducePhases);
+            return new SearchResponse(internalResponse, scrollId, totalShards, successfulShards,
+                    tookInMillis, failures);
+        }
+
         @Override
         public String toString() {
             return ToString.objectToJson(this);
@@ -412,53 +1192,249 @@ public class ClusteringAction
     }
 
     /**
-     * A {@link TransportAction} for {@link ClusteringAction}.
+     * A {@link HandledTransportAction} for {@link ClusteringAction}.
      */
     public static class TransportClusteringAction
-            extends TransportAction<ClusteringAction.ClusteringActionRequest,
+            extends HandledTransportAction<ClusteringAction.ClusteringActionRequest,
             ClusteringAction.ClusteringActionResponse> {
         private final Set<String> langCodeWarnings = new CopyOnWriteArraySet<>();
 
         private final TransportSearchAction searchAction;
+        private final TransportIndicesStatsAction indicesStatsAction;
+        private final StreamingGrouping streamingGrouping;
+        private final ClusteringResultCache resultCache;
+        private final ClusteringStats stats;
+        private final ClusteringAdmission admission;
+        private final CircuitBreaker breaker;
+        private final ClusterService clusterService;
+        private final ClusteringSlowLog slowLog;
+        private final EntityQueryPlanner planner;
+        private final TransportEntityTermStatsAction termStatsAction;
+        private final boolean keyDocValues;
+        private final boolean approximate;
+        private final int shardSampleSize;
 
         @Inject
         public TransportClusteringAction(Settings settings,
                                          ThreadPool threadPool,
                                          TransportService transportService,
                                          TransportSearchAction searchAction,
+                                         TransportSearchScrollAction scrollAction,
+                                         TransportClearScrollAction clearScrollAction,
+                                         TransportIndicesStatsAction indicesStatsAction,
+                                         ClusteringResultCache resultCache,
+                                         ClusteringStats stats,
+                                         ClusteringAdmission admission,
+                                         CircuitBreakerService breakerService,
+                                         ClusterService clusterService,
+                                         ClusteringSlowLog slowLog,
+                                         EntityQueryPlanner planner,
+                                         TransportEntityTermStatsAction termStatsAction,
                                          ActionFilters actionFilters,
                                          IndexNameExpressionResolver indexNameExpressionResolver,
                                          NamedXContentRegistry xContentRegistry) {
             super(settings,
                   ClusteringAction.NAME,
                   threadPool,
+                  transportService,
                   actionFilters,
                   indexNameExpressionResolver,
-                  transportService.getTaskManager());
+                  ClusteringActionRequest::new);
             this.searchAction = searchAction;
+            this.indicesStatsAction = indicesStatsAction;
+            this.resultCache = resultCache;
+            this.stats = stats;
+            this.admission = admission;
+            this.breaker = breakerService.getBreaker(CircuitBreaker.REQUEST);
+            this.clusterService = clusterService;
+            this.slowLog = slowLog;
+            this.planner = planner;
+            this.termStatsAction = termStatsAction;
+            this.streamingGrouping = new StreamingGrouping(searchAction, scrollAction, clearScrollAction,
+                    threadPool.executor(ClusteringPlugin.THREAD_POOL_NAME), admission, breaker,
+                    StreamingGrouping.PAGE_SIZE_SETTING.get(settings),
+                    StreamingGrouping.KEEP_ALIVE_SETTING.get(settings));
+            this.keyDocValues = EntityGrouping.KEY_DOC_VALUES_SETTING.get(settings);
+            this.approximate = EntityGrouping.APPROXIMATE_SETTING.get(settings);
+            this.shardSampleSize = EntityGrouping.SHARD_SAMPLE_SIZE_SETTING.get(settings);
         }
 
         @Override
         protected void doExecute(final ClusteringActionRequest clusteringRequest,
                                  final ActionListener<ClusteringActionResponse> listener) {
+            admission.execute(threadPool.generic(), listener, admittedListener -> {
+                if (clusteringRequest.getApproximate() == null
+                        && (clusteringRequest.getGroupingMode() != GroupingMode.HITS || clusteringRequest.isStreaming())) {
+                    clusteringRequest.setApproximate(approximate);
+                }
+                EntityGrouping.prepare(clusteringRequest, keyDocValues, shardSampleSize);
+                if (resultCache.isEnabled(clusteringRequest)) {
+                    final long tsStart = System.nanoTime();
+                    resultCache.execute(clusteringRequest, indicesStatsAction,
+                            cacheListener -> search(clusteringRequest, cacheListener),
+                            (cached, hitListener) -> respondCached(clusteringRequest, cached, tsStart, hitListener),
+                            admittedListener);
+                } else {
+                    search(clusteringRequest, admittedListener);
+                }
+            });
+        }
+
+        private void search(final ClusteringActionRequest clusteringRequest,
+                            final ActionListener<ClusteringActionResponse> listener) {
+            final long tsStart = System.nanoTime();
+            final PhaseTook took = new PhaseTook(clusteringRequest.getTranslateNanos());
+            final ActionListener<ClusteringActionResponse> recordingListener =
+                    new ActionListener<ClusteringActionResponse>() {
+                @Override
+                public void onResponse(ClusteringActionResponse response) {
+                    stats.record(took);
+                    slowLog(clusteringRequest, took, response,
+                            took.getTranslateNanos() + System.nanoTime() - tsStart);
+                    listener.onResponse(response);
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    listener.onFailure(e);
+                }
+            };
+
+            final Term[] terms = planner.isEnabled()
+                    ? EntityQueryPlanner.terms(clusteringRequest.getSearchRequest())
+                    : null;
+            if (terms == null) {
+                search(clusteringRequest, took, recordingListener);
+                return;
+            }
+
+            planner.plan(clusteringRequest.getSearchRequest(), terms, indicesStatsAction, termStatsAction,
+                    new ActionListener<QueryPlan>() {
+                @Override
+                public void onResponse(QueryPlan plan) {
+                    ActionListener<ClusteringActionResponse> planListener = recordingListener;
+                    if (clusteringRequest.isExplainPlan()) {
+                        planListener = ActionListener.wrap(response -> {
+                            response.setPlan(plan);
+                            recordingListener.onResponse(response);
+                        }, recordingListener::onFailure);
+                    }
+
+                    if (plan.isShortCircuit()
+                            && EntityQueryPlanner.canShortCircuit(clusteringRequest.getSearchRequest())) {
+                        final EntityClusters clusters;
+                        SearchResponse empty = new SearchResponse(InternalSearchResponse.empty(), null, 0, 0,
+                                TimeUnit.NANOSECONDS.toMillis(plan.getTookNanos()), ShardSearchFailure.EMPTY_ARRAY);
+                        try {
+                            clusters = EntityGrouping.group(empty, clusteringRequest);
+                        } catch (Exception e) {
+                            planListener.onFailure(e);
+                            return;
+                        }
+                        took.searchNanos = plan.getTookNanos();
+                        planListener.onResponse(new ClusteringActionResponse(empty, clusters,
+                                clusteringRequest.isPhaseTook() ? took : null, clusteringRequest.getHitsMode()));
+                        return;
+                    }
+                    search(clusteringRequest, took, planListener);
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    // Planning is an optimization only.
+                    logger.debug("Failed to plan entity query.", e);
+                    search(clusteringRequest, took, recordingListener);
+                }
+            });
+        }
+
+        private void search(final ClusteringActionRequest clusteringRequest,
+                            final PhaseTook took,
+                            final ActionListener<ClusteringActionResponse> recordingListener) {
+            if (clusteringRequest.isStreaming() && clusteringRequest.getGroupingMode() == GroupingMode.HITS) {
+                streamingGrouping.execute(clusteringRequest, took, recordingListener);
+                return;
+            }
+
             final long tsSearchStart = System.nanoTime();
             searchAction.execute(clusteringRequest.getSearchRequest(), new ActionListener<SearchResponse>() {
                 @Override
                 public void onFailure(Exception e) {
-                    listener.onFailure(e);
+                    recordingListener.onFailure(e);
                 }
 
                 @Override
                 public void onResponse(SearchResponse response) {
                     final long tsSearchEnd = System.nanoTime();
-                    listener.onResponse(new ClusteringActionResponse(response));
+                    took.searchNanos = tsSearchEnd - tsSearchStart;
+
+                    // Grouping (and rendering, for local REST requests) runs on the
+                    // clustering pool; the time spent waiting for it counts as grouping.
+                    threadPool.executor(ClusteringPlugin.THREAD_POOL_NAME).execute(new AbstractRunnable() {
+                        @Override
+                        public void onFailure(Exception e) {
+                            recordingListener.onFailure(e);
+                        }
+
+                        @Override
+                        protected void doRun() {
+                            final EntityClusters clusters;
+                            long reserved = 0;
+                            try {
+                                reserved = admission.reserve(breaker,
+                                        EntityGrouping.estimateBytes(response, clusteringRequest));
+                                clusters = EntityGrouping.group(response, clusteringRequest);
+                            } catch (Exception e) {
+                                onFailure(e);
+                                return;
+                            } finally {
+                                ClusteringAdmission.release(breaker, reserved);
+                            }
+                            took.groupingNanos = System.nanoTime() - tsSearchEnd;
+
+                            recordingListener.onResponse(new ClusteringActionResponse(response, clusters,
+                                    clusteringRequest.isPhaseTook() ? took : null, clusteringRequest.getHitsMode()));
+                        }
+                    });
                 }
             });
         }
+
+        /**
+         * Responds with a copy of a cached response carrying this request's
+         * timings: the cache lookup counts as the search phase.
+         */
+        private void respondCached(ClusteringActionRequest clusteringRequest, ClusteringActionResponse cached,
+                                   long tsStart, ActionListener<ClusteringActionResponse> listener) {
+            final PhaseTook took = new PhaseTook(clusteringRequest.getTranslateNanos());
+            took.searchNanos = System.nanoTime() - tsStart;
+            ClusteringActionResponse response = new ClusteringActionResponse(cached.getSearchResponse(),
+                    cached.getClusters(), clusteringRequest.isPhaseTook() ? took : null,
+                    clusteringRequest.getHitsMode());
+            stats.record(took);
+            slowLog(clusteringRequest, took, response, took.getTranslateNanos() + took.searchNanos);
+            listener.onResponse(response);
+        }
+
+        private void slowLog(ClusteringActionRequest clusteringRequest, PhaseTook took,
+                             ClusteringActionResponse response, long tookNanos) {
+            try {
+                ClusterState state = clusterService.state();
+                String[] indices = indexNameExpressionResolver.concreteIndexNames(state,
+                        clusteringRequest.getSearchRequest());
+                slowLog.log(state.metaData(), indices, clusteringRequest, took, response, tookNanos);
+            } catch (Exception e) {
+                // Target indices may be gone by now; the response is still valid.
+                logger.debug("Failed to write the clustering slow log.", e);
+            }
+        }
     }
 
     /**
-     * An {@link BaseRestHandler} for {@link ClusteringAction}.
+     * An {@link BaseRestHandler} for {@link ClusteringAction}. Responses are
+     * rendered in the content type negotiated by the channel: the
+     * <code>format</code> parameter, then the <code>Accept</code> header
+     * (JSON, YAML, SMILE or CBOR), then the request body's type.
      */
     public static class RestClusteringAction extends BaseRestHandler {
         /**
@@ -466,10 +1442,23 @@ public class ClusteringAction
          */
         public static String NAME = "_search_with_clusters";
 
+        private final EntityQueryCache queryCache;
+        private final ClusteringStats stats;
+
         public RestClusteringAction(
                 Settings settings,
                 RestController controller) {
+            this(settings, controller, new EntityQueryCache(settings), null);
+        }
+
+        RestClusteringAction(
+                Settings settings,
+                RestController controller,
+                EntityQueryCache queryCache,
+                ClusteringStats stats) {
             super(settings);
+            this.queryCache = queryCache;
+            this.stats = stats;
 
             controller.registerHandler(POST, "/" + NAME, this);
             controller.registerHandler(POST, "/{index}/" + NAME, this);
@@ -507,7 +1496,7 @@ public class ClusteringAction
                     searchRequest.indices(Strings.splitStringByCommaToArray(request.param("index")));
                     searchRequest.types(Strings.splitStringByCommaToArray(request.param("type")));
                     actionBuilder.setSearchRequest(searchRequest);
-                    actionBuilder.setSource(request.content(), request.getXContentRegistry());
+                    actionBuilder.setSource(request.content(), request.getXContentRegistry(), queryCache);
                     break;
 
                 case GET:
@@ -520,16 +1509,58 @@ public class ClusteringAction
                     throw org.entitysearch.elasticsearch.Preconditions.unreachable();
             }
 
+            // Grouping options may be overridden with URL parameters for both methods.
+            if (request.hasParam("grouping")) {
+                actionBuilder.setGroupingMode(GroupingMode.fromString(request.param("grouping")));
+            }
+            if (request.hasParam("include_documents")) {
+                actionBuilder.setIncludeDocuments(request.paramAsBoolean("include_documents", true));
+            }
+            if (request.hasParam("max_hits")) {
+                actionBuilder.setMaxHits(request.paramAsInt("max_hits", Integer.MAX_VALUE));
+            }
+            if (request.hasParam("max_groups")) {
+                actionBuilder.setMaxGroups(request.paramAsInt("max_groups", Integer.MAX_VALUE));
+            }
+            if (request.hasParam("max_docs_per_group")) {
+                actionBuilder.setMaxDocsPerGroup(request.paramAsInt("max_docs_per_group", Integer.MAX_VALUE));
+            }
+            if (request.hasParam("request_cache")) {
+                actionBuilder.setRequestCache(request.paramAsBoolean("request_cache", false));
+            }
+            if (request.hasParam("rank_groups_by")) {
+                actionBuilder.setGroupRanking(GroupRanking.fromString(request.param("rank_groups_by")));
+            }
+            if (request.hasParam("phase_took")) {
+                actionBuilder.setPhaseTook(request.paramAsBoolean("phase_took", false));
+            }
+            if (request.hasParam("hits")) {
+                actionBuilder.setHitsMode(HitsMode.fromString(request.param("hits")));
+            }
+            if (request.hasParam("explain_plan")) {
+                actionBuilder.setExplainPlan(request.paramAsBoolean("explain_plan", false));
+            }
+            if (request.hasParam("approximate")) {
+                actionBuilder.setApproximate(request.paramAsBoolean("approximate", false));
+            }
+            if (request.hasParam("clusters_after")) {
+                actionBuilder.setClustersAfter(request.param("clusters_after"));
+            }
+
             // Dispatch clustering request.
             return channel -> client.execute(ClusteringAction.INSTANCE, actionBuilder.request(),
                     new ActionListener<ClusteringActionResponse>() {
                         @Override
                         public void onResponse(ClusteringActionResponse response) {
                             try {
+                                final long tsRenderStart = System.nanoTime();
                                 XContentBuilder builder = channel.newBuilder();
                                 builder.startObject();
                                 response.toXContent(builder, request);
                                 builder.endObject();
+                                if (stats != null) {
+                                    stats.record(ClusteringStats.Phase.RENDER, System.nanoTime() - tsRenderStart);
+                                }
                                 channel.sendResponse(
                                         new BytesRestResponse(
                                                 response.getSearchResponse().status(),
@@ -0,0 +1,194 @@
+package org.entitysearch.elasticsearch;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+
+/**
+ * Node-level admission control of clustering requests. At most
+ * {@link #MAX_CONCURRENT_SETTING} slots are in use at a time, one per request
+ * (multi requests take one per item); up to {@link #QUEUE_SIZE_SETTING} more
+ * requests wait for their slots, in arrival order, and any further requests
+ * are rejected with an {@link EsRejectedExecutionException} (HTTP 429).
+ *
+ * <p>Memory used by grouping is estimated up front and charged to the
+ * <code>request</code> circuit breaker for as long as grouping runs; a trip
+ * is reported the same way as a rejected admission.
+ */
+final class ClusteringAdmission {
+    /**
+     * Maximum number of clustering requests (or items of multi requests)
+     * executing concurrently on a node.
+     */
+    static final Setting<Integer> MAX_CONCURRENT_SETTING =
+            Setting.intSetting("carrot2.admission.max_concurrent_requests",
+                    s -> Integer.toString(2 * EsExecutors.numberOfProcessors(s)), 1, Property.NodeScope);
+
+    /**
+     * Maximum number of clustering requests waiting for a free slot.
+     */
+    static final Setting<Integer> QUEUE_SIZE_SETTING =
+            Setting.intSetting("carrot2.admission.queue_size", 1000, 0, Property.NodeScope);
+
+    /** The label of reservations on the request circuit breaker. */
+    static final String BREAKER_LABEL = "<clustering_grouping>";
+
+    private final int maxConcurrent;
+    private final int queueSize;
+
+    /** Guarded by <code>this</code>. */
+    private final Queue<Pending> queue = new ArrayDeque<>();
+    /** Slots in use. Guarded by <code>this</code>. */
+    private int inFlight;
+
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder breakerRejected = new LongAdder();
+
+    ClusteringAdmission(Settings settings) {
+        this.maxConcurrent = MAX_CONCURRENT_SETTING.get(settings);
+        this.queueSize = QUEUE_SIZE_SETTING.get(settings);
+    }
+
+    /**
+     * Runs <code>action</code> once a slot is free. The slot is released when
+     * the listener passed to the action completes. Queued actions are started
+     * on <code>executor</code> so that a completing request does not run the
+     * next one on its own stack.
+     */
+    <T> void execute(Executor executor, ActionListener<T> listener, Consumer<ActionListener<T>> action) {
+        execute(executor, 1, listener, action);
+    }
+
+    /**
+     * Runs <code>action</code> once <code>slots</code> slots are free (at most
+     * all of them, so a large multi request can still run on its own).
+     */
+    <T> void execute(Executor executor, int slots, ActionListener<T> listener,
+                     Consumer<ActionListener<T>> action) {
+        final int permits = Math.max(1, Math.min(slots, maxConcurrent));
+        final Runnable task = () -> {
+            ActionListener<T> releasing = new ActionListener<T>() {
+                @Override
+                public void onResponse(T response) {
+                    release(executor, permits);
+                    listener.onResponse(response);
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    release(executor, permits);
+                    listener.onFailure(e);
+                }
+            };
+
+            try {
+                action.accept(releasing);
+            } catch (Exception e) {
+                releasing.onFailure(e);
+            }
+        };
+
+        synchronized (this) {
+            if (!queue.isEmpty() || inFlight + permits > maxConcurrent) {
+                if (queue.size() < queueSize) {
+                    queue.add(new Pending(task, permits));
+                    return;
+                }
+                rejected.increment();
+                listener.onFailure(new EsRejectedExecutionException("rejected clustering request: "
+                        + inFlight + " requests running (max " + maxConcurrent + "), "
+                        + queue.size() + " queued (max " + queueSize + ")"));
+                return;
+            }
+            inFlight += permits;
+        }
+        task.run();
+    }
+
+    private void release(Executor executor, int permits) {
+        final List<Runnable> next = new ArrayList<>();
+        synchronized (this) {
+            inFlight -= permits;
+            while (!queue.isEmpty() && inFlight + queue.peek().permits <= maxConcurrent) {
+                Pending pending = queue.poll();
+                inFlight += pending.permits;
+                next.add(pending.task);
+            }
+        }
+
+        // The slots pass on to the queued requests that fit.
+        for (Runnable task : next) {
+            try {
+                executor.execute(task);
+            } catch (EsRejectedExecutionException e) {
+                task.run();
+            }
+        }
+    }
+
+    private static final class Pending {
+        final Runnable task;
+        final int permits;
+
+        Pending(Runnable task, int permits) {
+            this.task = task;
+            this.permits = permits;
+        }
+    }
+
+    /**
+     * Charges <code>bytes</code> to the breaker.
+     *
+     * @return The reserved bytes, to be passed to {@link #release(CircuitBreaker, long)}.
+     * @throws EsRejectedExecutionException If the breaker trips.
+     */
+    long reserve(CircuitBreaker breaker, long bytes) {
+        if (bytes <= 0) {
+            return 0;
+        }
+        try {
+            breaker.addEstimateBytesAndMaybeBreak(bytes, BREAKER_LABEL);
+        } catch (CircuitBreakingException e) {
+            breakerRejected.increment();
+            throw new EsRejectedExecutionException("rejected clustering request: " + e.getMessage());
+        }
+        return bytes;
+    }
+
+    static void release(CircuitBreaker breaker, long bytes) {
+        if (bytes > 0) {
+            breaker.addWithoutBreaking(-bytes);
+        }
+    }
+
+    synchronized Stats stats() {
+        return new Stats(inFlight, queue.size(), rejected.sum(), breakerRejected.sum());
+    }
+
+    static final class Stats {
+        final long inFlight;
+        final long queued;
+        final long rejected;
+        final long breakerRejected;
+
+        Stats(long inFlight, long queued, long rejected, long breakerRejected) {
+            this.inFlight = inFlight;
+            this.queued = queued;
+            this.rejected = rejected;
+            this.breakerRejected = breakerRejected;
+        }
+    }
+}
@@ -1,31 +1,51 @@
 package org.entitysearch.elasticsearch;
 
 import org.entitysearch.elasticsearch.ClusteringAction.TransportClusteringAction;
+import org.entitysearch.elasticsearch.ClusteringStatsAction.TransportClusteringStatsAction;
+import org.entitysearch.elasticsearch.EntityTermStatsAction.TransportEntityTermStatsAction;
+import org.entitysearch.elasticsearch.MultiClusteringAction.TransportMultiClusteringAction;
 import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.ActionResponse;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.client.transport.TransportClient;
 import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
 import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.cluster.service.ClusterService;
 import org.elasticsearch.common.component.LifecycleComponent;
 import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.common.settings.ClusterSettings;
 import org.elasticsearch.common.settings.IndexScopedSettings;
+import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.settings.SettingsFilter;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.ingest.Processor;
 import org.elasticsearch.plugins.ActionPlugin;
+import org.elasticsearch.plugins.IngestPlugin;
 import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.plugins.SearchPlugin;
 import org.elasticsearch.rest.RestController;
 import org.elasticsearch.rest.RestHandler;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.FixedExecutorBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.watcher.ResourceWatcherService;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.function.Supplier;
 
 /** */
-public class ClusteringPlugin extends Plugin implements ActionPlugin {
+public class ClusteringPlugin extends Plugin implements ActionPlugin, SearchPlugin, IngestPlugin {
     /**
      * Master on/off switch property for the plugin (general settings).
      */
@@ -52,25 +72,143 @@ public class ClusteringPlugin extends Plugin implements ActionPlugin {
 
     /**
      * A property key with the size
-     * of the clustering controller's algorithm pool. By default the size
-     * is zero, meaning the pool is sized dynamically. You can specify a fixed
-     * number of component instances to limit resource usage.
+     * of the {@link #THREAD_POOL_NAME clustering} thread pool. By default the size
+     * is zero, meaning one thread per processor. You can specify a fixed
+     * number of threads to limit resource usage.
      */
     public static final String DEFAULT_COMPONENT_SIZE_PROPERTY_NAME = "controller.pool-size";
 
+    /**
+     * Name of the plugin's configuration file, resolved under
+     * <code>config/elasticsearch-carrot2</code>.
+     */
+    public static final String CONFIG_FILE_NAME = "config.yml";
+
+    /**
+     * Name of the fixed thread pool grouping and response building run on. Its
+     * size is {@link #DEFAULT_COMPONENT_SIZE_PROPERTY_NAME} from the plugin's
+     * configuration file (the number of processors if unset or zero); both
+     * size and queue may be overridden with <code>thread_pool.clustering.*</code>.
+     */
+    public static final String THREAD_POOL_NAME = "clustering";
+
+    /**
+     * Default queue size of the {@link #THREAD_POOL_NAME} pool.
+     */
+    static final int THREAD_POOL_QUEUE_SIZE = 1000;
+
     private final boolean transportClient;
     private final boolean pluginEnabled;
+    private final EntityQueryCache queryCache;
+    private final ClusteringResultCache resultCache;
+    private final ClusteringAdmission admission;
+    private final ClusteringStats stats;
+    private final ClusteringSlowLog slowLog;
+    private final EntityQueryPlanner planner;
+    private final ClusteringWarmup warmup;
 
     public ClusteringPlugin(Settings settings) {
         this.pluginEnabled = settings.getAsBoolean(DEFAULT_ENABLED_PROPERTY_NAME, true);
         this.transportClient = TransportClient.CLIENT_TYPE.equals(Client.CLIENT_TYPE_SETTING_S.get(settings));
+        this.queryCache = new EntityQueryCache(settings);
+        this.resultCache = new ClusteringResultCache(settings);
+        this.admission = new ClusteringAdmission(settings);
+        this.warmup = new ClusteringWarmup(settings, queryCache);
+        this.stats = new ClusteringStats(queryCache, resultCache, admission, warmup);
+        this.slowLog = new ClusteringSlowLog(settings);
+        this.planner = new EntityQueryPlanner(settings);
+    }
+
+    @Override
+    public Collection<Object> createComponents(Client client, ClusterService clusterService, ThreadPool threadPool,
+                                               ResourceWatcherService resourceWatcherService,
+                                               ScriptService scriptService,
+                                               NamedXContentRegistry xContentRegistry) {
+        warmup.init(client, clusterService, threadPool, xContentRegistry);
+        clusterService.addListener(resultCache);
+        return Arrays.asList(queryCache, resultCache, admission, stats, slowLog, planner, warmup);
+    }
+
+    @Override
+    public void close() throws IOException {
+        slowLog.close();
+    }
+
+    @Override
+    public List<ExecutorBuilder<?>> getExecutorBuilders(Settings settings) {
+        return Collections.singletonList(new FixedExecutorBuilder(settings, THREAD_POOL_NAME,
+                threadPoolSize(settings), THREAD_POOL_QUEUE_SIZE));
+    }
+
+    private int threadPoolSize(Settings settings) {
+        int size = 0;
+        if (!transportClient) {
+            Path configFile = new Environment(settings).configFile().resolve(PLUGIN_NAME).resolve(CONFIG_FILE_NAME);
+            if (Files.isRegularFile(configFile)) {
+                try {
+                    size = Settings.builder().loadFromPath(configFile).build()
+                            .getAsInt(DEFAULT_COMPONENT_SIZE_PROPERTY_NAME, 0);
+                } catch (IOException e) {
+                    throw new ClusteringException("Could not read configuration file: " + configFile, e);
+                }
+            }
+        }
+        return size > 0 ? size : EsExecutors.numberOfProcessors(settings);
+    }
+
+    @Override
+    public List<Setting<?>> getSettings() {
+        return Arrays.asList(
+                EntityQueryCache.QUERY_CACHE_SIZE_SETTING,
+                EntityQueryTranslator.ENTITY_NEAR_SETTING,
+                EntityGrouping.KEY_DOC_VALUES_SETTING,
+                EntityGrouping.APPROXIMATE_SETTING,
+                EntityGrouping.SHARD_SAMPLE_SIZE_SETTING,
+                StreamingGrouping.PAGE_SIZE_SETTING,
+                StreamingGrouping.KEEP_ALIVE_SETTING,
+                ClusteringResultCache.ENABLED_SETTING,
+                ClusteringResultCache.SIZE_SETTING,
+                ClusteringAdmission.MAX_CONCURRENT_SETTING,
+                ClusteringAdmission.QUEUE_SIZE_SETTING,
+                ClusteringSlowLog.THRESHOLD_WARN_SETTING,
+                ClusteringSlowLog.THRESHOLD_INFO_SETTING,
+                ClusteringSlowLog.THRESHOLD_DEBUG_SETTING,
+                ClusteringSlowLog.THRESHOLD_TRACE_SETTING,
+                ClusteringSlowLog.CAPTURE_FILE_SETTING,
+                EntityQueryPlanner.ENABLED_SETTING,
+                EntityQueryPlanner.CACHE_SIZE_SETTING,
+                ClusteringWarmup.FILE_SETTING,
+                ClusteringWarmup.CONCURRENCY_SETTING,
+                ClusteringWarmup.WAIT_TIMEOUT_SETTING);
+    }
+
+    @Override
+    public List<QuerySpec<?>> getQueries() {
+        return Collections.singletonList(new QuerySpec<>(EntityNearQueryBuilder.NAME,
+                EntityNearQueryBuilder::new, EntityNearQueryBuilder::fromXContent));
+    }
+
+    @Override
+    public List<AggregationSpec> getAggregations() {
+        return Collections.singletonList(new AggregationSpec(EntityGroupsAggregationBuilder.NAME,
+                EntityGroupsAggregationBuilder::new, EntityGroupsAggregationBuilder::parse)
+                .addResultReader(InternalEntityGroups::new));
+    }
+
+    @Override
+    public Map<String, Processor.Factory> getProcessors(Processor.Parameters parameters) {
+        return Collections.singletonMap(EntityAnnotateProcessor.TYPE,
+                new EntityAnnotateProcessor.Factory(parameters.analysisRegistry));
     }
 
     @Override
     public List<ActionHandler<? extends ActionRequest, ? extends ActionResponse>> getActions() {
         if (pluginEnabled) {
             return Arrays.asList(
-                    new ActionHandler<>(ClusteringAction.INSTANCE, TransportClusteringAction.class)
+                    new ActionHandler<>(ClusteringAction.INSTANCE, TransportClusteringAction.class),
+                    new ActionHandler<>(MultiClusteringAction.INSTANCE, TransportMultiClusteringAction.class),
+                    new ActionHandler<>(ClusteringStatsAction.INSTANCE, TransportClusteringStatsAction.class),
+                    new ActionHandler<>(EntityTermStatsAction.INSTANCE, TransportEntityTermStatsAction.class)
                     );
         }
         return Collections.emptyList();
@@ -81,7 +219,9 @@ public class ClusteringPlugin extends Plugin implements ActionPlugin {
       ClusterSettings clusterSettings, IndexScopedSettings indexScopedSettings, SettingsFilter settingsFilter,
       IndexNameExpressionResolver indexNameExpressionResolver, Supplier<DiscoveryNodes> nodesInCluster) {
     return Arrays.asList(
-        new ClusteringAction.RestClusteringAction(settings, restController));
+        new ClusteringAction.RestClusteringAction(settings, restController, queryCache, stats),
+        new MultiClusteringAction.RestMultiClusteringAction(settings, restController, queryCache),
+        new ClusteringStatsAction.RestClusteringStatsAction(settings, restController));
     }
     
 }
@@ -0,0 +1,280 @@
+package org.entitysearch.elasticsearch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.stats.IndexStats;
+import org.elasticsearch.action.admin.indices.stats.IndicesStatsRequest;
+import org.elasticsearch.action.admin.indices.stats.IndicesStatsResponse;
+import org.elasticsearch.action.admin.indices.stats.TransportIndicesStatsAction;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterStateListener;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.entitysearch.elasticsearch.ClusteringAction.ClusteringActionRequest;
+import org.entitysearch.elasticsearch.ClusteringAction.ClusteringActionResponse;
+
+/**
+ * A node-level cache of clustering responses, bounded by memory with LRU
+ * eviction. Entries are keyed by the serialized (translated) request, less
+ * the options that do not change the cached response, and the refresh count
+ * of each target index, so a refresh of any target index makes
+ * entries computed before it unreachable; they are invalidated as soon as the
+ * new refresh count is observed.
+ *
+ * <p>Refresh counts are looked up with an indices stats request before each
+ * cached execution, which is much cheaper than re-running the span query and
+ * regrouping. Counts and entries of deleted indices are dropped as the
+ * cluster state changes.
+ *
+ * <p>Cached responses are shared; a hit is handed over as is, for the
+ * caller to copy with its own timings.
+ */
+final class ClusteringResultCache implements ClusterStateListener {
+    /**
+     * Whether clustering responses are cached by default. Individual requests
+     * may override this with <code>request_cache</code>.
+     */
+    static final Setting<Boolean> ENABLED_SETTING =
+            Setting.boolSetting("carrot2.result_cache.enabled", false, Property.NodeScope);
+
+    /**
+     * Maximum memory used by cached responses.
+     */
+    static final Setting<ByteSizeValue> SIZE_SETTING =
+            Setting.memorySizeSetting("carrot2.result_cache.size", "1%", Property.NodeScope);
+
+    private final boolean enabledByDefault;
+    private final Cache<Key, Entry> cache;
+
+    /** The last observed refresh count of each index. */
+    private final Map<String, Long> generations = new ConcurrentHashMap<>();
+
+    ClusteringResultCache(Settings settings) {
+        this.enabledByDefault = ENABLED_SETTING.get(settings);
+        this.cache = CacheBuilder.<Key, Entry>builder()
+                .setMaximumWeight(SIZE_SETTING.get(settings).getBytes())
+                .weigher((key, entry) -> key.bytes.length() + entry.bytes)
+                .build();
+    }
+
+    /**
+     * @return <code>true</code> if the request's response may be cached.
+     */
+    boolean isEnabled(ClusteringActionRequest request) {
+        Boolean requestCache = request.getRequestCache();
+        boolean enabled = requestCache != null ? requestCache : enabledByDefault;
+        return enabled && request.getSearchRequest().scroll() == null && !request.isExplainPlan();
+    }
+
+    /**
+     * Passes the cached response for the request to <code>hit</code> if one
+     * exists for the current refresh counts of its target indices, otherwise
+     * runs <code>compute</code> and caches its successful response.
+     */
+    void execute(ClusteringActionRequest request,
+                 TransportIndicesStatsAction indicesStatsAction,
+                 Consumer<ActionListener<ClusteringActionResponse>> compute,
+                 BiConsumer<ClusteringActionResponse, ActionListener<ClusteringActionResponse>> hit,
+                 ActionListener<ClusteringActionResponse> listener) {
+        final BytesReference requestBytes;
+        try {
+            BytesStreamOutput out = new BytesStreamOutput();
+            request.writeCacheKey(out);
+            requestBytes = out.bytes();
+        } catch (IOException e) {
+            compute.accept(listener);
+            return;
+        }
+
+        SearchRequest searchRequest = request.getSearchRequest();
+        IndicesStatsRequest statsRequest = new IndicesStatsRequest()
+                .indices(searchRequest.indices())
+                .clear()
+                .refresh(true);
+        statsRequest.indicesOptions(searchRequest.indicesOptions());
+
+        indicesStatsAction.execute(statsRequest, new ActionListener<IndicesStatsResponse>() {
+            @Override
+            public void onResponse(IndicesStatsResponse statsResponse) {
+                TreeMap<String, Long> indexGenerations = new TreeMap<>();
+                for (Map.Entry<String, IndexStats> e : statsResponse.getIndices().entrySet()) {
+                    indexGenerations.put(e.getKey(), e.getValue().getTotal().getRefresh().getTotal());
+                }
+                invalidateStale(indexGenerations);
+
+                final Key key = new Key(requestBytes, indexGenerations);
+                Entry entry = cache.get(key);
+                if (entry != null) {
+                    hit.accept(entry.response, listener);
+                    return;
+                }
+
+                compute.accept(new ActionListener<ClusteringActionResponse>() {
+                    @Override
+                    public void onResponse(ClusteringActionResponse response) {
+                        put(key, response);
+                        listener.onResponse(response);
+                    }
+
+                    @Override
+                    public void onFailure(Exception e) {
+                        listener.onFailure(e);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                // Without refresh counts we can't tell if entries are current.
+                compute.accept(listener);
+            }
+        });
+    }
+
+    private void put(Key key, ClusteringActionResponse response) {
+        if (!response.getSearchResponse().isTimedOut()
+                && response.getSearchResponse().getFailedShards() == 0) {
+            try {
+                BytesStreamOutput out = new BytesStreamOutput();
+                response.writeTo(out);
+                cache.put(key, new Entry(response, out.size()));
+            } catch (IOException e) {
+                // Not cacheable.
+            }
+        }
+    }
+
+    /**
+     * Invalidates entries computed against older refresh counts of any index
+     * whose count changed since last seen.
+     */
+    private void invalidateStale(Map<String, Long> indexGenerations) {
+        boolean changed = false;
+        for (Map.Entry<String, Long> e : indexGenerations.entrySet()) {
+            Long previous = generations.put(e.getKey(), e.getValue());
+            changed |= previous != null && !previous.equals(e.getValue());
+        }
+
+        if (changed) {
+            List<Key> stale = new ArrayList<>();
+            for (Key key : cache.keys()) {
+                for (Map.Entry<String, Long> e : key.generations.entrySet()) {
+                    Long current = generations.get(e.getKey());
+                    if (current != null && !current.equals(e.getValue())) {
+                        stale.add(key);
+                        break;
+                    }
+                }
+            }
+            for (Key key : stale) {
+                cache.invalidate(key);
+            }
+        }
+    }
+
+    /**
+     * Forgets refresh counts and entries of deleted indices.
+     */
+    @Override
+    public void clusterChanged(ClusterChangedEvent event) {
+        if (!event.metaDataChanged()) {
+            return;
+        }
+        MetaData metaData = event.state().metaData();
+        if (generations.keySet().removeIf(index -> !metaData.hasIndex(index))) {
+            List<Key> stale = new ArrayList<>();
+            for (Key key : cache.keys()) {
+                for (String index : key.generations.keySet()) {
+                    if (!metaData.hasIndex(index)) {
+                        stale.add(key);
+                        break;
+                    }
+                }
+            }
+            for (Key key : stale) {
+                cache.invalidate(key);
+            }
+        }
+    }
+
+    /**
+     * @return Current cache counters.
+     */
+    Stats stats() {
+        Cache.CacheStats stats = cache.stats();
+        return new Stats(stats.getHits(), stats.getMisses(), stats.getEvictions(), cache.count(), cache.weight());
+    }
+
+    /**
+     * A snapshot of the cache's counters.
+     */
+    static final class Stats {
+        final long hits;
+        final long misses;
+        final long evictions;
+        final long count;
+        final long memoryBytes;
+
+        Stats(long hits, long misses, long evictions, long count, long memoryBytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.count = count;
+            this.memoryBytes = memoryBytes;
+        }
+    }
+
+    private static final class Entry {
+        final ClusteringActionResponse response;
+        final long bytes;
+
+        Entry(ClusteringActionResponse response, long bytes) {
+            this.response = response;
+            this.bytes = bytes;
+        }
+    }
+
+    private static final class Key {
+        final BytesReference bytes;
+        final Map<String, Long> generations;
+
+        Key(BytesReference bytes, Map<String, Long> generations) {
+            this.bytes = bytes;
+            this.generations = generations;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key other = (Key) o;
+            return bytes.equals(other.bytes) && generations.equals(other.generations);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(bytes, generations);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package org.entitysearch.elasticsearch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.entitysearch.elasticsearch.ClusteringAction.ClusteringActionRequest;
+import org.entitysearch.elasticsearch.ClusteringAction.ClusteringActionResponse;
+
+/**
+ * Slow log of clustering requests. Like the search slow log, thresholds are
+ * set per index with the dynamic <code>index.clustering.slowlog.threshold.*</code>
+ * settings (disabled by default); a request over several indices uses the
+ * lowest threshold set on any of them. Entries go to the
+ * <code>index.clustering.slowlog</code> logger and hold the original entity
+ * query, the translated query, per-phase timings and hit and group counts.
+ *
+ * <p>If {@link #CAPTURE_FILE_SETTING} is set, each logged request is also
+ * appended, as a single JSON line, to that file in the node's logs directory.
+ * Lines hold the request body and options, so the <code>replay</code> task
+ * can run them against a test cluster. Requests built without a body (GET
+ * requests or the Java API) are logged but cannot be replayed.
+ */
+final class ClusteringSlowLog implements Closeable {
+    static final String PREFIX = "index.clustering.slowlog";
+
+    static final Setting<TimeValue> THRESHOLD_WARN_SETTING = threshold("warn");
+    static final Setting<TimeValue> THRESHOLD_INFO_SETTING = threshold("info");
+    static final Setting<TimeValue> THRESHOLD_DEBUG_SETTING = threshold("debug");
+    static final Setting<TimeValue> THRESHOLD_TRACE_SETTING = threshold("trace");
+
+    /**
+     * Name of the file logged requests are captured to, resolved against the
+     * logs directory. Empty (the default) disables capturing.
+     */
+    static final Setting<String> CAPTURE_FILE_SETTING =
+            Setting.simpleString("carrot2.slowlog.capture_file", Property.NodeScope);
+
+    private static Setting<TimeValue> threshold(String level) {
+        return Setting.timeSetting(PREFIX + ".threshold." + level, TimeValue.timeValueNanos(-1),
+                TimeValue.timeValueMillis(-1), Property.Dynamic, Property.IndexScope);
+    }
+
+    enum Level {
+        WARN, INFO, DEBUG, TRACE;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final Logger logger = Loggers.getLogger(PREFIX);
+    private final Settings settings;
+    private final String captureFile;
+
+    /** Thresholds of each index, valid for {@link #metaDataVersion}. */
+    private final Map<String, Thresholds> thresholds = new ConcurrentHashMap<>();
+    private volatile long metaDataVersion = -1;
+
+    /** Guarded by <code>this</code>; opened on the first capture. */
+    private Writer capture;
+
+    ClusteringSlowLog(Settings settings) {
+        this.settings = settings;
+        this.captureFile = CAPTURE_FILE_SETTING.get(settings);
+    }
+
+    /**
+     * Logs (and captures) the request if it took longer than a threshold of
+     * any of its target indices.
+     *
+     * @param tookNanos The request's total time on this node.
+     */
+    void log(MetaData metaData, String[] indices, ClusteringActionRequest request, PhaseTook took,
+             ClusteringActionResponse response, long tookNanos) {
+        Level level = level(metaData, indices, tookNanos);
+        if (level == null) {
+            return;
+        }
+
+        switch (level) {
+            case WARN:
+                if (logger.isWarnEnabled()) {
+                    logger.warn("{}", new Message(indices, request, took, response, tookNanos));
+                }
+                break;
+            case INFO:
+                if (logger.isInfoEnabled()) {
+                    logger.info("{}", new Message(indices, request, took, response, tookNanos));
+                }
+                break;
+            case DEBUG:
+                if (logger.isDebugEnabled()) {
+                    logger.debug("{}", new Message(indices, request, took, response, tookNanos));
+                }
+                break;
+            case TRACE:
+                if (logger.isTraceEnabled()) {
+                    logger.trace("{}", new Message(indices, request, took, response, tookNanos));
+                }
+                break;
+            default:
+                throw Preconditions.unreachable();
+        }
+
+        if (Strings.hasLength(captureFile)) {
+            try {
+                capture(level, request, tookNanos);
+            } catch (IOException e) {
+                logger.warn("Failed to capture a slow clustering request.", e);
+            }
+        }
+    }
+
+    /**
+     * @return The most severe level whose threshold <code>tookNanos</code>
+     * reached, or <code>null</code> if none.
+     */
+    private Level level(MetaData metaData, String[] indices, long tookNanos) {
+        if (metaData.version() != metaDataVersion) {
+            thresholds.clear();
+            metaDataVersion = metaData.version();
+        }
+
+        Level level = null;
+        for (String index : indices) {
+            Thresholds indexThresholds = thresholds.get(index);
+            if (indexThresholds == null) {
+                IndexMetaData indexMetaData = metaData.index(index);
+                if (indexMetaData == null) {
+                    continue;
+                }
+                indexThresholds = new Thresholds(indexMetaData.getSettings());
+                thresholds.put(index, indexThresholds);
+            }
+            Level indexLevel = indexThresholds.level(tookNanos);
+            if (indexLevel != null && (level == null || indexLevel.compareTo(level) < 0)) {
+                level = indexLevel;
+            }
+        }
+        return level;
+    }
+
+    private synchronized void capture(Level level, ClusteringActionRequest request, long tookNanos)
+            throws IOException {
+        XContentBuilder line = XContentFactory.jsonBuilder();
+        line.startObject();
+        line.field("timestamp", System.currentTimeMillis());
+        line.field("level", level.toString());
+        line.field("took_millis", TimeUnit.NANOSECONDS.toMillis(tookNanos));
+        SearchRequest searchRequest = request.getSearchRequest();
+        line.array("indices", searchRequest.indices());
+        line.array("types", searchRequest.types());
+        line.startObject("params");
+        line.field("grouping", request.getGroupingMode().toString());
+        line.field("include_documents", request.isIncludeDocuments());
+        if (request.isStreaming()) {
+            line.field("max_hits", request.getMaxHits());
+        }
+        if (request.getMaxGroups() != Integer.MAX_VALUE) {
+            line.field("max_groups", request.getMaxGroups());
+        }
+        if (request.getMaxDocsPerGroup() != Integer.MAX_VALUE) {
+            line.field("max_docs_per_group", request.getMaxDocsPerGroup());
+        }
+        line.field("rank_groups_by", request.getGroupRanking().toString());
+        line.field("hits", request.getHitsMode().toString());
+        line.field("approximate", request.isApproximate());
+        line.endObject();
+        BytesReference source = request.getRawSource();
+        if (source != null) {
+            line.field("body", XContentHelper.convertToMap(source, true, XContentFactory.xContentType(source)).v2());
+        }
+        line.endObject();
+
+        if (capture == null) {
+            Path path = new Environment(settings).logsFile().resolve(captureFile);
+            capture = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+        capture.write(line.string());
+        capture.write('\n');
+        capture.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (capture != null) {
+            capture.close();
+            capture = null;
+        }
+    }
+
+    /**
+     * Thresholds of a single index, in nanoseconds; negative if disabled.
+     */
+    private static final class Thresholds {
+        private final long warn;
+        private final long info;
+        private final long debug;
+        private final long trace;
+
+        Thresholds(Settings indexSettings) {
+            this.warn = THRESHOLD_WARN_SETTING.get(indexSettings).nanos();
+            this.info = THRESHOLD_INFO_SETTING.get(indexSettings).nanos();
+            this.debug = THRESHOLD_DEBUG_SETTING.get(indexSettings).nanos();
+            this.trace = THRESHOLD_TRACE_SETTING.get(indexSettings).nanos();
+        }
+
+        Level level(long tookNanos) {
+            if (warn >= 0 && tookNanos > warn) {
+                return Level.WARN;
+            } else if (info >= 0 && tookNanos > info) {
+                return Level.INFO;
+            } else if (debug >= 0 && tookNanos > debug) {
+                return Level.DEBUG;
+            } else if (trace >= 0 && tookNanos > trace) {
+                return Level.TRACE;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A slow log entry, formatted only if the logger's level is enabled.
+     */
+    private static final class Message {
+        private final String[] indices;
+        private final ClusteringActionRequest request;
+        private final PhaseTook took;
+        private final ClusteringActionResponse response;
+        private final long tookNanos;
+
+        Message(String[] indices, ClusteringActionRequest request, PhaseTook took,
+                ClusteringActionResponse response, long tookNanos) {
+            this.indices = indices;
+            this.request = request;
+            this.took = took;
+            this.response = response;
+            this.tookNanos = tookNanos;
+        }
+
+        @Override
+        public String toString() {
+            SearchSourceBuilder source = request.getSearchRequest().source();
+            StringBuilder sb = new StringBuilder();
+            sb.append(Strings.arrayToCommaDelimitedString(indices)).append(' ');
+            sb.append("took[").append(TimeValue.timeValueNanos(tookNanos)).append("], ");
+            sb.append("took_millis[").append(TimeUnit.NANOSECONDS.toMillis(tookNanos)).append("], ");
+            sb.append("translate_millis[").append(TimeUnit.NANOSECONDS.toMillis(took.getTranslateNanos())).append("], ");
+            sb.append("search_millis[").append(TimeUnit.NANOSECONDS.toMillis(took.getSearchNanos())).append("], ");
+            sb.append("grouping_millis[").append(TimeUnit.NANOSECONDS.toMillis(took.getGroupingNanos())).append("], ");
+            sb.append("total_hits[").append(response.getSearchResponse().getHits().getTotalHits()).append("], ");
+            sb.append("groups[").append(response.getClusters().size()).append("], ");
+            sb.append("grouping[").append(request.getGroupingMode()).append("], ");
+            sb.append("types[").append(Strings.arrayToCommaDelimitedString(request.getSearchRequest().types()))
+                    .append("], ");
+            sb.append("entity_query[").append(request.getEntityQuery() == null ? "" : request.getEntityQuery())
+                    .append("], ");
+            sb.append("query[").append(source == null || source.query() == null ? "" : Strings.toString(source.query()))
+                    .append(']');
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,384 @@
+package org.entitysearch.elasticsearch;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * Node-level statistics of clustering requests: latency histograms of each
+ * request phase, the counters of the node's caches and of admission control,
+ * and the progress of the startup warm-up.
+ */
+final class ClusteringStats {
+    /**
+     * Request phases with a latency histogram.
+     */
+    enum Phase {
+        TRANSLATE,
+        SEARCH,
+        GROUPING,
+        RENDER;
+
+        String fieldName() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final Histogram[] phases = new Histogram[Phase.values().length];
+    private final EntityQueryCache queryCache;
+    private final ClusteringResultCache resultCache;
+    private final ClusteringAdmission admission;
+    private final ClusteringWarmup warmup;
+
+    ClusteringStats(EntityQueryCache queryCache, ClusteringResultCache resultCache, ClusteringAdmission admission,
+                    ClusteringWarmup warmup) {
+        this.queryCache = queryCache;
+        this.resultCache = resultCache;
+        this.admission = admission;
+        this.warmup = warmup;
+        for (int i = 0; i < phases.length; i++) {
+            phases[i] = new Histogram();
+        }
+    }
+
+    void record(Phase phase, long nanos) {
+        phases[phase.ordinal()].record(nanos);
+    }
+
+    void record(PhaseTook took) {
+        // Requests built programmatically have nothing to translate.
+        if (took.translateNanos > 0) {
+            record(Phase.TRANSLATE, took.translateNanos);
+        }
+        record(Phase.SEARCH, took.searchNanos);
+        record(Phase.GROUPING, took.groupingNanos);
+    }
+
+    Snapshot snapshot() {
+        HistogramSnapshot[] phaseSnapshots = new HistogramSnapshot[phases.length];
+        for (int i = 0; i < phases.length; i++) {
+            phaseSnapshots[i] = phases[i].snapshot();
+        }
+
+        EntityQueryCache.Stats query = queryCache.stats();
+        ClusteringResultCache.Stats result = resultCache.stats();
+        ClusteringAdmission.Stats admitted = admission.stats();
+        ClusteringWarmup.Stats warmed = warmup.stats();
+        return new Snapshot(phaseSnapshots,
+                new long[] {query.hits, query.misses, query.evictions, query.count},
+                new long[] {result.hits, result.misses, result.evictions, result.count, result.memoryBytes},
+                new long[] {admitted.inFlight, admitted.queued, admitted.rejected, admitted.breakerRejected},
+                warmed.state,
+                new long[] {warmed.requests, warmed.completed, warmed.failed,
+                        TimeUnit.NANOSECONDS.toMillis(warmed.tookNanos)});
+    }
+
+    /**
+     * A lock-free, log-linear latency histogram with four buckets per power
+     * of two (about 19% relative error on percentiles).
+     */
+    static final class Histogram {
+        static final int SUB_BUCKET_BITS = 2;
+        static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        static final int BUCKETS = 64 * SUB_BUCKETS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        void record(long nanos) {
+            nanos = Math.max(nanos, 1);
+            buckets.incrementAndGet(bucket(nanos));
+            count.increment();
+            sum.add(nanos);
+        }
+
+        HistogramSnapshot snapshot() {
+            long[] copy = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                copy[i] = buckets.get(i);
+            }
+            return new HistogramSnapshot(count.sum(), sum.sum(), copy);
+        }
+
+        static int bucket(long value) {
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = exponent >= SUB_BUCKET_BITS
+                    ? (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1))
+                    : 0;
+            return exponent * SUB_BUCKETS + sub;
+        }
+
+        static long lowerBound(int bucket) {
+            int exponent = bucket / SUB_BUCKETS;
+            int sub = bucket % SUB_BUCKETS;
+            return exponent >= SUB_BUCKET_BITS
+                    ? ((long) (SUB_BUCKETS + sub)) << (exponent - SUB_BUCKET_BITS)
+                    : 1L << exponent;
+        }
+    }
+
+    /**
+     * Point-in-time histogram contents; snapshots from many nodes can be merged.
+     */
+    static final class HistogramSnapshot implements Writeable, ToXContent {
+        static final String COUNT = "count";
+        static final String MEAN = "mean_in_millis";
+        static final String P50 = "p50_in_millis";
+        static final String P99 = "p99_in_millis";
+
+        private long count;
+        private long sumNanos;
+        private final long[] buckets;
+
+        HistogramSnapshot(long count, long sumNanos, long[] buckets) {
+            this.count = count;
+            this.sumNanos = sumNanos;
+            this.buckets = buckets;
+        }
+
+        HistogramSnapshot(StreamInput in) throws IOException {
+            count = in.readVLong();
+            sumNanos = in.readVLong();
+            buckets = new long[Histogram.BUCKETS];
+            int nonEmpty = in.readVInt();
+            for (int i = 0; i < nonEmpty; i++) {
+                buckets[in.readVInt()] = in.readVLong();
+            }
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeVLong(count);
+            out.writeVLong(sumNanos);
+            int nonEmpty = 0;
+            for (long bucket : buckets) {
+                if (bucket != 0) {
+                    nonEmpty++;
+                }
+            }
+            out.writeVInt(nonEmpty);
+            for (int i = 0; i < buckets.length; i++) {
+                if (buckets[i] != 0) {
+                    out.writeVInt(i);
+                    out.writeVLong(buckets[i]);
+                }
+            }
+        }
+
+        void merge(HistogramSnapshot other) {
+            count += other.count;
+            sumNanos += other.sumNanos;
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] += other.buckets[i];
+            }
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        double meanMillis() {
+            return count == 0 ? 0 : sumNanos / (double) count / 1e6;
+        }
+
+        /**
+         * @return The midpoint of the bucket holding the given quantile, in milliseconds.
+         */
+        double percentileMillis(double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && buckets[i] > 0) {
+                    long lower = Histogram.lowerBound(i);
+                    long upper = i + 1 < buckets.length ? Histogram.lowerBound(i + 1) : lower;
+                    return (lower + upper) / 2.0 / 1e6;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.field(COUNT, count);
+            builder.field(MEAN, meanMillis());
+            builder.field(P50, percentileMillis(0.5));
+            builder.field(P99, percentileMillis(0.99));
+            return builder;
+        }
+    }
+
+    /**
+     * All node-level clustering statistics at one point in time.
+     */
+    static final class Snapshot implements Writeable, ToXContent {
+        static final String PHASES = "phases";
+        static final String QUERY_CACHE = "query_cache";
+        static final String RESULT_CACHE = "result_cache";
+        static final String HITS = "hits";
+        static final String MISSES = "misses";
+        static final String EVICTIONS = "evictions";
+        static final String ENTRIES = "entries";
+        static final String MEMORY_SIZE_IN_BYTES = "memory_size_in_bytes";
+        static final String ADMISSION = "admission";
+        static final String IN_FLIGHT = "in_flight";
+        static final String QUEUED = "queued";
+        static final String REJECTED = "rejected";
+        static final String BREAKER_REJECTED = "breaker_rejected";
+        static final String WARMUP = "warmup";
+        static final String STATE = "state";
+        static final String REQUESTS = "requests";
+        static final String COMPLETED = "completed";
+        static final String FAILED = "failed";
+        static final String TOOK = "took_in_millis";
+
+        private final HistogramSnapshot[] phases;
+
+        /** Hits, misses, evictions and entries of the query cache. */
+        private final long[] queryCache;
+
+        /** Hits, misses, evictions, entries and memory of the result cache. */
+        private final long[] resultCache;
+
+        /** Running, queued, rejected and breaker-rejected requests. */
+        private final long[] admission;
+
+        private ClusteringWarmup.State warmupState;
+
+        /** Requests, completed, failed and duration (millis) of the warm-up. */
+        private final long[] warmup;
+
+        Snapshot(HistogramSnapshot[] phases, long[] queryCache, long[] resultCache, long[] admission,
+                 ClusteringWarmup.State warmupState, long[] warmup) {
+            this.phases = phases;
+            this.queryCache = queryCache;
+            this.resultCache = resultCache;
+            this.admission = admission;
+            this.warmupState = warmupState;
+            this.warmup = warmup;
+        }
+
+        Snapshot(StreamInput in) throws IOException {
+            phases = new HistogramSnapshot[in.readVInt()];
+            for (int i = 0; i < phases.length; i++) {
+                phases[i] = new HistogramSnapshot(in);
+            }
+            queryCache = in.readVLongArray();
+            resultCache = in.readVLongArray();
+            admission = in.readVLongArray();
+            warmupState = ClusteringWarmup.State.fromId(in.readByte());
+            warmup = in.readVLongArray();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeVInt(phases.length);
+            for (HistogramSnapshot phase : phases) {
+                phase.writeTo(out);
+            }
+            out.writeVLongArray(queryCache);
+            out.writeVLongArray(resultCache);
+            out.writeVLongArray(admission);
+            out.writeByte(warmupState.id());
+            out.writeVLongArray(warmup);
+        }
+
+        /**
+         * @return An empty snapshot to {@link #merge(Snapshot)} node snapshots into.
+         */
+        static Snapshot empty() {
+            HistogramSnapshot[] phases = new HistogramSnapshot[Phase.values().length];
+            for (int i = 0; i < phases.length; i++) {
+                phases[i] = new HistogramSnapshot(0, 0, new long[Histogram.BUCKETS]);
+            }
+            return new Snapshot(phases, new long[4], new long[5], new long[4],
+                    ClusteringWarmup.State.DISABLED, new long[4]);
+        }
+
+        void merge(Snapshot other) {
+            for (int i = 0; i < phases.length; i++) {
+                phases[i].merge(other.phases[i]);
+            }
+            for (int i = 0; i < queryCache.length; i++) {
+                queryCache[i] += other.queryCache[i];
+            }
+            for (int i = 0; i < resultCache.length; i++) {
+                resultCache[i] += other.resultCache[i];
+            }
+            for (int i = 0; i < admission.length; i++) {
+                admission[i] += other.admission[i];
+            }
+
+            // The total is as far as the least advanced node with a warm-up
+            // and took as long as the slowest one.
+            if (warmupState == ClusteringWarmup.State.DISABLED
+                    || (other.warmupState != ClusteringWarmup.State.DISABLED
+                        && other.warmupState.compareTo(warmupState) < 0)) {
+                warmupState = other.warmupState;
+            }
+            for (int i = 0; i < 3; i++) {
+                warmup[i] += other.warmup[i];
+            }
+            warmup[3] = Math.max(warmup[3], other.warmup[3]);
+        }
+
+        HistogramSnapshot getPhase(Phase phase) {
+            return phases[phase.ordinal()];
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject(PHASES);
+            for (Phase phase : Phase.values()) {
+                builder.startObject(phase.fieldName());
+                phases[phase.ordinal()].toXContent(builder, params);
+                builder.endObject();
+            }
+            builder.endObject();
+
+            builder.startObject(QUERY_CACHE);
+            builder.field(HITS, queryCache[0]);
+            builder.field(MISSES, queryCache[1]);
+            builder.field(EVICTIONS, queryCache[2]);
+            builder.field(ENTRIES, queryCache[3]);
+            builder.endObject();
+
+            builder.startObject(RESULT_CACHE);
+            builder.field(HITS, resultCache[0]);
+            builder.field(MISSES, resultCache[1]);
+            builder.field(EVICTIONS, resultCache[2]);
+            builder.field(ENTRIES, resultCache[3]);
+            builder.field(MEMORY_SIZE_IN_BYTES, resultCache[4]);
+            builder.endObject();
+
+            builder.startObject(ADMISSION);
+            builder.field(IN_FLIGHT, admission[0]);
+            builder.field(QUEUED, admission[1]);
+            builder.field(REJECTED, admission[2]);
+            builder.field(BREAKER_REJECTED, admission[3]);
+            builder.endObject();
+
+            builder.startObject(WARMUP);
+            builder.field(STATE, warmupState.toString());
+            builder.field(REQUESTS, warmup[0]);
+            builder.field(COMPLETED, warmup[1]);
+            builder.field(FAILED, warmup[2]);
+            builder.field(TOOK, warmup[3]);
+            builder.endObject();
+            return builder;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package org.entitysearch.elasticsearch;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.BaseNodeRequest;
+import org.elasticsearch.action.support.nodes.BaseNodeResponse;
+import org.elasticsearch.action.support.nodes.BaseNodesRequest;
+import org.elasticsearch.action.support.nodes.BaseNodesResponse;
+import org.elasticsearch.action.support.nodes.NodesOperationRequestBuilder;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.client.ElasticsearchClient;
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.RestActions;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+/**
+ * Collects {@link ClusteringStats} from the nodes of the cluster.
+ */
+public class ClusteringStatsAction
+        extends Action<ClusteringStatsAction.NodesClusteringStatsRequest,
+        ClusteringStatsAction.NodesClusteringStatsResponse,
+        ClusteringStatsAction.NodesClusteringStatsRequestBuilder> {
+    /* Action name. */
+    public static final String NAME = "cluster:monitor/clustering/stats";
+
+    /* Reusable singleton. */
+    public static final ClusteringStatsAction INSTANCE = new ClusteringStatsAction();
+
+    private ClusteringStatsAction() {
+        super(NAME);
+    }
+
+    @Override
+    public NodesClusteringStatsResponse newResponse() {
+        return new NodesClusteringStatsResponse();
+    }
+
+    @Override
+    public NodesClusteringStatsRequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new NodesClusteringStatsRequestBuilder(client);
+    }
+
+    /**
+     * Selects the nodes to collect statistics from (all nodes by default).
+     */
+    public static class NodesClusteringStatsRequest extends BaseNodesRequest<NodesClusteringStatsRequest> {
+        public NodesClusteringStatsRequest() {
+        }
+
+        public NodesClusteringStatsRequest(String... nodesIds) {
+            super(nodesIds);
+        }
+    }
+
+    /**
+     * A {@link NodesOperationRequestBuilder} for {@link ClusteringStatsAction}.
+     */
+    public static class NodesClusteringStatsRequestBuilder
+            extends NodesOperationRequestBuilder<NodesClusteringStatsRequest,
+            NodesClusteringStatsResponse,
+            NodesClusteringStatsRequestBuilder> {
+        public NodesClusteringStatsRequestBuilder(ElasticsearchClient client) {
+            super(client, ClusteringStatsAction.INSTANCE, new NodesClusteringStatsRequest());
+        }
+    }
+
+    /**
+     * The per-node request sent by {@link TransportClusteringStatsAction}.
+     */
+    public static class NodeClusteringStatsRequest extends BaseNodeRequest {
+        public NodeClusteringStatsRequest() {
+        }
+
+        NodeClusteringStatsRequest(String nodeId) {
+            super(nodeId);
+        }
+    }
+
+    /**
+     * Statistics of a single node.
+     */
+    public static class NodeClusteringStats extends BaseNodeResponse implements ToXContent {
+        private ClusteringStats.Snapshot stats;
+
+        NodeClusteringStats() {
+        }
+
+        NodeClusteringStats(DiscoveryNode node, ClusteringStats.Snapshot stats) {
+            super(node);
+            this.stats = stats;
+        }
+
+        ClusteringStats.Snapshot getStats() {
+            return stats;
+        }
+
+        static NodeClusteringStats readNodeStats(StreamInput in) throws IOException {
+            NodeClusteringStats nodeStats = new NodeClusteringStats();
+            nodeStats.readFrom(in);
+            return nodeStats;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            stats = new ClusteringStats.Snapshot(in);
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            stats.writeTo(out);
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.field("name", getNode().getName());
+            builder.field("host", getNode().getHostName());
+            return stats.toXContent(builder, params);
+        }
+    }
+
+    /**
+     * Statistics of all responding nodes, along with their totals.
+     */
+    public static class NodesClusteringStatsResponse
+            extends BaseNodesResponse<NodeClusteringStats> implements ToXContent {
+        NodesClusteringStatsResponse() {
+        }
+
+        NodesClusteringStatsResponse(ClusterName clusterName,
+                                     List<NodeClusteringStats> nodes,
+                                     List<FailedNodeException> failures) {
+            super(clusterName, nodes, failures);
+        }
+
+        @Override
+        protected List<NodeClusteringStats> readNodesFrom(StreamInput in) throws IOException {
+            return in.readList(NodeClusteringStats::readNodeStats);
+        }
+
+        @Override
+        protected void writeNodesTo(StreamOutput out, List<NodeClusteringStats> nodes) throws IOException {
+            out.writeStreamableList(nodes);
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            ClusteringStats.Snapshot total = ClusteringStats.Snapshot.empty();
+            for (NodeClusteringStats node : getNodes()) {
+                total.merge(node.getStats());
+            }
+
+            builder.startObject("total");
+            total.toXContent(builder, params);
+            builder.endObject();
+
+            builder.startObject("nodes");
+            for (NodeClusteringStats node : getNodes()) {
+                builder.startObject(node.getNode().getId());
+                node.toXContent(builder, params);
+                builder.endObject();
+            }
+            builder.endObject();
+            return builder;
+        }
+
+        @Override
+        public String toString() {
+            return ToString.objectToJson(this);
+        }
+    }
+
+    /**
+     * A {@link TransportNodesAction} for {@link ClusteringStatsAction}.
+     */
+    public static class TransportClusteringStatsAction
+            extends TransportNodesAction<NodesClusteringStatsRequest,
+            NodesClusteringStatsResponse,
+            NodeClusteringStatsRequest,
+            NodeClusteringStats> {
+        private final ClusteringStats stats;
+
+        @Inject
+        public TransportClusteringStatsAction(Settings settings,
+                                              ThreadPool threadPool,
+                                              ClusterService clusterService,
+                                              TransportService transportService,
+                                              ClusteringStats stats,
+                                              ActionFilters actionFilters,
+                                              IndexNameExpressionResolver indexNameExpressionResolver) {
+            super(settings,
+                  ClusteringStatsAction.NAME,
+                  threadPool,
+                  clusterService,
+                  transportService,
+                  actionFilters,
+                  indexNameExpressionResolver,
+                  NodesClusteringStatsRequest::new,
+                  NodeClusteringStatsRequest::new,
+                  ThreadPool.Names.MANAGEMENT,
+                  NodeClusteringStats.class);
+            this.stats = stats;
+        }
+
+        @Override
+        protected NodesClusteringStatsResponse newResponse(NodesClusteringStatsRequest request,
+                                                           List<NodeClusteringStats> responses,
+                                                           List<FailedNodeException> failures) {
+            return new NodesClusteringStatsResponse(clusterService.getClusterName(), responses, failures);
+        }
+
+        @Override
+        protected NodeClusteringStatsRequest newNodeRequest(String nodeId, NodesClusteringStatsRequest request) {
+            return new NodeClusteringStatsRequest(nodeId);
+        }
+
+        @Override
+        protected NodeClusteringStats newNodeResponse() {
+            return new NodeClusteringStats();
+        }
+
+        @Override
+        protected NodeClusteringStats nodeOperation(NodeClusteringStatsRequest request) {
+            return new NodeClusteringStats(clusterService.localNode(), stats.snapshot());
+        }
+
+        protected boolean accumulateExceptions() {
+            return false;
+        }
+    }
+
+    /**
+     * An {@link BaseRestHandler} for {@link ClusteringStatsAction}.
+     */
+    public static class RestClusteringStatsAction extends BaseRestHandler {
+        public RestClusteringStatsAction(Settings settings, RestController controller) {
+            super(settings);
+            controller.registerHandler(GET, "/" + ClusteringAction.RestClusteringAction.NAME + "/stats", this);
+            controller.registerHandler(GET, "/" + ClusteringAction.RestClusteringAction.NAME + "/stats/{nodeId}", this);
+        }
+
+        @Override
+        public RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
+            NodesClusteringStatsRequest statsRequest = new NodesClusteringStatsRequest(
+                    Strings.splitStringByCommaToArray(request.param("nodeId")));
+            statsRequest.timeout(request.param("timeout"));
+            return channel -> client.execute(ClusteringStatsAction.INSTANCE, statsRequest,
+                    new RestActions.NodesResponseRestListener<>(channel));
+        }
+    }
+}
@@ -0,0 +1,432 @@
+package org.entitysearch.elasticsearch;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.ClusterStateListener;
+import org.elasticsearch.cluster.ClusterStateObserver;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.routing.IndexRoutingTable;
+import org.elasticsearch.cluster.routing.IndexShardRoutingTable;
+import org.elasticsearch.cluster.routing.RoutingNode;
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.gateway.GatewayService;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.entitysearch.elasticsearch.ClusteringAction.ClusteringActionRequest;
+import org.entitysearch.elasticsearch.ClusteringAction.ClusteringActionResponse;
+
+/**
+ * Replays a file of clustering requests when the node starts, so that the
+ * first user requests after a restart do not pay for cold file system and
+ * query caches, global ordinals of the entity field, the entity query cache
+ * and unoptimized code.
+ *
+ * <p>The file ({@link #FILE_SETTING}) is resolved like the
+ * {@link ClusteringPlugin#DEFAULT_RESOURCES_PROPERTY_NAME resources} path:
+ * relative to <code>config/elasticsearch-carrot2</code>, or absolute. It holds
+ * one JSON request per line, in the format the slow log captures requests
+ * in (see {@link ClusteringSlowLog#CAPTURE_FILE_SETTING}):
+ * <code>indices</code>, <code>types</code>, the request <code>body</code>
+ * and <code>params</code> overriding options of the body. Other keys are
+ * ignored, so a capture file can be used as is.
+ *
+ * <p>The file is read once the node has joined a cluster with a recovered
+ * state. Replay then waits (up to {@link #WAIT_TIMEOUT_SETTING}) until every
+ * shard of the target indices has an active primary and none of their copies
+ * is initializing or relocating to this node; nodes that hold no copies of
+ * them do not wait for any. Requests prefer local
+ * shard copies, bypass the result cache and run at most
+ * {@link #CONCURRENCY_SETTING} at a time. Progress and duration are reported
+ * in {@link ClusteringStats}.
+ */
+final class ClusteringWarmup extends AbstractLifecycleComponent implements ClusterStateListener {
+    /**
+     * The warm-up file. Empty (the default) disables warm-up.
+     */
+    static final Setting<String> FILE_SETTING =
+            Setting.simpleString("carrot2.warmup.file", Property.NodeScope);
+
+    /**
+     * Maximum number of warm-up requests executing concurrently.
+     */
+    static final Setting<Integer> CONCURRENCY_SETTING =
+            Setting.intSetting("carrot2.warmup.concurrency", 2, 1, Property.NodeScope);
+
+    /**
+     * How long to wait for the target indices' shards to start before
+     * replaying anyway.
+     */
+    static final Setting<TimeValue> WAIT_TIMEOUT_SETTING =
+            Setting.timeSetting("carrot2.warmup.wait_timeout", TimeValue.timeValueMinutes(10), Property.NodeScope);
+
+    /**
+     * Warm-up progress of a node.
+     */
+    enum State {
+        /** No warm-up file is configured. */
+        DISABLED((byte) 0),
+
+        /** Waiting for the node to join and for target shards to start. */
+        WAITING((byte) 1),
+
+        /** Requests are being replayed. */
+        RUNNING((byte) 2),
+
+        /** All requests were replayed (or the file could not be read). */
+        DONE((byte) 3);
+
+        private final byte id;
+
+        State(byte id) {
+            this.id = id;
+        }
+
+        byte id() {
+            return id;
+        }
+
+        static State fromId(byte id) {
+            for (State state : values()) {
+                if (state.id == id) {
+                    return state;
+                }
+            }
+            throw new IllegalArgumentException("Unknown warm-up state id: " + id);
+        }
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final Path file;
+    private final int concurrency;
+    private final TimeValue waitTimeout;
+    private final EntityQueryCache queryCache;
+    private final IndexNameExpressionResolver indexNameExpressionResolver;
+
+    private Client client;
+    private ClusterService clusterService;
+    private ThreadPool threadPool;
+    private NamedXContentRegistry xContentRegistry;
+
+    private final AtomicBoolean triggered = new AtomicBoolean();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private volatile State state;
+    private volatile int requests;
+    private volatile long tsStart;
+    private volatile long tsEnd;
+
+    ClusteringWarmup(Settings settings, EntityQueryCache queryCache) {
+        super(settings);
+        String fileName = FILE_SETTING.get(settings);
+        this.file = Strings.hasLength(fileName)
+                ? new Environment(settings).configFile().resolve(ClusteringPlugin.PLUGIN_NAME).resolve(fileName)
+                : null;
+        this.concurrency = CONCURRENCY_SETTING.get(settings);
+        this.waitTimeout = WAIT_TIMEOUT_SETTING.get(settings);
+        this.queryCache = queryCache;
+        this.indexNameExpressionResolver = new IndexNameExpressionResolver(settings);
+        this.state = file == null ? State.DISABLED : State.WAITING;
+    }
+
+    /**
+     * Hands over node services, available once components are created.
+     */
+    void init(Client client, ClusterService clusterService, ThreadPool threadPool,
+              NamedXContentRegistry xContentRegistry) {
+        this.client = client;
+        this.clusterService = clusterService;
+        this.threadPool = threadPool;
+        this.xContentRegistry = xContentRegistry;
+    }
+
+    @Override
+    protected void doStart() {
+        if (file != null) {
+            clusterService.addListener(this);
+        }
+    }
+
+    @Override
+    protected void doStop() {
+        if (file != null) {
+            clusterService.removeListener(this);
+        }
+    }
+
+    @Override
+    protected void doClose() {
+    }
+
+    @Override
+    public void clusterChanged(ClusterChangedEvent event) {
+        ClusterState clusterState = event.state();
+        if (clusterState.nodes().getMasterNodeId() == null
+                || clusterState.blocks().hasGlobalBlock(GatewayService.STATE_NOT_RECOVERED_BLOCK)) {
+            return;
+        }
+
+        if (triggered.compareAndSet(false, true)) {
+            clusterService.removeListener(this);
+            threadPool.generic().execute(this::load);
+        }
+    }
+
+    /**
+     * Reads the warm-up file and waits for local copies of the target indices.
+     */
+    private void load() {
+        final List<ClusteringActionRequest> parsed = new ArrayList<>();
+        final Set<String> indices = new LinkedHashSet<>();
+        boolean allIndices = false;
+        try {
+            int lineNumber = 0;
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                lineNumber++;
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                try {
+                    ClusteringActionRequest request = parse(line);
+                    String[] requestIndices = request.getSearchRequest().indices();
+                    if (requestIndices.length == 0) {
+                        allIndices = true;
+                    }
+                    indices.addAll(Arrays.asList(requestIndices));
+                    parsed.add(request);
+                } catch (Exception e) {
+                    logger.warn("Skipping invalid warm-up request at line {} of {}: {}", lineNumber, file,
+                            e.getMessage());
+                    failed.increment();
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Could not read the warm-up file: " + file, e);
+            finish();
+            return;
+        }
+
+        final String[] expressions = allIndices ? Strings.EMPTY_ARRAY : indices.toArray(new String[indices.size()]);
+        ClusterStateObserver observer = new ClusterStateObserver(clusterService, waitTimeout, logger,
+                threadPool.getThreadContext());
+        if (targetShardsStarted(observer.setAndGetObservedState(), expressions)) {
+            replay(parsed);
+            return;
+        }
+        observer.waitForNextChange(new ClusterStateObserver.Listener() {
+            @Override
+            public void onNewClusterState(ClusterState state) {
+                threadPool.generic().execute(() -> replay(parsed));
+            }
+
+            @Override
+            public void onClusterServiceClose() {
+                finish();
+            }
+
+            @Override
+            public void onTimeout(TimeValue timeout) {
+                logger.warn("Shards of warm-up indices are not started after {}, replaying anyway.", timeout);
+                threadPool.generic().execute(() -> replay(parsed));
+            }
+        }, state -> targetShardsStarted(state, expressions));
+    }
+
+    /**
+     * @return <code>true</code> if every shard of the indices
+     * <code>expressions</code> resolve to has an active primary and no copy
+     * of them is initializing (or relocating) on this node. Nodes that hold
+     * no copies of the indices do not wait for any.
+     */
+    private boolean targetShardsStarted(ClusterState clusterState, String[] expressions) {
+        Set<String> targets = new HashSet<>(Arrays.asList(indexNameExpressionResolver.concreteIndexNames(
+                clusterState, IndicesOptions.lenientExpandOpen(), expressions)));
+        for (String index : targets) {
+            IndexRoutingTable indexRoutingTable = clusterState.routingTable().index(index);
+            if (indexRoutingTable == null) {
+                return false;
+            }
+            for (IndexShardRoutingTable shardRoutingTable : indexRoutingTable) {
+                if (!shardRoutingTable.primaryShard().active()) {
+                    return false;
+                }
+            }
+        }
+
+        RoutingNode localNode = clusterState.getRoutingNodes().node(clusterState.nodes().getLocalNodeId());
+        if (localNode != null) {
+            for (ShardRouting shard : localNode) {
+                if (shard.initializing() && targets.contains(shard.getIndexName())) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The request of a warm-up line.
+     */
+    @SuppressWarnings("unchecked")
+    private ClusteringActionRequest parse(String line) throws IOException {
+        Map<String, Object> entry = XContentHelper.convertToMap(XContentType.JSON.xContent(), line, true);
+        Map<String, Object> body = (Map<String, Object>) entry.get("body");
+        if (body == null) {
+            throw new IllegalArgumentException("Expected a request [body].");
+        }
+
+        SearchRequest searchRequest = new SearchRequest(toArray((List<?>) entry.get("indices")))
+                .types(toArray((List<?>) entry.get("types")))
+                .preference("_local");
+        Map<String, Object> source = new HashMap<>(body);
+        Map<String, Object> params = (Map<String, Object>) entry.get("params");
+        if (params != null) {
+            source.putAll(params);
+        }
+
+        ClusteringActionRequest request = new ClusteringActionRequest();
+        request.setSearchRequest(searchRequest);
+        request.source(XContentFactory.jsonBuilder().map(source).bytes(), xContentRegistry, queryCache);
+        request.setRequestCache(false);
+        return request;
+    }
+
+    private static String[] toArray(List<?> values) {
+        if (values == null) {
+            return Strings.EMPTY_ARRAY;
+        }
+        String[] array = new String[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = String.valueOf(values.get(i));
+        }
+        return array;
+    }
+
+    private void replay(List<ClusteringActionRequest> parsed) {
+        // Lines that could not be parsed are counted as failed requests.
+        requests = parsed.size() + (int) failed.sum();
+        tsStart = System.nanoTime();
+        state = State.RUNNING;
+        logger.info("Warming up with {} clustering requests from {}.", parsed.size(), file);
+
+        int workers = Math.min(concurrency, parsed.size());
+        if (workers == 0) {
+            finish();
+            return;
+        }
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger running = new AtomicInteger(workers);
+        for (int i = 0; i < workers; i++) {
+            runNext(parsed, next, running);
+        }
+    }
+
+    /**
+     * Executes the next pending request; each of the workers keeps a single
+     * request in flight.
+     */
+    private void runNext(List<ClusteringActionRequest> parsed, AtomicInteger next, AtomicInteger running) {
+        int i = next.getAndIncrement();
+        if (i >= parsed.size() || lifecycle.stoppedOrClosed()) {
+            if (running.decrementAndGet() == 0) {
+                finish();
+            }
+            return;
+        }
+
+        client.execute(ClusteringAction.INSTANCE, parsed.get(i), new ActionListener<ClusteringActionResponse>() {
+            @Override
+            public void onResponse(ClusteringActionResponse response) {
+                completed.increment();
+                fork();
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                logger.debug("Warm-up request failed.", e);
+                failed.increment();
+                fork();
+            }
+
+            private void fork() {
+                try {
+                    threadPool.generic().execute(() -> runNext(parsed, next, running));
+                } catch (EsRejectedExecutionException e) {
+                    // The node is shutting down.
+                    if (running.decrementAndGet() == 0) {
+                        finish();
+                    }
+                }
+            }
+        });
+    }
+
+    private void finish() {
+        tsEnd = System.nanoTime();
+        state = State.DONE;
+        if (tsStart != 0) {
+            logger.info("Warm-up finished in {}: {} requests completed, {} failed.",
+                    TimeValue.timeValueNanos(tsEnd - tsStart), completed.sum(), failed.sum());
+        }
+    }
+
+    Stats stats() {
+        long tookNanos = 0;
+        if (tsStart != 0) {
+            tookNanos = (state == State.DONE ? tsEnd : System.nanoTime()) - tsStart;
+        }
+        return new Stats(state, requests, completed.sum(), failed.sum(), tookNanos);
+    }
+
+    static final class Stats {
+        final State state;
+        final long requests;
+        final long completed;
+        final long failed;
+        final long tookNanos;
+
+        Stats(State state, long requests, long completed, long failed, long tookNanos) {
+            this.state = state;
+            this.requests = requests;
+            this.completed = completed;
+            this.failed = failed;
+            this.tookNanos = tookNanos;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package org.entitysearch.elasticsearch;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Objects;
+
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.entitysearch.elasticsearch.ClusteringAction.ClusteringActionRequest;
+
+/**
+ * A position in the ranked list of groups, passed between pages as the
+ * opaque <code>clusters_after</code> token. It holds the rank value (size or
+ * score) and key of the last group of a page, plus a fingerprint of the
+ * delegate search the page was computed from (indices, types, source,
+ * <code>max_hits</code> and whether it is approximate); a token is only
+ * accepted with the same search, grouping mode and ranking. The page size
+ * is <code>max_groups</code> and may change between pages.
+ *
+ * <p>Groups ranked before the cursor are skipped before they are selected:
+ * in {@link GroupingMode#HITS} they never enter the top-k heap, in
+ * {@link GroupingMode#ENTITY_GROUPS} shards drop them before picking their
+ * <code>shard_size</code> best groups. The delegate search itself is run
+ * again for every page, since group sizes depend on all of its matches.
+ */
+final class ClustersCursor implements Writeable {
+    private static final byte VERSION = 1;
+
+    private final GroupingMode groupingMode;
+    private final GroupRanking ranking;
+    private final int fingerprint;
+    private final double value;
+    private final String key;
+
+    ClustersCursor(GroupingMode groupingMode, GroupRanking ranking, int fingerprint, double value, String key) {
+        this.groupingMode = groupingMode;
+        this.ranking = ranking;
+        this.fingerprint = fingerprint;
+        this.value = value;
+        this.key = key;
+    }
+
+    ClustersCursor(StreamInput in) throws IOException {
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unknown clusters_after token version: " + version);
+        }
+        groupingMode = GroupingMode.fromId(in.readByte());
+        ranking = GroupRanking.fromId(in.readByte());
+        fingerprint = in.readInt();
+        value = in.readDouble();
+        key = in.readOptionalString();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeByte(VERSION);
+        out.writeByte(groupingMode.id());
+        out.writeByte(ranking.id());
+        out.writeInt(fingerprint);
+        out.writeDouble(value);
+        out.writeOptionalString(key);
+    }
+
+    GroupingMode getGroupingMode() {
+        return groupingMode;
+    }
+
+    GroupRanking getRanking() {
+        return ranking;
+    }
+
+    /**
+     * @return The rank value of the last returned group: its size or its
+     * score, as rendered in the response.
+     */
+    double getValue() {
+        return value;
+    }
+
+    /**
+     * @return The key of the last returned group, may be <code>null</code>.
+     */
+    String getKey() {
+        return key;
+    }
+
+    /**
+     * @return <code>true</code> if a group with the given rank value and key
+     * ranks strictly after the cursor: a lower value, or the same value and
+     * a greater key (<code>null</code> keys first).
+     */
+    boolean isAfter(double value, String key) {
+        int cmp = Double.compare(value, this.value);
+        if (cmp != 0) {
+            return cmp < 0;
+        }
+        if (key == null || this.key == null) {
+            return key != null;
+        }
+        return key.compareTo(this.key) > 0;
+    }
+
+    /**
+     * @return The token form of this cursor.
+     */
+    String encode() {
+        try (BytesStreamOutput out = new BytesStreamOutput()) {
+            writeTo(out);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(BytesReference.toBytes(out.bytes()));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException If the token is malformed.
+     */
+    static ClustersCursor decode(String token) {
+        try {
+            byte[] bytes = Base64.getUrlDecoder().decode(token);
+            return new ClustersCursor(StreamInput.wrap(bytes));
+        } catch (IllegalArgumentException | IOException e) {
+            throw new IllegalArgumentException("Invalid clusters_after token [" + token + "]", e);
+        }
+    }
+
+    /**
+     * Fingerprints the request's delegate search before it is rewritten for
+     * grouping, binds it to the request and checks the request's cursor (if
+     * any) against it.
+     *
+     * @throws IllegalArgumentException If the cursor came from another search.
+     */
+    static void bind(ClusteringActionRequest request) {
+        SearchRequest searchRequest = request.getSearchRequest();
+        int fingerprint = Objects.hash(
+                Arrays.hashCode(searchRequest.indices()),
+                Arrays.hashCode(searchRequest.types()),
+                searchRequest.source() == null ? null : searchRequest.source().toString(),
+                request.getMaxHits(),
+                request.isApproximate());
+        request.setSearchFingerprint(fingerprint);
+
+        ClustersCursor after = request.getClustersAfter();
+        if (after != null && after.fingerprint != fingerprint) {
+            throw new IllegalArgumentException("clusters_after token does not belong to this search request");
+        }
+    }
+
+    /**
+     * @return <code>clusters</code> with a cursor to the next page if the
+     * page is full, as is otherwise.
+     */
+    static EntityClusters page(EntityClusters clusters, ClusteringActionRequest request) {
+        int pageSize;
+        switch (request.getGroupingMode()) {
+            case HITS:
+                pageSize = request.getMaxGroups();
+                break;
+            case ENTITY_GROUPS:
+                pageSize = Math.min(request.getMaxGroups(), EntityGrouping.MAX_AGGREGATION_GROUPS);
+                break;
+            case AGGREGATION:
+                return clusters;
+            default:
+                throw Preconditions.unreachable();
+        }
+        if (pageSize == Integer.MAX_VALUE || clusters.size() < pageSize || clusters.size() == 0) {
+            return clusters;
+        }
+
+        int last = clusters.size() - 1;
+        double value = request.getGroupRanking() == GroupRanking.SIZE
+                ? clusters.getDocCount(last)
+                : clusters.getScore(last);
+        ClustersCursor next = new ClustersCursor(request.getGroupingMode(), request.getGroupRanking(),
+                request.getSearchFingerprint(), value, clusters.getName(last));
+        return clusters.withNextAfter(next.encode());
+    }
+}
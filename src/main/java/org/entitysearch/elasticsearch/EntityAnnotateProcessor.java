@@ -0,0 +1,330 @@
+package org.entitysearch.elasticsearch;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.elasticsearch.index.analysis.AnalysisRegistry;
+import org.elasticsearch.ingest.AbstractProcessor;
+import org.elasticsearch.ingest.ConfigurationUtils;
+import org.elasticsearch.ingest.IngestDocument;
+import org.elasticsearch.ingest.Processor;
+
+/**
+ * The <code>entity_annotate</code> ingest processor: derives the fields
+ * entity queries and grouping rely on from a text field and a list of entity
+ * annotations, in a single pass over the text's tokens.
+ *
+ * <p>Annotations are objects with the entity <code>type</code>, the
+ * character offsets <code>start</code> (inclusive) and <code>end</code>
+ * (exclusive) of the mention in the text, and an optional grouping
+ * <code>key</code> (the mention's text by default):
+ *
+ * <pre>
+ * { "text": "Barack Obama was born in Hawaii",
+ *   "entities": [ { "type": "person", "start": 0, "end": 12, "key": "Barack_Obama" },
+ *                 { "type": "location", "start": 25, "end": 31 } ] }
+ * </pre>
+ *
+ * <p>The text is tokenized with <code>analyzer</code>, which must be the
+ * analyzer the text field and the masked fields are mapped with (the
+ * <code>standard</code> analyzer of <code>text</code> fields by default;
+ * ingest only sees node-level analyzers, not index ones). For each entity
+ * type present the processor sets a field named after the type, holding the
+ * text with every analyzed token of a mention replaced by
+ * {@link EntityQueryTranslator#ENTITY_PLACEHOLDER}, and its
+ * {@link EntityQueryTranslator#BEGIN_SUFFIX} variant in which only the first
+ * token of a mention is replaced. Text between tokens is kept as is, so the
+ * masked fields analyze to the same positions as the text. The key of the
+ * first mention is stored in {@link EntityGrouping#ENTITY_FIELD}, which should
+ * be mapped as a <code>keyword</code> (with doc values) for grouping to use it.
+ *
+ * <p>Options: <code>field</code> (<code>text</code>), <code>annotations_field</code>
+ * (<code>entities</code>), <code>target_field</code> (the grouping key,
+ * <code>entityContent</code>), <code>analyzer</code> (<code>standard</code>),
+ * <code>begin_fields</code> (<code>true</code>), <code>remove_annotations</code>
+ * (<code>true</code>) and <code>ignore_missing</code> (<code>false</code>).
+ */
+final class EntityAnnotateProcessor extends AbstractProcessor {
+    static final String TYPE = "entity_annotate";
+
+    private static final byte NONE = 0;
+    private static final byte INSIDE = 1;
+    private static final byte BEGIN = 2;
+
+    private final String field;
+    private final String annotationsField;
+    private final String targetField;
+    private final Analyzer analyzer;
+    private final boolean beginFields;
+    private final boolean removeAnnotations;
+    private final boolean ignoreMissing;
+
+    EntityAnnotateProcessor(String tag, String field, String annotationsField, String targetField, Analyzer analyzer,
+                            boolean beginFields, boolean removeAnnotations, boolean ignoreMissing) {
+        super(tag);
+        this.field = field;
+        this.annotationsField = annotationsField;
+        this.targetField = targetField;
+        this.analyzer = analyzer;
+        this.beginFields = beginFields;
+        this.removeAnnotations = removeAnnotations;
+        this.ignoreMissing = ignoreMissing;
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    @Override
+    public void execute(IngestDocument document) {
+        if (!document.hasField(field)) {
+            if (ignoreMissing) {
+                return;
+            }
+            throw new IllegalArgumentException("field [" + field + "] not present as part of path [" + field + "]");
+        }
+        String text = document.getFieldValue(field, String.class);
+
+        List<?> annotations = document.hasField(annotationsField)
+                ? document.getFieldValue(annotationsField, List.class)
+                : null;
+        if (annotations == null || annotations.isEmpty()) {
+            if (removeAnnotations && annotations != null) {
+                document.removeField(annotationsField);
+            }
+            return;
+        }
+
+        Tokens tokens = new Tokens(analyzer, field, text);
+
+        // Mark the tokens of each mention, per entity type.
+        Map<String, byte[]> marks = new LinkedHashMap<>();
+        String key = null;
+        for (Object annotation : annotations) {
+            if (!(annotation instanceof Map)) {
+                throw new IllegalArgumentException("[" + annotationsField + "] must hold objects, got ["
+                        + annotation + "]");
+            }
+            Map<?, ?> mention = (Map<?, ?>) annotation;
+            String type = string(mention, "type");
+            if (type.equals(field) || type.equals(targetField)) {
+                throw new IllegalArgumentException("Annotation type [" + type + "] in [" + annotationsField
+                        + "] would overwrite [" + type + "]");
+            }
+            int start = offset(mention, "start");
+            int end = offset(mention, "end");
+            if (start < 0 || end <= start || end > text.length()) {
+                throw new IllegalArgumentException("Invalid offsets [" + start + ", " + end
+                        + ") for a text of length " + text.length() + " in [" + annotationsField + "]");
+            }
+
+            if (key == null) {
+                Object mentionKey = mention.get("key");
+                key = mentionKey != null ? mentionKey.toString() : text.substring(start, end);
+            }
+
+            byte[] typeMarks = marks.get(type);
+            if (typeMarks == null) {
+                typeMarks = new byte[tokens.size];
+                marks.put(type, typeMarks);
+            }
+            int from = tokens.first(start);
+            for (int t = from; t < tokens.size && tokens.starts[t] < end; t++) {
+                if (t == from) {
+                    typeMarks[t] = BEGIN;
+                } else if (typeMarks[t] == NONE) {
+                    typeMarks[t] = INSIDE;
+                }
+            }
+        }
+
+        // Emit the masked fields of all types in a single pass over the tokens.
+        String[] types = marks.keySet().toArray(new String[marks.size()]);
+        byte[][] typeMarks = marks.values().toArray(new byte[marks.size()][]);
+        Masked[] masked = new Masked[types.length];
+        Masked[] maskedBegin = new Masked[types.length];
+        for (int i = 0; i < types.length; i++) {
+            masked[i] = new Masked(text);
+            maskedBegin[i] = beginFields ? new Masked(text) : null;
+        }
+        for (int t = 0; t < tokens.size; t++) {
+            for (int i = 0; i < types.length; i++) {
+                byte mark = typeMarks[i][t];
+                masked[i].append(tokens.starts[t], tokens.ends[t], mark != NONE);
+                if (maskedBegin[i] != null) {
+                    maskedBegin[i].append(tokens.starts[t], tokens.ends[t], mark == BEGIN);
+                }
+            }
+        }
+
+        for (int i = 0; i < types.length; i++) {
+            document.setFieldValue(types[i], masked[i].finish());
+            if (maskedBegin[i] != null) {
+                document.setFieldValue(types[i] + EntityQueryTranslator.BEGIN_SUFFIX, maskedBegin[i].finish());
+            }
+        }
+        document.setFieldValue(targetField, key);
+        if (removeAnnotations) {
+            document.removeField(annotationsField);
+        }
+    }
+
+    /**
+     * The text with some of its tokens replaced by the placeholder. Text
+     * between tokens is copied, a space is added where the placeholder would
+     * otherwise run into a neighbouring token.
+     */
+    private static final class Masked {
+        private final String text;
+        private final StringBuilder builder;
+        private int copied;
+        private boolean lastReplaced;
+
+        Masked(String text) {
+            this.text = text;
+            this.builder = new StringBuilder(text.length());
+        }
+
+        void append(int start, int end, boolean replace) {
+            builder.append(text, copied, start);
+            if (start == copied && builder.length() > 0 && (replace || lastReplaced)) {
+                builder.append(' ');
+            }
+            if (replace) {
+                builder.append(EntityQueryTranslator.ENTITY_PLACEHOLDER);
+            } else {
+                builder.append(text, start, end);
+            }
+            copied = end;
+            lastReplaced = replace;
+        }
+
+        String finish() {
+            return builder.append(text, copied, text.length()).toString();
+        }
+    }
+
+    private String string(Map<?, ?> mention, String name) {
+        Object value = mention.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Annotation in [" + annotationsField + "] is missing [" + name + "]");
+        }
+        return value.toString();
+    }
+
+    private int offset(Map<?, ?> mention, String name) {
+        Object value = mention.get(name);
+        if (!(value instanceof Number)) {
+            throw new IllegalArgumentException("Annotation in [" + annotationsField + "] requires a numeric ["
+                    + name + "], got [" + value + "]");
+        }
+        return ((Number) value).intValue();
+    }
+
+    /**
+     * Character offsets of the analyzed tokens of a text, one per position.
+     * Tokens stacked on a position (synonyms) and tokens overlapping the
+     * previous one are skipped.
+     */
+    private static final class Tokens {
+        int[] starts = new int[16];
+        int[] ends = new int[16];
+        int size;
+
+        Tokens(Analyzer analyzer, String field, String text) {
+            try (TokenStream stream = analyzer.tokenStream(field, text)) {
+                OffsetAttribute offset = stream.addAttribute(OffsetAttribute.class);
+                PositionIncrementAttribute increment = stream.addAttribute(PositionIncrementAttribute.class);
+                stream.reset();
+                int lastEnd = 0;
+                while (stream.incrementToken()) {
+                    int start = offset.startOffset();
+                    int end = offset.endOffset();
+                    if (increment.getPositionIncrement() == 0 || start < lastEnd || end > text.length()) {
+                        continue;
+                    }
+                    if (size == starts.length) {
+                        starts = Arrays.copyOf(starts, size * 2);
+                        ends = Arrays.copyOf(ends, size * 2);
+                    }
+                    starts[size] = start;
+                    ends[size] = end;
+                    size++;
+                    lastEnd = end;
+                }
+                stream.end();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * @return The number of tokens of <code>text</code>.
+         */
+        static int count(Analyzer analyzer, String text) {
+            return new Tokens(analyzer, EntityQueryTranslator.TEXT_FIELD, text).size;
+        }
+
+        /**
+         * @return The first token ending after <code>offset</code>.
+         */
+        int first(int offset) {
+            int lo = 0;
+            int hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (ends[mid] <= offset) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+
+    static final class Factory implements Processor.Factory {
+        private final AnalysisRegistry analysisRegistry;
+
+        Factory(AnalysisRegistry analysisRegistry) {
+            this.analysisRegistry = analysisRegistry;
+        }
+
+        @Override
+        public EntityAnnotateProcessor create(Map<String, Processor.Factory> registry, String tag,
+                                              Map<String, Object> config) throws Exception {
+            String field = ConfigurationUtils.readStringProperty(TYPE, tag, config, "field",
+                    EntityQueryTranslator.TEXT_FIELD);
+            String annotationsField = ConfigurationUtils.readStringProperty(TYPE, tag, config, "annotations_field",
+                    "entities");
+            String targetField = ConfigurationUtils.readStringProperty(TYPE, tag, config, "target_field",
+                    EntityGrouping.ENTITY_FIELD);
+            String analyzerName = ConfigurationUtils.readStringProperty(TYPE, tag, config, "analyzer", "standard");
+            Analyzer analyzer = analysisRegistry.getAnalyzer(analyzerName);
+            if (analyzer == null) {
+                throw ConfigurationUtils.newConfigurationException(TYPE, tag, "analyzer",
+                        "unknown analyzer [" + analyzerName + "]");
+            }
+            if (Tokens.count(analyzer, EntityQueryTranslator.ENTITY_PLACEHOLDER) != 1) {
+                throw ConfigurationUtils.newConfigurationException(TYPE, tag, "analyzer",
+                        "analyzer [" + analyzerName + "] must keep [" + EntityQueryTranslator.ENTITY_PLACEHOLDER
+                                + "] a single token");
+            }
+            boolean beginFields = ConfigurationUtils.readBooleanProperty(TYPE, tag, config, "begin_fields", true);
+            boolean removeAnnotations = ConfigurationUtils.readBooleanProperty(TYPE, tag, config,
+                    "remove_annotations", true);
+            boolean ignoreMissing = ConfigurationUtils.readBooleanProperty(TYPE, tag, config, "ignore_missing", false);
+            return new EntityAnnotateProcessor(tag, field, annotationsField, targetField, analyzer,
+                    beginFields, removeAnnotations, ignoreMissing);
+        }
+    }
+}
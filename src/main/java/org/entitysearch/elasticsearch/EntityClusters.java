@@ -0,0 +1,435 @@
+package org.entitysearch.elasticsearch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * Groups of search results sharing the same entity, in output order.
+ * Document ids of all groups are kept in a single flat array.
+ *
+ * <p>Groups are written as part of the compact format of
+ * {@link ClusteringAction.ClusteringActionResponse}, which writes names and
+ * ids as references to a {@link StringTable} shared with the rest of the
+ * response.
+ */
+public final class EntityClusters implements ToXContent {
+    static final String NAME = "name";
+    static final String DOC_COUNT = "doc_count";
+    static final String DOC_COUNT_ERROR = "doc_count_error_upper_bound";
+    static final String DOC_COUNT_STD_ERROR = "doc_count_std_error";
+    static final String SCORE = "score";
+    static final String DOCUMENT = "document";
+    static final String ID = "id";
+
+    /** Group names (entity keys), may contain <code>null</code>. */
+    private final String[] names;
+
+    /**
+     * Number of matching documents of each group if it differs from the
+     * number of returned ids (shard-side grouping), <code>null</code> otherwise.
+     */
+    private final long[] docCounts;
+
+    /**
+     * Upper bound of the documents missing from each group's count, as
+     * reported by the <code>entity_groups</code> aggregation (<code>-1</code>
+     * if unknown), <code>null</code> if counts are exact.
+     */
+    private final long[] docCountErrors;
+
+    /** Aggregated score of each group if groups are ranked by score, <code>null</code> otherwise. */
+    private final float[] scores;
+
+    /** Group <code>i</code> owns ids from <code>offsets[i]</code> to <code>offsets[i + 1]</code>. */
+    private final int[] offsets;
+
+    private final String[] ids;
+
+    /** The <code>clusters_after</code> token of the next page, <code>null</code> on the last page. */
+    private final String nextAfter;
+
+    /**
+     * Standard error of each document count scaled from a sample, see
+     * {@link #estimate(long, long)}, <code>null</code> if counts were not scaled.
+     */
+    private final long[] docCountStdErrors;
+
+    EntityClusters(String[] names, long[] docCounts, float[] scores, int[] offsets, String[] ids) {
+        this(names, docCounts, null, scores, offsets, ids, null, null);
+    }
+
+    private EntityClusters(String[] names, long[] docCounts, long[] docCountErrors, float[] scores,
+                           int[] offsets, String[] ids, String nextAfter, long[] docCountStdErrors) {
+        assert offsets.length == names.length + 1;
+        assert docCounts == null || docCounts.length == names.length;
+        assert docCountErrors == null || (docCounts != null && docCountErrors.length == names.length);
+        assert docCountStdErrors == null || (docCounts != null && docCountStdErrors.length == names.length);
+        assert scores == null || scores.length == names.length;
+        this.names = names;
+        this.docCounts = docCounts;
+        this.docCountErrors = docCountErrors;
+        this.scores = scores;
+        this.offsets = offsets;
+        this.ids = ids;
+        this.nextAfter = nextAfter;
+        this.docCountStdErrors = docCountStdErrors;
+    }
+
+    /**
+     * Reads groups in the compact format, names and ids resolved against
+     * <code>table</code>.
+     */
+    EntityClusters(StreamInput in, StringTable table) throws IOException {
+        int size = in.readVInt();
+        names = new String[size];
+        offsets = new int[size + 1];
+        for (int i = 0; i < size; i++) {
+            names[i] = table.readRef(in);
+            offsets[i + 1] = offsets[i] + in.readVInt();
+        }
+
+        docCounts = in.readBoolean() ? readVLongs(in, size) : null;
+        if (in.readBoolean()) {
+            scores = new float[size];
+            for (int i = 0; i < size; i++) {
+                scores[i] = in.readFloat();
+            }
+        } else {
+            scores = null;
+        }
+
+        ids = new String[offsets[size]];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = table.readRef(in);
+        }
+        nextAfter = in.readOptionalString();
+        docCountStdErrors = in.readBoolean() ? readVLongs(in, size) : null;
+        if (in.readBoolean()) {
+            docCountErrors = new long[size];
+            for (int i = 0; i < size; i++) {
+                docCountErrors[i] = in.readLong();
+            }
+        } else {
+            docCountErrors = null;
+        }
+    }
+
+    /**
+     * Adds group names and document ids to the table of the compact format.
+     */
+    void addStrings(StringTable table) {
+        for (String name : names) {
+            table.add(name);
+        }
+        for (String id : ids) {
+            table.add(id);
+        }
+    }
+
+    /**
+     * Writes groups in the compact format: names and ids as references to
+     * <code>table</code>, group sizes as VInts next to their names.
+     */
+    void writeTo(StreamOutput out, StringTable table) throws IOException {
+        out.writeVInt(names.length);
+        for (int i = 0; i < names.length; i++) {
+            table.writeRef(out, names[i]);
+            out.writeVInt(offsets[i + 1] - offsets[i]);
+        }
+
+        out.writeBoolean(docCounts != null);
+        if (docCounts != null) {
+            writeVLongs(out, docCounts);
+        }
+        out.writeBoolean(scores != null);
+        if (scores != null) {
+            for (float score : scores) {
+                out.writeFloat(score);
+            }
+        }
+
+        for (String id : ids) {
+            table.writeRef(out, id);
+        }
+        out.writeOptionalString(nextAfter);
+        out.writeBoolean(docCountStdErrors != null);
+        if (docCountStdErrors != null) {
+            writeVLongs(out, docCountStdErrors);
+        }
+        out.writeBoolean(docCountErrors != null);
+        if (docCountErrors != null) {
+            for (long docCountError : docCountErrors) {
+                out.writeLong(docCountError);
+            }
+        }
+    }
+
+    private static long[] readVLongs(StreamInput in, int size) throws IOException {
+        long[] values = new long[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = in.readVLong();
+        }
+        return values;
+    }
+
+    private static void writeVLongs(StreamOutput out, long[] values) throws IOException {
+        for (long value : values) {
+            out.writeVLong(value);
+        }
+    }
+
+    /**
+     * @return The number of groups.
+     */
+    public int size() {
+        return names.length;
+    }
+
+    public String getName(int group) {
+        return names[group];
+    }
+
+    /**
+     * @return The number of documents in the group. This may be larger than the
+     * number of returned document ids.
+     */
+    public long getDocCount(int group) {
+        return docCounts != null ? docCounts[group] : offsets[group + 1] - offsets[group];
+    }
+
+    /**
+     * @return An upper bound of the documents missing from the group's
+     * count, <code>-1</code> if unknown, 0 if the count is exact.
+     */
+    public long getDocCountError(int group) {
+        return docCountErrors != null ? docCountErrors[group] : 0;
+    }
+
+    /**
+     * @return <code>true</code> if document counts were scaled from a sample
+     * of the matching documents.
+     */
+    public boolean isApproximate() {
+        return docCountStdErrors != null;
+    }
+
+    /**
+     * @return The standard error of the group's scaled document count, 0 if
+     * the count was not scaled.
+     * @see #estimate(long, long)
+     */
+    public long getDocCountStdError(int group) {
+        return docCountStdErrors != null ? docCountStdErrors[group] : 0;
+    }
+
+    /**
+     * @return The aggregated score of the group or <code>NaN</code> if groups
+     * are not ranked by score.
+     */
+    public float getScore(int group) {
+        return scores != null ? scores[group] : Float.NaN;
+    }
+
+    /**
+     * @return Returned document ids of the group, possibly fewer than
+     * {@link #getDocCount(int)}.
+     */
+    public List<String> getDocumentIds(int group) {
+        return Arrays.asList(ids).subList(offsets[group], offsets[group + 1]);
+    }
+
+    /**
+     * @return The token to pass as <code>clusters_after</code> for the next
+     * page of groups, or <code>null</code> if this is the last page.
+     * @see ClustersCursor
+     */
+    public String getNextAfter() {
+        return nextAfter;
+    }
+
+    /**
+     * @return The same groups, followed by the page at <code>nextAfter</code>.
+     */
+    EntityClusters withNextAfter(String nextAfter) {
+        return new EntityClusters(names, docCounts, docCountErrors, scores, offsets, ids, nextAfter,
+                docCountStdErrors);
+    }
+
+    /**
+     * Scales document counts computed from a sample of <code>sampledDocs</code>
+     * matching documents to all <code>totalDocs</code>, in proportion. Each
+     * estimate comes with the standard error of the scaled proportion
+     * <code>count / sampledDocs * totalDocs</code> in a simple random sample,
+     * with the finite population correction. The sample is whatever the
+     * search grouped (each shard's best scoring matches, or the first matches
+     * in index order), not a random one, so groups over- or under-represented
+     * in it may be off by more than their standard error.
+     *
+     * @return The estimated groups, or these if the sample covers all matches.
+     */
+    EntityClusters estimate(long sampledDocs, long totalDocs) {
+        if (sampledDocs <= 0 || sampledDocs >= totalDocs) {
+            return this;
+        }
+
+        double scale = (double) totalDocs / sampledDocs;
+        double correction = (double) (totalDocs - sampledDocs) / (totalDocs - 1);
+        long[] estimates = new long[names.length];
+        long[] stdErrors = new long[names.length];
+        long[] errors = docCountErrors == null ? null : new long[names.length];
+        for (int group = 0; group < names.length; group++) {
+            long docCount = getDocCount(group);
+            double p = Math.min(1d, (double) docCount / sampledDocs);
+            estimates[group] = Math.round(docCount * scale);
+            stdErrors[group] = (long) Math.ceil(totalDocs * Math.sqrt(p * (1 - p) / sampledDocs * correction));
+            if (errors != null) {
+                errors[group] = docCountErrors[group] == -1 ? -1 : (long) Math.ceil(docCountErrors[group] * scale);
+            }
+        }
+        return new EntityClusters(names, estimates, errors, scores, offsets, ids, nextAfter, stdErrors);
+    }
+
+    /**
+     * Emits one object per group; the caller opens the enclosing array.
+     */
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        for (int group = 0; group < names.length; group++) {
+            builder.startObject();
+            builder.field(NAME, names[group]);
+            if (docCounts != null) {
+                builder.field(DOC_COUNT, docCounts[group]);
+            }
+            if (docCountErrors != null && docCountErrors[group] != 0) {
+                builder.field(DOC_COUNT_ERROR, docCountErrors[group]);
+            }
+            if (docCountStdErrors != null) {
+                builder.field(DOC_COUNT_STD_ERROR, docCountStdErrors[group]);
+            }
+            if (scores != null) {
+                builder.field(SCORE, scores[group]);
+            }
+            builder.startArray(DOCUMENT);
+            for (int i = offsets[group]; i < offsets[group + 1]; i++) {
+                builder.startObject();
+                builder.field(ID, ids[i]);
+                builder.endObject();
+            }
+            builder.endArray();
+            builder.endObject();
+        }
+        return builder;
+    }
+
+    /**
+     * Collects groups in output order.
+     */
+    static final class Builder {
+        private final List<String> names = new ArrayList<>();
+        private final List<Long> docCounts = new ArrayList<>();
+        private final List<Long> docCountErrors = new ArrayList<>();
+        private final List<Float> scores = new ArrayList<>();
+        private final List<String> ids = new ArrayList<>();
+        private final List<Integer> offsets = new ArrayList<>();
+        private boolean hasDocCounts;
+        private boolean hasDocCountErrors;
+
+        Builder() {
+            offsets.add(0);
+        }
+
+        /**
+         * Adds a group whose size is the number of its document ids.
+         */
+        Builder add(String name, List<String> documentIds) {
+            return add(name, documentIds.size(), documentIds);
+        }
+
+        /**
+         * Adds a group with a document count independent of the returned ids.
+         */
+        Builder add(String name, long docCount, List<String> documentIds) {
+            return add(name, docCount, Float.NaN, documentIds);
+        }
+
+        /**
+         * Adds a group with an aggregated score; either all or none of the
+         * groups should have scores.
+         */
+        Builder add(String name, long docCount, float score, List<String> documentIds) {
+            return add(name, docCount, 0, score, documentIds);
+        }
+
+        /**
+         * Adds a group whose document count may miss up to
+         * <code>docCountError</code> documents (<code>-1</code> if unknown).
+         */
+        Builder add(String name, long docCount, long docCountError, float score, List<String> documentIds) {
+            names.add(name);
+            docCountErrors.add(docCountError);
+            hasDocCountErrors |= docCountError != 0;
+            scores.add(score);
+            docCounts.add(docCount);
+            hasDocCounts |= docCount != documentIds.size();
+            ids.addAll(documentIds);
+            offsets.add(ids.size());
+            return this;
+        }
+
+        /**
+         * Always emit document counts, even if they match the returned ids.
+         */
+        Builder withDocCounts() {
+            hasDocCounts = true;
+            return this;
+        }
+
+        EntityClusters build() {
+            long[] counts = null;
+            if (hasDocCounts) {
+                counts = new long[docCounts.size()];
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] = docCounts.get(i);
+                }
+            }
+
+            long[] errors = null;
+            if (hasDocCounts && hasDocCountErrors) {
+                errors = new long[docCountErrors.size()];
+                for (int i = 0; i < errors.length; i++) {
+                    errors[i] = docCountErrors.get(i);
+                }
+            }
+
+            float[] scoreArray = null;
+            if (!scores.isEmpty() && !Float.isNaN(scores.get(0))) {
+                scoreArray = new float[scores.size()];
+                for (int i = 0; i < scoreArray.length; i++) {
+                    scoreArray[i] = scores.get(i);
+                }
+            }
+
+            int[] offsetArray = new int[offsets.size()];
+            for (int i = 0; i < offsetArray.length; i++) {
+                offsetArray[i] = offsets.get(i);
+            }
+
+            return new EntityClusters(
+                    names.toArray(new String[names.size()]),
+                    counts,
+                    errors,
+                    scoreArray,
+                    offsetArray,
+                    ids.toArray(new String[ids.size()]),
+                    null,
+                    null);
+        }
+    }
+}
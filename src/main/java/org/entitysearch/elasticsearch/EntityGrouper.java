@@ -0,0 +1,406 @@
+package org.entitysearch.elasticsearch;
+
+import java.util.Arrays;
+
+import com.carrotsearch.hppc.ObjectIntHashMap;
+
+import org.apache.lucene.util.IntroSorter;
+
+/**
+ * Groups hits by their entity key. Keys are dictionary-encoded to int
+ * ordinals in order of first appearance and each hit is stored as its
+ * ordinal and id only, so grouping allocates a handful of arrays regardless
+ * of the number of hits. Hits beyond <code>maxDocsPerGroup</code> of their
+ * group are counted but not stored.
+ *
+ * <p>Score aggregates (sum and max) are kept per group in the same pass.
+ * Groups are ordered by their {@link GroupRanking}; ties are broken by
+ * ascending key (the <code>null</code> key first), as in
+ * {@link InternalEntityGroups} and {@link ClustersCursor}, so the order does not
+ * depend on the order of hits. All groups are ordered with a counting sort on size;
+ * otherwise only the top <code>maxGroups</code> are selected with a bounded heap.
+ * Groups ranked before a {@link ClustersCursor} (earlier pages) are skipped
+ * before they reach the heap.
+ */
+final class EntityGrouper {
+    private static final int NO_ORDINAL = -1;
+
+    private final ObjectIntHashMap<String> ordinals;
+    private final int maxDocsPerGroup;
+
+    /** Ordinal of the <code>null</code> key (hits without an entity). */
+    private int nullOrdinal = NO_ORDINAL;
+
+    /** Keys by ordinal. */
+    private String[] names;
+
+    /** Group sizes, stored hit counts and score aggregates by ordinal. */
+    private int[] counts;
+    private int[] stored;
+    private double[] scoreSums;
+    private float[] scoreMaxes;
+    private int groups;
+
+    /** Ordinal and id of each stored hit, in the order hits were added. */
+    private int[] hitOrdinals;
+    private String[] hitIds;
+    private int hits;
+
+    EntityGrouper(int expectedHits) {
+        this(expectedHits, Integer.MAX_VALUE);
+    }
+
+    EntityGrouper(int expectedHits, int maxDocsPerGroup) {
+        int capacity = Math.max(expectedHits, 16);
+        this.maxDocsPerGroup = maxDocsPerGroup;
+        this.ordinals = new ObjectIntHashMap<>(capacity);
+        this.names = new String[capacity];
+        this.counts = new int[capacity];
+        this.stored = new int[capacity];
+        this.scoreSums = new double[capacity];
+        this.scoreMaxes = new float[capacity];
+        this.hitOrdinals = new int[capacity];
+        this.hitIds = new String[capacity];
+    }
+
+    /**
+     * Adds an unscored hit to the group of its entity key.
+     */
+    void add(String key, String id) {
+        add(key, id, Float.NaN);
+    }
+
+    /**
+     * Adds a hit to the group of its entity key. <code>NaN</code> scores (hits
+     * sorted without scores) are ignored in score aggregates.
+     */
+    void add(String key, String id, float score) {
+        int ordinal = ordinal(key);
+        counts[ordinal]++;
+        if (!Float.isNaN(score)) {
+            scoreSums[ordinal] += score;
+            scoreMaxes[ordinal] = Math.max(scoreMaxes[ordinal], score);
+        }
+
+        if (stored[ordinal] >= maxDocsPerGroup) {
+            return;
+        }
+        stored[ordinal]++;
+
+        if (hits == hitIds.length) {
+            int newLength = grow(hits);
+            hitOrdinals = Arrays.copyOf(hitOrdinals, newLength);
+            hitIds = Arrays.copyOf(hitIds, newLength);
+        }
+        hitOrdinals[hits] = ordinal;
+        hitIds[hits] = id;
+        hits++;
+    }
+
+    private int ordinal(String key) {
+        if (key == null) {
+            if (nullOrdinal == NO_ORDINAL) {
+                nullOrdinal = newOrdinal(null);
+            }
+            return nullOrdinal;
+        }
+
+        int slot = ordinals.indexOf(key);
+        if (ordinals.indexExists(slot)) {
+            return ordinals.indexGet(slot);
+        }
+        int ordinal = newOrdinal(key);
+        ordinals.indexInsert(slot, key, ordinal);
+        return ordinal;
+    }
+
+    private int newOrdinal(String key) {
+        if (groups == names.length) {
+            int newLength = grow(groups);
+            names = Arrays.copyOf(names, newLength);
+            counts = Arrays.copyOf(counts, newLength);
+            stored = Arrays.copyOf(stored, newLength);
+            scoreSums = Arrays.copyOf(scoreSums, newLength);
+            scoreMaxes = Arrays.copyOf(scoreMaxes, newLength);
+        }
+        names[groups] = key;
+        scoreMaxes[groups] = Float.NEGATIVE_INFINITY;
+        return groups++;
+    }
+
+    private static int grow(int length) {
+        return length + (length >> 1) + 1;
+    }
+
+    int groupCount() {
+        return groups;
+    }
+
+    int hitCount() {
+        return hits;
+    }
+
+    /**
+     * @return All group ordinals, largest groups first.
+     */
+    int[] sortedOrdinals() {
+        int maxCount = 0;
+        for (int ordinal = 0; ordinal < groups; ordinal++) {
+            maxCount = Math.max(maxCount, counts[ordinal]);
+        }
+
+        // Counting sort on decreasing size: bucket[size] is the first output
+        // position of groups with that size, then the end of its range.
+        int[] bucket = new int[maxCount + 1];
+        for (int ordinal = 0; ordinal < groups; ordinal++) {
+            bucket[counts[ordinal]]++;
+        }
+        int position = 0;
+        for (int size = maxCount; size >= 0; size--) {
+            int sizeGroups = bucket[size];
+            bucket[size] = position;
+            position += sizeGroups;
+        }
+
+        int[] order = new int[groups];
+        for (int ordinal = 0; ordinal < groups; ordinal++) {
+            order[bucket[counts[ordinal]]++] = ordinal;
+        }
+
+        // Only groups of the same size are compared, by key.
+        KeySorter sorter = new KeySorter(order);
+        int start = 0;
+        for (int size = maxCount; size >= 0; size--) {
+            int end = bucket[size];
+            if (end - start > 1) {
+                sorter.sort(start, end);
+            }
+            start = end;
+        }
+        return order;
+    }
+
+    /**
+     * Sorts a range of ordinals by ascending key, in place.
+     */
+    private final class KeySorter extends IntroSorter {
+        private final int[] order;
+        private int pivot;
+
+        KeySorter(int[] order) {
+            this.order = order;
+        }
+
+        @Override
+        protected void swap(int i, int j) {
+            int tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+        }
+
+        @Override
+        protected int compare(int i, int j) {
+            return compareKeys(order[j], order[i]);
+        }
+
+        @Override
+        protected void setPivot(int i) {
+            pivot = order[i];
+        }
+
+        @Override
+        protected int comparePivot(int j) {
+            return compareKeys(order[j], pivot);
+        }
+    }
+
+    /**
+     * @return The top <code>k</code> group ordinals ranked after the cursor
+     * (if not <code>null</code>), best first, selected with a bounded min-heap.
+     */
+    int[] topOrdinals(int k, GroupRanking ranking, ClustersCursor after) {
+        int afterOrdinal = after == null ? NO_ORDINAL
+                : after.getKey() == null ? nullOrdinal
+                : ordinals.getOrDefault(after.getKey(), NO_ORDINAL);
+
+        int[] heap = new int[Math.min(k, groups)];
+        int size = 0;
+        for (int ordinal = 0; ordinal < groups; ordinal++) {
+            if (after != null && !isAfter(ordinal, ranking, after, afterOrdinal)) {
+                continue;
+            }
+            if (size < heap.length) {
+                heap[size] = ordinal;
+                siftUp(heap, size++, ranking);
+            } else if (size > 0 && compare(ordinal, heap[0], ranking) > 0) {
+                heap[0] = ordinal;
+                siftDown(heap, size, ranking);
+            }
+        }
+
+        // Pop the worst remaining group into the last free position.
+        int[] order = new int[size];
+        while (size > 0) {
+            order[size - 1] = heap[0];
+            heap[0] = heap[--size];
+            siftDown(heap, size, ranking);
+        }
+        return order;
+    }
+
+    private void siftUp(int[] heap, int index, GroupRanking ranking) {
+        int ordinal = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (compare(ordinal, heap[parent], ranking) >= 0) {
+                break;
+            }
+            heap[index] = heap[parent];
+            index = parent;
+        }
+        heap[index] = ordinal;
+    }
+
+    private void siftDown(int[] heap, int size, GroupRanking ranking) {
+        if (size == 0) {
+            return;
+        }
+        int index = 0;
+        int ordinal = heap[0];
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && compare(heap[child + 1], heap[child], ranking) < 0) {
+                child++;
+            }
+            if (compare(heap[child], ordinal, ranking) >= 0) {
+                break;
+            }
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = ordinal;
+    }
+
+    /**
+     * @return <code>true</code> if a group ranks after the cursor. If the
+     * cursor's group is still there, groups are compared to it exactly;
+     * otherwise by rank value, then key.
+     */
+    private boolean isAfter(int ordinal, GroupRanking ranking, ClustersCursor after, int afterOrdinal) {
+        if (afterOrdinal != NO_ORDINAL) {
+            return compare(ordinal, afterOrdinal, ranking) < 0;
+        }
+        return after.isAfter(rankValue(ordinal, ranking), names[ordinal]);
+    }
+
+    /**
+     * @return The group's rank value as it is returned: its size or its score.
+     */
+    private double rankValue(int ordinal, GroupRanking ranking) {
+        switch (ranking) {
+            case SIZE:
+                return counts[ordinal];
+            case SCORE_SUM:
+                return (float) scoreSums[ordinal];
+            case SCORE_MAX:
+                return Math.max(0f, scoreMaxes[ordinal]);
+            default:
+                throw Preconditions.unreachable();
+        }
+    }
+
+    /**
+     * @return A positive value if group <code>a</code> ranks before group <code>b</code>.
+     */
+    private int compare(int a, int b, GroupRanking ranking) {
+        int cmp;
+        switch (ranking) {
+            case SIZE:
+                cmp = Integer.compare(counts[a], counts[b]);
+                break;
+            case SCORE_SUM:
+                cmp = Double.compare(scoreSums[a], scoreSums[b]);
+                break;
+            case SCORE_MAX:
+                cmp = Float.compare(scoreMaxes[a], scoreMaxes[b]);
+                break;
+            default:
+                throw Preconditions.unreachable();
+        }
+        return cmp != 0 ? cmp : compareKeys(a, b);
+    }
+
+    /**
+     * @return A positive value if group <code>a</code>'s key sorts before
+     * group <code>b</code>'s; the <code>null</code> key sorts first.
+     */
+    private int compareKeys(int a, int b) {
+        String keyA = names[a];
+        String keyB = names[b];
+        if (keyA == null || keyB == null) {
+            return keyA == keyB ? 0 : keyA == null ? 1 : -1;
+        }
+        return keyB.compareTo(keyA);
+    }
+
+    /**
+     * @return All groups, largest first.
+     */
+    EntityClusters build() {
+        return build(Integer.MAX_VALUE, GroupRanking.SIZE);
+    }
+
+    /**
+     * @return Up to <code>maxGroups</code> best groups by the given ranking,
+     * with document ids of each group in the order hits were added.
+     */
+    EntityClusters build(int maxGroups, GroupRanking ranking) {
+        return build(maxGroups, ranking, null);
+    }
+
+    /**
+     * @return Up to <code>maxGroups</code> best groups ranked after the cursor
+     * (if not <code>null</code>), with document ids of each group in the
+     * order hits were added.
+     */
+    EntityClusters build(int maxGroups, GroupRanking ranking, ClustersCursor after) {
+        int[] order = after == null && ranking == GroupRanking.SIZE && maxGroups >= groups
+                ? sortedOrdinals()
+                : topOrdinals(maxGroups, ranking, after);
+
+        String[] sortedNames = new String[order.length];
+        long[] docCounts = new long[order.length];
+        float[] scores = ranking.isScoreBased() ? new float[order.length] : null;
+        boolean truncated = false;
+
+        int[] offsets = new int[order.length + 1];
+        int[] cursor = new int[groups];
+        Arrays.fill(cursor, NO_ORDINAL);
+        for (int i = 0; i < order.length; i++) {
+            int ordinal = order[i];
+            sortedNames[i] = names[ordinal];
+            docCounts[i] = counts[ordinal];
+            truncated |= stored[ordinal] != counts[ordinal];
+            if (scores != null) {
+                scores[i] = ranking == GroupRanking.SCORE_SUM
+                        ? (float) scoreSums[ordinal]
+                        : Math.max(0f, scoreMaxes[ordinal]);
+            }
+            cursor[ordinal] = offsets[i];
+            offsets[i + 1] = offsets[i] + stored[ordinal];
+        }
+
+        String[] ids = new String[offsets[order.length]];
+        for (int hit = 0; hit < hits; hit++) {
+            int ordinal = hitOrdinals[hit];
+            if (cursor[ordinal] != NO_ORDINAL) {
+                ids[cursor[ordinal]++] = hitIds[hit];
+            }
+        }
+
+        return new EntityClusters(sortedNames, truncated ? docCounts : null, scores, offsets, ids);
+    }
+}
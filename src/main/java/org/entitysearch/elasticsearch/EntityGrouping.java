@@ -0,0 +1,511 @@
+package org.entitysearch.elasticsearch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.aggregations.AggregationBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.bucket.sampler.Sampler;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.bucket.terms.TermsAggregationBuilder;
+import org.elasticsearch.search.aggregations.metrics.NumericMetricsAggregation;
+import org.elasticsearch.search.aggregations.metrics.tophits.TopHits;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+import org.entitysearch.elasticsearch.ClusteringAction.ClusteringActionRequest;
+
+/**
+ * Groups search results by the entity they contain.
+ */
+final class EntityGrouping {
+    /** The field holding the grouping key of each document. */
+    static final String ENTITY_FIELD = "entityContent";
+
+    /** Prefix of the names of all aggregations injected for grouping. */
+    static final String INTERNAL_AGGREGATION_PREFIX = "_entity_";
+
+    /**
+     * Name of the injected terms aggregation in {@link GroupingMode#AGGREGATION}
+     * and of the entity_groups aggregation in {@link GroupingMode#ENTITY_GROUPS}.
+     */
+    static final String GROUPS_AGGREGATION = "_entity_groups";
+
+    /** Name of the injected top_hits sub-aggregation in {@link GroupingMode#AGGREGATION}. */
+    static final String DOCUMENTS_AGGREGATION = "_entity_documents";
+
+    /** Name of the injected score sub-aggregation for score-based {@link GroupRanking}s. */
+    static final String SCORE_AGGREGATION = "_entity_score";
+
+    /** Name of the injected sampler wrapping the grouping aggregation of approximate requests. */
+    static final String SAMPLE_AGGREGATION = "_entity_sample";
+
+    /**
+     * Whether {@link #ENTITY_FIELD} has doc values (is a <code>keyword</code> field).
+     * If so, the grouping key is fetched with <code>docvalue_fields</code>
+     * whenever the caller does not need full document sources; otherwise the
+     * key is added to the <code>_source</code> includes. Off by default:
+     * <code>docvalue_fields</code> fails on shards where the field is mapped
+     * as <code>text</code>, as it is when dynamically mapped.
+     */
+    static final Setting<Boolean> KEY_DOC_VALUES_SETTING =
+            Setting.boolSetting("carrot2.grouping.key_doc_values", false, Property.NodeScope);
+
+    /**
+     * Whether requests that do not set <code>approximate</code> have their
+     * group counts scaled from a sample of the matches. Applies to
+     * aggregation-based modes and streaming hits mode only, where shards stop
+     * matching after <code>max_hits</code> matches; see
+     * {@link EntityClusters#estimate(long, long)} for the standard errors.
+     */
+    static final Setting<Boolean> APPROXIMATE_SETTING =
+            Setting.boolSetting("carrot2.approximate.enabled", false, Property.NodeScope);
+
+    /**
+     * Number of best scoring documents each shard groups when grouping with
+     * an aggregation approximately. All matches are still scored; the
+     * sample only bounds the grouping work. Streaming hits mode stops
+     * matching early instead, see {@link StreamingGrouping}.
+     */
+    static final Setting<Integer> SHARD_SAMPLE_SIZE_SETTING =
+            Setting.intSetting("carrot2.approximate.shard_sample_size", 10000, 1, Property.NodeScope);
+
+    /** Maximum number of groups returned by the terms aggregation. */
+    static final int MAX_AGGREGATION_GROUPS = 10000;
+
+    /** Maximum number of document ids per group returned by the top_hits aggregation. */
+    static final int MAX_AGGREGATION_DOCUMENTS = 100;
+
+    /**
+     * Estimated grouping memory per grouped document: its id, the reference
+     * and score kept in its group and the group lookup entry.
+     */
+    static final long BYTES_PER_DOCUMENT = 128;
+
+    /** Estimated grouping memory per group: its name, lists and cluster object. */
+    static final long BYTES_PER_GROUP = 256;
+
+    private EntityGrouping() {
+    }
+
+    /**
+     * Rewrites the delegate search request for the request's {@link GroupingMode}.
+     *
+     * @param shardSampleSize Documents each shard groups in approximate
+     *                        aggregation-based modes.
+     * @throws IllegalArgumentException If the request's <code>clusters_after</code>
+     * token belongs to another search.
+     */
+    static void prepare(ClusteringActionRequest request, boolean keyDocValues, int shardSampleSize) {
+        ClustersCursor.bind(request);
+        applyHitsMode(request);
+        switch (request.getGroupingMode()) {
+            case HITS:
+                addGroupingKey(request.getSearchRequest(), keyDocValues);
+                break;
+            case AGGREGATION:
+                addAggregation(request, shardSampleSize);
+                break;
+            case ENTITY_GROUPS:
+                addEntityGroupsAggregation(request, shardSampleSize);
+                break;
+            default:
+                throw Preconditions.unreachable();
+        }
+    }
+
+    /**
+     * Groups the response of a search request rewritten by
+     * {@link #prepare(ClusteringActionRequest, boolean, int)}. A full page of
+     * groups carries the cursor to the next one. Counts of approximate
+     * requests are scaled from the grouped sample to all matches.
+     */
+    static EntityClusters group(SearchResponse searchResponse, ClusteringActionRequest request) throws IOException {
+        final EntityClusters clusters;
+        switch (request.getGroupingMode()) {
+            case HITS:
+                clusters = groupHits(searchResponse, request);
+                break;
+            case AGGREGATION:
+                clusters = groupAggregation(searchResponse, request);
+                break;
+            case ENTITY_GROUPS:
+                clusters = groupEntityGroups(searchResponse, request);
+                break;
+            default:
+                throw Preconditions.unreachable();
+        }
+        return estimate(ClustersCursor.page(clusters, request), request,
+                sampledDocs(searchResponse, request), searchResponse.getHits().getTotalHits());
+    }
+
+    /**
+     * @return <code>clusters</code> with counts scaled to <code>totalDocs</code>
+     * if the request is approximate, as is otherwise.
+     */
+    static EntityClusters estimate(EntityClusters clusters, ClusteringActionRequest request,
+                                   long sampledDocs, long totalDocs) {
+        return request.isApproximate() ? clusters.estimate(sampledDocs, totalDocs) : clusters;
+    }
+
+    /**
+     * @return The number of matches groups were computed from: the returned
+     * hits in {@link GroupingMode#HITS}, the sampler's documents otherwise.
+     */
+    private static long sampledDocs(SearchResponse searchResponse, ClusteringActionRequest request) {
+        if (request.getGroupingMode() == GroupingMode.HITS) {
+            return searchResponse.getHits().getHits().length;
+        }
+        Aggregations aggregations = searchResponse.getAggregations();
+        Sampler sample = aggregations == null ? null : aggregations.get(SAMPLE_AGGREGATION);
+        return sample == null ? searchResponse.getHits().getTotalHits() : sample.getDocCount();
+    }
+
+    /**
+     * @return The aggregations holding the grouping aggregation: the top-level
+     * ones or, for approximate requests, the sampler's.
+     */
+    private static Aggregations groupingAggregations(SearchResponse searchResponse) {
+        Aggregations aggregations = searchResponse.getAggregations();
+        Sampler sample = aggregations == null ? null : aggregations.get(SAMPLE_AGGREGATION);
+        return sample == null ? aggregations : sample.getAggregations();
+    }
+
+    /**
+     * Adds the grouping aggregation to the delegate search, under a
+     * <code>sampler</code> of each shard's best matches if the request is
+     * approximate.
+     */
+    private static void addGroupsAggregation(ClusteringActionRequest request, SearchSourceBuilder source,
+                                             AggregationBuilder groups, int shardSampleSize) {
+        if (request.isApproximate()) {
+            source.aggregation(AggregationBuilders.sampler(SAMPLE_AGGREGATION)
+                    .shardSize(shardSampleSize)
+                    .subAggregation(groups));
+        } else {
+            source.aggregation(groups);
+        }
+    }
+
+    /**
+     * Estimates the memory {@link #group(SearchResponse, ClusteringActionRequest)}
+     * allocates for a response, to be charged to the request circuit breaker.
+     * In {@link GroupingMode#HITS} every hit may start a group of its own.
+     */
+    static long estimateBytes(SearchResponse searchResponse, ClusteringActionRequest request) {
+        switch (request.getGroupingMode()) {
+            case HITS:
+                return estimateBytes(searchResponse.getHits().getHits().length);
+            case AGGREGATION: {
+                Aggregations aggregations = groupingAggregations(searchResponse);
+                Terms groups = aggregations == null ? null : aggregations.get(GROUPS_AGGREGATION);
+                if (groups == null) {
+                    return 0;
+                }
+                long bytes = 0;
+                for (Terms.Bucket bucket : groups.getBuckets()) {
+                    TopHits documents = bucket.getAggregations().get(DOCUMENTS_AGGREGATION);
+                    bytes += BYTES_PER_GROUP
+                            + (documents == null ? 0 : documents.getHits().getHits().length * BYTES_PER_DOCUMENT);
+                }
+                return bytes;
+            }
+            case ENTITY_GROUPS: {
+                Aggregations aggregations = groupingAggregations(searchResponse);
+                InternalEntityGroups groups = aggregations == null ? null : aggregations.get(GROUPS_AGGREGATION);
+                if (groups == null) {
+                    return 0;
+                }
+                long bytes = 0;
+                for (InternalEntityGroups.Group group : groups.getGroups()) {
+                    bytes += BYTES_PER_GROUP + group.getIds().size() * BYTES_PER_DOCUMENT;
+                }
+                return bytes;
+            }
+            default:
+                throw Preconditions.unreachable();
+        }
+    }
+
+    /**
+     * @return Estimated memory for grouping <code>hits</code> hits by their key.
+     */
+    static long estimateBytes(int hits) {
+        return hits * (BYTES_PER_DOCUMENT + BYTES_PER_GROUP);
+    }
+
+    /**
+     * Narrows the delegate search to what the request's {@link HitsMode}
+     * renders: sources are only fetched for {@link HitsMode#FULL}, and with
+     * {@link HitsMode#NONE} the aggregation-based modes fetch no hits at all.
+     * Grouping keys needed by {@link GroupingMode#HITS} are added back by
+     * {@link #addGroupingKey(SearchRequest, boolean)}.
+     */
+    static void applyHitsMode(ClusteringActionRequest request) {
+        if (request.getHitsMode() == HitsMode.FULL) {
+            return;
+        }
+
+        SearchRequest searchRequest = request.getSearchRequest();
+        SearchSourceBuilder source = searchRequest.source();
+        if (source == null) {
+            source = new SearchSourceBuilder();
+            searchRequest.source(source);
+        }
+        source.fetchSource(false);
+        if (request.getHitsMode() == HitsMode.NONE && request.getGroupingMode() != GroupingMode.HITS) {
+            source.size(0);
+        }
+    }
+
+    /**
+     * Adds the grouping aggregation to the delegate search request. Group and
+     * per-group document limits are capped at {@link #MAX_AGGREGATION_GROUPS}
+     * and {@link #MAX_AGGREGATION_DOCUMENTS}; score-based rankings order the
+     * buckets by a <code>_score</code> sub-aggregation.
+     */
+    static void addAggregation(ClusteringActionRequest request, int shardSampleSize) {
+        SearchRequest searchRequest = request.getSearchRequest();
+        SearchSourceBuilder source = searchRequest.source();
+        if (source == null) {
+            source = new SearchSourceBuilder();
+            searchRequest.source(source);
+        }
+
+        TermsAggregationBuilder groups = AggregationBuilders.terms(GROUPS_AGGREGATION)
+                .field(ENTITY_FIELD)
+                .size(Math.min(request.getMaxGroups(), MAX_AGGREGATION_GROUPS));
+        if (request.isIncludeDocuments()) {
+            groups.subAggregation(AggregationBuilders.topHits(DOCUMENTS_AGGREGATION)
+                    .size(Math.min(request.getMaxDocsPerGroup(), MAX_AGGREGATION_DOCUMENTS))
+                    .fetchSource(false));
+        }
+
+        switch (request.getGroupRanking()) {
+            case SIZE:
+                break;
+            case SCORE_SUM:
+                groups.subAggregation(AggregationBuilders.sum(SCORE_AGGREGATION).script(new Script("_score")));
+                groups.order(Terms.Order.compound(Terms.Order.aggregation(SCORE_AGGREGATION, false), Terms.Order.term(true)));
+                break;
+            case SCORE_MAX:
+                groups.subAggregation(AggregationBuilders.max(SCORE_AGGREGATION).script(new Script("_score")));
+                groups.order(Terms.Order.compound(Terms.Order.aggregation(SCORE_AGGREGATION, false), Terms.Order.term(true)));
+                break;
+            default:
+                throw Preconditions.unreachable();
+        }
+        addGroupsAggregation(request, source, groups, shardSampleSize);
+    }
+
+    /**
+     * Adds the {@link EntityGroupsAggregationBuilder entity_groups} aggregation
+     * to the delegate search request, with the same limits as
+     * {@link #addAggregation(ClusteringActionRequest, int)}, starting after the
+     * request's <code>clusters_after</code> cursor if set. Unless the caller asked
+     * for hits, the search is run with <code>size: 0</code>: groups and their
+     * document ids come from the aggregation alone, without a fetch phase.
+     */
+    static void addEntityGroupsAggregation(ClusteringActionRequest request, int shardSampleSize) {
+        SearchRequest searchRequest = request.getSearchRequest();
+        SearchSourceBuilder source = searchRequest.source();
+        if (source == null) {
+            source = new SearchSourceBuilder();
+            searchRequest.source(source);
+        }
+        if (source.size() < 0) {
+            source.size(0);
+        }
+
+        EntityGroupsAggregationBuilder groups = new EntityGroupsAggregationBuilder(GROUPS_AGGREGATION)
+                .field(ENTITY_FIELD)
+                .size(Math.min(request.getMaxGroups(), MAX_AGGREGATION_GROUPS))
+                .topDocs(request.isIncludeDocuments()
+                        ? Math.min(request.getMaxDocsPerGroup(), MAX_AGGREGATION_DOCUMENTS)
+                        : 0)
+                .rankBy(request.getGroupRanking());
+        ClustersCursor after = request.getClustersAfter();
+        if (after != null) {
+            groups.after(after.getValue(), after.getKey());
+        }
+        addGroupsAggregation(request, source, groups, shardSampleSize);
+    }
+
+    /**
+     * Makes sure the delegate search fetches the grouping key when the caller
+     * disabled or narrowed <code>_source</code>. Requests fetching full sources
+     * are left alone, the key is then read from each hit's source.
+     *
+     * @param docValues Fetch the key with <code>docvalue_fields</code> rather
+     *                  than a <code>_source</code> include.
+     */
+    static void addGroupingKey(SearchRequest searchRequest, boolean docValues) {
+        SearchSourceBuilder source = searchRequest.source();
+        if (source == null) {
+            return;
+        }
+
+        FetchSourceContext fetchSource = source.fetchSource();
+        if (fetchSource == null || isFullSource(fetchSource)) {
+            return;
+        }
+
+        if (docValues) {
+            source.docValueField(ENTITY_FIELD);
+        } else if (!fetchSource.fetchSource()) {
+            source.fetchSource(new String[] {ENTITY_FIELD}, null);
+        } else if (fetchSource.includes().length > 0
+                && !Arrays.asList(fetchSource.includes()).contains(ENTITY_FIELD)) {
+            String[] includes = Arrays.copyOf(fetchSource.includes(), fetchSource.includes().length + 1);
+            includes[includes.length - 1] = ENTITY_FIELD;
+            source.fetchSource(includes, fetchSource.excludes());
+        }
+    }
+
+    private static boolean isFullSource(FetchSourceContext fetchSource) {
+        return fetchSource.fetchSource()
+                && fetchSource.includes().length == 0
+                && fetchSource.excludes().length == 0;
+    }
+
+    /**
+     * Reads the grouping key of a hit. Fetched fields (doc values) are
+     * preferred; otherwise the source is scanned up to the key, without
+     * materializing it as a map.
+     */
+    static String entityKey(SearchHit hit) throws IOException {
+        SearchHitField field = hit.field(ENTITY_FIELD);
+        if (field != null) {
+            Object value = field.getValue();
+            return value == null ? null : value.toString();
+        }
+
+        BytesReference source = hit.sourceRef();
+        if (source == null) {
+            return null;
+        }
+
+        try (XContentParser parser = XContentHelper.createParser(NamedXContentRegistry.EMPTY, source)) {
+            if (parser.nextToken() != XContentParser.Token.START_OBJECT) {
+                return null;
+            }
+
+            XContentParser.Token token;
+            while ((token = parser.nextToken()) == XContentParser.Token.FIELD_NAME) {
+                String fieldName = parser.currentName();
+                token = parser.nextToken();
+                if (ENTITY_FIELD.equals(fieldName)) {
+                    return token.isValue() ? parser.text() : null;
+                }
+                parser.skipChildren();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Groups the returned hits by their {@link #ENTITY_FIELD}, largest groups first.
+     *
+     * @see EntityGrouper
+     */
+    static EntityClusters groupHits(SearchResponse searchResponse, ClusteringActionRequest request)
+            throws IOException {
+        SearchHit[] hits = searchResponse.getHits().getHits();
+        EntityGrouper grouper = new EntityGrouper(hits.length, request.getMaxDocsPerGroup());
+        for (SearchHit hit : hits) {
+            grouper.add(entityKey(hit), hit.getId(), hit.getScore());
+        }
+        return grouper.build(request.getMaxGroups(), request.getGroupRanking(), request.getClustersAfter());
+    }
+
+    /**
+     * Groups hits by their {@link #ENTITY_FIELD} with default options: all
+     * groups with all their documents, largest groups first.
+     */
+    static EntityClusters groupHits(SearchHit[] hits) throws IOException {
+        EntityGrouper grouper = new EntityGrouper(hits.length);
+        for (SearchHit hit : hits) {
+            grouper.add(entityKey(hit), hit.getId(), hit.getScore());
+        }
+        return grouper.build();
+    }
+
+    /**
+     * Builds groups from the reduced aggregation added by
+     * {@link #addAggregation(ClusteringActionRequest, int)}.
+     */
+    static EntityClusters groupAggregation(SearchResponse searchResponse, ClusteringActionRequest request) {
+        EntityClusters.Builder clusters = new EntityClusters.Builder().withDocCounts();
+
+        Aggregations aggregations = groupingAggregations(searchResponse);
+        Terms groups = aggregations == null ? null : aggregations.get(GROUPS_AGGREGATION);
+        if (groups == null) {
+            return clusters.build();
+        }
+
+        for (Terms.Bucket bucket : groups.getBuckets()) {
+            List<String> ids = new ArrayList<>();
+            TopHits documents = bucket.getAggregations().get(DOCUMENTS_AGGREGATION);
+            if (documents != null) {
+                for (SearchHit hit : documents.getHits().getHits()) {
+                    ids.add(hit.getId());
+                }
+            }
+
+            NumericMetricsAggregation.SingleValue score = bucket.getAggregations().get(SCORE_AGGREGATION);
+            if (score != null) {
+                clusters.add(bucket.getKeyAsString(), bucket.getDocCount(), (float) score.value(), ids);
+            } else {
+                clusters.add(bucket.getKeyAsString(), bucket.getDocCount(), ids);
+            }
+        }
+        return clusters.build();
+    }
+
+    /**
+     * Builds groups from the reduced aggregation added by
+     * {@link #addEntityGroupsAggregation(ClusteringActionRequest, int)}.
+     */
+    static EntityClusters groupEntityGroups(SearchResponse searchResponse, ClusteringActionRequest request) {
+        EntityClusters.Builder clusters = new EntityClusters.Builder().withDocCounts();
+
+        Aggregations aggregations = groupingAggregations(searchResponse);
+        InternalEntityGroups groups = aggregations == null ? null : aggregations.get(GROUPS_AGGREGATION);
+        if (groups == null) {
+            return clusters.build();
+        }
+
+        for (InternalEntityGroups.Group group : groups.getGroups()) {
+            switch (request.getGroupRanking()) {
+                case SIZE:
+                    clusters.add(group.getKey(), group.getDocCount(), group.getDocCountError(), Float.NaN,
+                            group.getIds());
+                    break;
+                case SCORE_SUM:
+                    clusters.add(group.getKey(), group.getDocCount(), group.getDocCountError(),
+                            (float) group.getScoreSum(), group.getIds());
+                    break;
+                case SCORE_MAX:
+                    clusters.add(group.getKey(), group.getDocCount(), group.getDocCountError(),
+                            group.getMaxScore(), group.getIds());
+                    break;
+                default:
+                    throw Preconditions.unreachable();
+            }
+        }
+        return clusters.build();
+    }
+}
@@ -0,0 +1,354 @@
+package org.entitysearch.elasticsearch;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.fielddata.IndexFieldData;
+import org.elasticsearch.index.fielddata.IndexOrdinalsFieldData;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.query.QueryParseContext;
+import org.elasticsearch.search.aggregations.AbstractAggregationBuilder;
+import org.elasticsearch.search.aggregations.AggregationExecutionException;
+import org.elasticsearch.search.aggregations.AggregationInitializationException;
+import org.elasticsearch.search.aggregations.Aggregator;
+import org.elasticsearch.search.aggregations.AggregatorFactories;
+import org.elasticsearch.search.aggregations.AggregatorFactory;
+import org.elasticsearch.search.aggregations.InternalAggregation.Type;
+import org.elasticsearch.search.aggregations.pipeline.PipelineAggregator;
+import org.elasticsearch.search.aggregations.support.ValuesSource;
+import org.elasticsearch.search.internal.SearchContext;
+
+/**
+ * The <code>entity_groups</code> aggregation: groups matching documents by
+ * the global ordinals of a keyword field (<code>entityContent</code> by
+ * default), keeping per-group counts, score statistics and the ids of the
+ * best scoring documents. Only the best <code>shard_size</code> groups of
+ * each shard are returned and merged on the coordinating node.
+ *
+ * <p>With <code>after</code>, only groups ranked after the given rank value
+ * (size or score) and key are returned: shards skip groups that already
+ * rank before it, so later pages cost no more than the first one.
+ *
+ * <pre>
+ * "entity_groups": { "field": "entityContent", "size": 10, "top_docs": 5, "rank_by": "score_max",
+ *                    "after": { "value": 2.5, "key": "person:jan" } }
+ * </pre>
+ */
+public class EntityGroupsAggregationBuilder extends AbstractAggregationBuilder<EntityGroupsAggregationBuilder> {
+    public static final String NAME = "entity_groups";
+    private static final Type TYPE = new Type(NAME);
+
+    private static final ParseField FIELD_FIELD = new ParseField("field");
+    private static final ParseField SIZE_FIELD = new ParseField("size");
+    private static final ParseField SHARD_SIZE_FIELD = new ParseField("shard_size");
+    private static final ParseField TOP_DOCS_FIELD = new ParseField("top_docs");
+    private static final ParseField RANK_BY_FIELD = new ParseField("rank_by");
+    private static final ParseField AFTER_FIELD = new ParseField("after");
+    private static final ParseField VALUE_FIELD = new ParseField("value");
+    private static final ParseField KEY_FIELD = new ParseField("key");
+
+    private String field = EntityGrouping.ENTITY_FIELD;
+    private int size = 10;
+    private int shardSize = -1;
+    private int topDocs = 0;
+    private GroupRanking ranking = GroupRanking.SIZE;
+    private double afterValue;
+    private String afterKey;
+
+    public EntityGroupsAggregationBuilder(String name) {
+        super(name, TYPE);
+    }
+
+    public EntityGroupsAggregationBuilder(StreamInput in) throws IOException {
+        super(in, TYPE);
+        field = in.readString();
+        size = in.readVInt();
+        shardSize = in.readInt();
+        topDocs = in.readVInt();
+        ranking = GroupRanking.fromId(in.readByte());
+        afterKey = in.readOptionalString();
+        afterValue = in.readDouble();
+    }
+
+    @Override
+    protected void doWriteTo(StreamOutput out) throws IOException {
+        out.writeString(field);
+        out.writeVInt(size);
+        out.writeInt(shardSize);
+        out.writeVInt(topDocs);
+        out.writeByte(ranking.id());
+        out.writeOptionalString(afterKey);
+        out.writeDouble(afterValue);
+    }
+
+    /**
+     * Sets the keyword field to group by. Defaults to {@link EntityGrouping#ENTITY_FIELD}.
+     */
+    public EntityGroupsAggregationBuilder field(String field) {
+        this.field = Preconditions.checkNotNull(field);
+        return this;
+    }
+
+    public String field() {
+        return field;
+    }
+
+    /**
+     * Sets the number of groups returned after the reduce. Defaults to 10.
+     */
+    public EntityGroupsAggregationBuilder size(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("[size] must be positive in [" + name + "]: " + size);
+        }
+        this.size = size;
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Sets the number of groups each shard returns. Defaults to
+     * <code>size * 1.5 + 10</code>, as for the <code>terms</code> aggregation.
+     */
+    public EntityGroupsAggregationBuilder shardSize(int shardSize) {
+        if (shardSize <= 0) {
+            throw new IllegalArgumentException("[shard_size] must be positive in [" + name + "]: " + shardSize);
+        }
+        this.shardSize = shardSize;
+        return this;
+    }
+
+    public int shardSize() {
+        return shardSize;
+    }
+
+    /**
+     * Sets the number of best scoring document ids kept per group. Defaults to 0.
+     */
+    public EntityGroupsAggregationBuilder topDocs(int topDocs) {
+        if (topDocs < 0) {
+            throw new IllegalArgumentException("[top_docs] must not be negative in [" + name + "]: " + topDocs);
+        }
+        this.topDocs = topDocs;
+        return this;
+    }
+
+    public int topDocs() {
+        return topDocs;
+    }
+
+    /**
+     * Sets how groups are ranked. Defaults to {@link GroupRanking#SIZE}.
+     */
+    public EntityGroupsAggregationBuilder rankBy(GroupRanking ranking) {
+        this.ranking = Preconditions.checkNotNull(ranking);
+        return this;
+    }
+
+    public GroupRanking rankBy() {
+        return ranking;
+    }
+
+    /**
+     * Only returns groups ranked after the group with the given rank value
+     * (its size or score under {@link #rankBy(GroupRanking)}) and key.
+     */
+    public EntityGroupsAggregationBuilder after(double value, String key) {
+        this.afterValue = value;
+        this.afterKey = Preconditions.checkNotNull(key);
+        return this;
+    }
+
+    public double afterValue() {
+        return afterValue;
+    }
+
+    /**
+     * @return The key set with {@link #after(double, String)}, <code>null</code> if none.
+     */
+    public String afterKey() {
+        return afterKey;
+    }
+
+    @Override
+    public EntityGroupsAggregationBuilder subAggregations(AggregatorFactories.Builder subFactories) {
+        throw new AggregationInitializationException("Aggregator [" + name + "] of type ["
+                + NAME + "] cannot accept sub-aggregations");
+    }
+
+    @Override
+    protected AggregatorFactory<?> doBuild(SearchContext context, AggregatorFactory<?> parent,
+                                           AggregatorFactories.Builder subFactoriesBuilder) throws IOException {
+        int shardSize = this.shardSize > 0 ? this.shardSize : (int) Math.min(Integer.MAX_VALUE, size * 3L / 2 + 10);
+        if (context.numberOfShards() == 1) {
+            shardSize = size;
+        }
+        return new Factory(name, context, parent, subFactoriesBuilder, metaData,
+                field, size, Math.max(shardSize, size), topDocs, ranking, afterValue, afterKey);
+    }
+
+    @Override
+    protected XContentBuilder internalXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        builder.field(FIELD_FIELD.getPreferredName(), field);
+        builder.field(SIZE_FIELD.getPreferredName(), size);
+        if (shardSize > 0) {
+            builder.field(SHARD_SIZE_FIELD.getPreferredName(), shardSize);
+        }
+        builder.field(TOP_DOCS_FIELD.getPreferredName(), topDocs);
+        builder.field(RANK_BY_FIELD.getPreferredName(), ranking.toString());
+        if (afterKey != null) {
+            builder.startObject(AFTER_FIELD.getPreferredName())
+                    .field(VALUE_FIELD.getPreferredName(), afterValue)
+                    .field(KEY_FIELD.getPreferredName(), afterKey)
+                    .endObject();
+        }
+        builder.endObject();
+        return builder;
+    }
+
+    static EntityGroupsAggregationBuilder parse(String aggregationName, QueryParseContext context) throws IOException {
+        XContentParser parser = context.parser();
+        EntityGroupsAggregationBuilder builder = new EntityGroupsAggregationBuilder(aggregationName);
+
+        String currentFieldName = null;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (token.isValue()) {
+                if (FIELD_FIELD.match(currentFieldName)) {
+                    builder.field(parser.text());
+                } else if (SIZE_FIELD.match(currentFieldName)) {
+                    builder.size(parser.intValue());
+                } else if (SHARD_SIZE_FIELD.match(currentFieldName)) {
+                    builder.shardSize(parser.intValue());
+                } else if (TOP_DOCS_FIELD.match(currentFieldName)) {
+                    builder.topDocs(parser.intValue());
+                } else if (RANK_BY_FIELD.match(currentFieldName)) {
+                    builder.rankBy(GroupRanking.fromString(parser.text()));
+                } else {
+                    throw new ParsingException(parser.getTokenLocation(),
+                            "Unknown key for a " + token + " in [" + aggregationName + "]: [" + currentFieldName + "].");
+                }
+            } else if (token == XContentParser.Token.START_OBJECT && AFTER_FIELD.match(currentFieldName)) {
+                parseAfter(parser, aggregationName, builder);
+            } else {
+                throw new ParsingException(parser.getTokenLocation(),
+                        "Unexpected token " + token + " in [" + aggregationName + "].");
+            }
+        }
+        return builder;
+    }
+
+    private static void parseAfter(XContentParser parser, String aggregationName,
+                                   EntityGroupsAggregationBuilder builder) throws IOException {
+        Double value = null;
+        String key = null;
+        String currentFieldName = null;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (token.isValue() && VALUE_FIELD.match(currentFieldName)) {
+                value = parser.doubleValue();
+            } else if (token.isValue() && KEY_FIELD.match(currentFieldName)) {
+                key = parser.text();
+            } else {
+                throw new ParsingException(parser.getTokenLocation(),
+                        "Unknown key for a " + token + " in [" + aggregationName + "." + AFTER_FIELD.getPreferredName()
+                                + "]: [" + currentFieldName + "].");
+            }
+        }
+        if (value == null || key == null) {
+            throw new ParsingException(parser.getTokenLocation(),
+                    "[" + AFTER_FIELD.getPreferredName() + "] requires [value] and [key] in [" + aggregationName + "].");
+        }
+        builder.after(value, key);
+    }
+
+    @Override
+    protected int doHashCode() {
+        return Objects.hash(field, size, shardSize, topDocs, ranking, afterValue, afterKey);
+    }
+
+    @Override
+    protected boolean doEquals(Object obj) {
+        EntityGroupsAggregationBuilder other = (EntityGroupsAggregationBuilder) obj;
+        return field.equals(other.field)
+                && size == other.size
+                && shardSize == other.shardSize
+                && topDocs == other.topDocs
+                && ranking == other.ranking
+                && Double.compare(afterValue, other.afterValue) == 0
+                && Objects.equals(afterKey, other.afterKey);
+    }
+
+    @Override
+    public String getWriteableName() {
+        return NAME;
+    }
+
+    /**
+     * Resolves the field's global ordinals and creates the shard-level aggregator.
+     */
+    private static final class Factory extends AggregatorFactory<Factory> {
+        private final String field;
+        private final int size;
+        private final int shardSize;
+        private final int topDocs;
+        private final GroupRanking ranking;
+        private final double afterValue;
+        private final String afterKey;
+
+        Factory(String name, SearchContext context, AggregatorFactory<?> parent,
+                AggregatorFactories.Builder subFactoriesBuilder, Map<String, Object> metaData,
+                String field, int size, int shardSize, int topDocs, GroupRanking ranking,
+                double afterValue, String afterKey) throws IOException {
+            super(name, TYPE, context, parent, subFactoriesBuilder, metaData);
+            this.field = field;
+            this.size = size;
+            this.shardSize = shardSize;
+            this.topDocs = topDocs;
+            this.ranking = ranking;
+            this.afterValue = afterValue;
+            this.afterKey = afterKey;
+        }
+
+        @Override
+        protected Aggregator createInternal(Aggregator parent, boolean collectsFromSingleBucket,
+                                            List<PipelineAggregator> pipelineAggregators,
+                                            Map<String, Object> metaData) throws IOException {
+            if (!collectsFromSingleBucket) {
+                // Under a single-bucket aggregation such as the sampler of approximate
+                // requests: one aggregator per parent bucket.
+                return asMultiBucketAggregator(this, context, parent);
+            }
+
+            ValuesSource.Bytes.WithOrdinals valuesSource = null;
+            MappedFieldType fieldType = context.smartNameFieldType(field);
+            if (fieldType != null) {
+                IndexFieldData<?> fieldData = context.fieldData().getForField(fieldType);
+                if (!(fieldData instanceof IndexOrdinalsFieldData)) {
+                    throw new AggregationExecutionException("[" + NAME + "] aggregation [" + name
+                            + "] requires a keyword field with doc values, got [" + field + "] of type ["
+                            + fieldType.typeName() + "]");
+                }
+                valuesSource = new ValuesSource.Bytes.WithOrdinals.FieldData((IndexOrdinalsFieldData) fieldData);
+            }
+
+            return new EntityGroupsAggregator(name, context, parent, valuesSource,
+                    size, shardSize, topDocs, ranking, afterValue, afterKey, pipelineAggregators, metaData);
+        }
+    }
+}
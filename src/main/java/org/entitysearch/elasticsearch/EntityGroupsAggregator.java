@@ -0,0 +1,354 @@
+package org.entitysearch.elasticsearch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.RandomAccessOrds;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.PriorityQueue;
+import org.elasticsearch.common.lease.Releasables;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.common.util.DoubleArray;
+import org.elasticsearch.common.util.FloatArray;
+import org.elasticsearch.common.util.IntArray;
+import org.elasticsearch.common.util.LongArray;
+import org.elasticsearch.index.fieldvisitor.FieldsVisitor;
+import org.elasticsearch.search.aggregations.Aggregator;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.LeafBucketCollector;
+import org.elasticsearch.search.aggregations.metrics.MetricsAggregator;
+import org.elasticsearch.search.aggregations.pipeline.PipelineAggregator;
+import org.elasticsearch.search.aggregations.support.ValuesSource;
+import org.elasticsearch.search.internal.SearchContext;
+
+/**
+ * Shard-level collector of {@link EntityGroupsAggregationBuilder}: per-group
+ * statistics are kept in arrays indexed by the global ordinal of the key,
+ * the best documents of each group in a bounded heap of global doc ids.
+ * Heaps are allocated a <code>top_docs</code> slot at a time, on a group's
+ * first document, from {@link BigArrays} so they are charged to the request
+ * circuit breaker. Keys and document ids are only resolved for the groups
+ * the shard returns. Groups already ranked at or before the
+ * <code>after</code> position are skipped, so they do not take up the
+ * shard's <code>shard_size</code>.
+ */
+final class EntityGroupsAggregator extends MetricsAggregator {
+    private final ValuesSource.Bytes.WithOrdinals valuesSource;
+    private final int size;
+    private final int shardSize;
+    private final int topDocs;
+    private final GroupRanking ranking;
+    private final double afterValue;
+    private final String afterKey;
+    private final boolean needsScores;
+
+    private LongArray counts;
+    private DoubleArray scoreSums;
+    private FloatArray maxScores;
+
+    /** Heap slot of each ordinal plus one, zero if it has no documents yet. */
+    private IntArray slots;
+    /** Number of documents in each heap. */
+    private IntArray heapSizes;
+    /** Heap of slot <code>s</code> spans <code>[s * topDocs, (s + 1) * topDocs)</code>. */
+    private IntArray heapDocs;
+    private FloatArray heapScores;
+    private int nextSlot;
+
+    EntityGroupsAggregator(String name, SearchContext context, Aggregator parent,
+                           ValuesSource.Bytes.WithOrdinals valuesSource,
+                           int size, int shardSize, int topDocs, GroupRanking ranking,
+                           double afterValue, String afterKey,
+                           List<PipelineAggregator> pipelineAggregators,
+                           Map<String, Object> metaData) throws IOException {
+        super(name, context, parent, pipelineAggregators, metaData);
+        this.valuesSource = valuesSource;
+        this.size = size;
+        this.shardSize = shardSize;
+        this.topDocs = topDocs;
+        this.ranking = ranking;
+        this.afterValue = afterValue;
+        this.afterKey = afterKey;
+        this.needsScores = ranking.isScoreBased() || topDocs > 0;
+
+        if (valuesSource != null) {
+            long maxOrd = valuesSource.globalMaxOrd(context.searcher());
+            BigArrays bigArrays = context.bigArrays();
+            counts = bigArrays.newLongArray(maxOrd, true);
+            if (needsScores) {
+                scoreSums = bigArrays.newDoubleArray(maxOrd, true);
+                maxScores = bigArrays.newFloatArray(maxOrd, false);
+            }
+            if (topDocs > 0) {
+                slots = bigArrays.newIntArray(maxOrd, true);
+                heapSizes = bigArrays.newIntArray(1, true);
+                heapDocs = bigArrays.newIntArray(topDocs, false);
+                heapScores = bigArrays.newFloatArray(topDocs, false);
+            }
+        }
+    }
+
+    @Override
+    public boolean needsScores() {
+        return needsScores;
+    }
+
+    @Override
+    protected LeafBucketCollector getLeafCollector(LeafReaderContext ctx, LeafBucketCollector sub) throws IOException {
+        if (valuesSource == null) {
+            return LeafBucketCollector.NO_OP_COLLECTOR;
+        }
+
+        final RandomAccessOrds ords = valuesSource.globalOrdinalsValues(ctx);
+        final int docBase = ctx.docBase;
+        return new LeafBucketCollector() {
+            private Scorer scorer;
+
+            @Override
+            public void setScorer(Scorer scorer) throws IOException {
+                this.scorer = scorer;
+            }
+
+            @Override
+            public void collect(int doc, long bucket) throws IOException {
+                ords.setDocument(doc);
+                final int cardinality = ords.cardinality();
+                if (cardinality == 0) {
+                    return;
+                }
+
+                final float score = needsScores ? scorer.score() : 0f;
+                for (int i = 0; i < cardinality; i++) {
+                    add(ords.ordAt(i), docBase + doc, score);
+                }
+            }
+        };
+    }
+
+    private void add(long ord, int globalDoc, float score) {
+        long count = counts.increment(ord, 1);
+        if (scoreSums != null) {
+            scoreSums.increment(ord, score);
+            if (count == 1 || score > maxScores.get(ord)) {
+                maxScores.set(ord, score);
+            }
+        }
+        if (slots != null) {
+            int slot = slots.get(ord) - 1;
+            if (slot < 0) {
+                slot = nextSlot++;
+                slots.set(ord, nextSlot);
+                BigArrays bigArrays = context.bigArrays();
+                heapSizes = bigArrays.grow(heapSizes, nextSlot);
+                heapDocs = bigArrays.grow(heapDocs, (long) nextSlot * topDocs);
+                heapScores = bigArrays.grow(heapScores, (long) nextSlot * topDocs);
+            }
+            addTopDoc(slot, globalDoc, score);
+        }
+    }
+
+    /**
+     * Adds a document to a group's heap: a min-heap on score (ties keep the
+     * earlier document) bounded to <code>top_docs</code> entries.
+     */
+    private void addTopDoc(int slot, int doc, float score) {
+        long base = (long) slot * topDocs;
+        int heapSize = heapSizes.get(slot);
+        if (heapSize < topDocs) {
+            heapDocs.set(base + heapSize, doc);
+            heapScores.set(base + heapSize, score);
+            heapSizes.set(slot, heapSize + 1);
+            upHeap(base, heapSize);
+        } else if (score > heapScores.get(base)) {
+            heapDocs.set(base, doc);
+            heapScores.set(base, score);
+            downHeap(base, heapSize);
+        }
+    }
+
+    private boolean lessThan(long i, long j) {
+        float scoreI = heapScores.get(i);
+        float scoreJ = heapScores.get(j);
+        return scoreI < scoreJ || (scoreI == scoreJ && heapDocs.get(i) > heapDocs.get(j));
+    }
+
+    private void upHeap(long base, int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!lessThan(base + i, base + parent)) {
+                break;
+            }
+            swap(base + i, base + parent);
+            i = parent;
+        }
+    }
+
+    private void downHeap(long base, int heapSize) {
+        int i = 0;
+        while (true) {
+            int smallest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < heapSize && lessThan(base + left, base + smallest)) {
+                smallest = left;
+            }
+            if (right < heapSize && lessThan(base + right, base + smallest)) {
+                smallest = right;
+            }
+            if (smallest == i) {
+                return;
+            }
+            swap(base + i, base + smallest);
+            i = smallest;
+        }
+    }
+
+    private void swap(long i, long j) {
+        heapDocs.set(i, heapDocs.set(j, heapDocs.get(i)));
+        heapScores.set(i, heapScores.set(j, heapScores.get(i)));
+    }
+
+    @Override
+    public InternalAggregation buildAggregation(long owningBucketOrdinal) throws IOException {
+        if (valuesSource == null || context.searcher().getIndexReader().leaves().isEmpty()) {
+            return buildEmptyAggregation();
+        }
+
+        // Global ordinals resolve from any segment's view.
+        RandomAccessOrds lookup = valuesSource.globalOrdinalsValues(context.searcher().getIndexReader().leaves().get(0));
+
+        // Ordinals up to lastOrd have keys up to the after key. A group's size
+        // or score on a shard never exceeds its total (scores are not negative),
+        // so a group ranked at or before the after position here is globally too.
+        long lastOrd = -1;
+        if (afterKey != null) {
+            long ord = lookup.lookupTerm(new BytesRef(afterKey));
+            lastOrd = ord >= 0 ? ord : -ord - 2;
+        }
+
+        // Select the best shard_size groups; the queue's top is the worst kept one.
+        GroupQueue queue = new GroupQueue((int) Math.min(shardSize, counts.size()));
+        long candidates = 0;
+        Candidate spare = null;
+        for (long ord = 0; ord < counts.size(); ord++) {
+            long count = counts.get(ord);
+            if (count == 0) {
+                continue;
+            }
+            if (spare == null) {
+                spare = new Candidate();
+            }
+            spare.ord = ord;
+            spare.count = count;
+            spare.scoreSum = scoreSums == null ? 0 : scoreSums.get(ord);
+            spare.maxScore = maxScores == null ? Float.NaN : maxScores.get(ord);
+            if (afterKey != null) {
+                double value = InternalEntityGroups.rankValue(ranking, count, spare.scoreSum, spare.maxScore);
+                if (value > afterValue || (value == afterValue && ord <= lastOrd)) {
+                    continue;
+                }
+            }
+            candidates++;
+            spare = queue.insertWithOverflow(spare);
+        }
+
+        // A group the shard leaves out ranks at or below the worst kept one.
+        // Under size ranking that bounds its count here, under score rankings
+        // nothing does.
+        long docCountError = 0;
+        if (candidates > queue.size()) {
+            docCountError = ranking == GroupRanking.SIZE ? queue.top().count : -1;
+        }
+        InternalEntityGroups.Group[] groups = new InternalEntityGroups.Group[queue.size()];
+        for (int i = groups.length - 1; i >= 0; i--) {
+            Candidate candidate = queue.pop();
+            String key = lookup.lookupOrd(candidate.ord).utf8ToString();
+
+            List<String> ids = Collections.emptyList();
+            float[] docScores = new float[0];
+            int slot = slots == null ? -1 : slots.get(candidate.ord) - 1;
+            if (slot >= 0) {
+                Integer[] sorted = sortedHeap(slot);
+                ids = new ArrayList<>(sorted.length);
+                docScores = new float[sorted.length];
+                for (int j = 0; j < sorted.length; j++) {
+                    ids.add(id(heapDocs.get(sorted[j])));
+                    docScores[j] = heapScores.get(sorted[j]);
+                }
+            }
+
+            groups[i] = new InternalEntityGroups.Group(key, candidate.count, 0,
+                    candidate.scoreSum, candidate.maxScore, ids, docScores);
+        }
+
+        List<InternalEntityGroups.Group> result = new ArrayList<>(groups.length);
+        Collections.addAll(result, groups);
+        return new InternalEntityGroups(name, size, topDocs, ranking, afterValue, afterKey, docCountError, result,
+                pipelineAggregators(), metaData());
+    }
+
+    /** @return Array indices of a group's heap by descending score, then ascending doc. */
+    private Integer[] sortedHeap(int slot) {
+        long base = (long) slot * topDocs;
+        Integer[] sorted = new Integer[heapSizes.get(slot)];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = (int) (base + i);
+        }
+        Arrays.sort(sorted, (a, b) -> {
+            int cmp = Float.compare(heapScores.get(b), heapScores.get(a));
+            return cmp != 0 ? cmp : Integer.compare(heapDocs.get(a), heapDocs.get(b));
+        });
+        return sorted;
+    }
+
+    private String id(int globalDoc) throws IOException {
+        FieldsVisitor visitor = new FieldsVisitor(false);
+        context.searcher().doc(globalDoc, visitor);
+        return visitor.uid().id();
+    }
+
+    @Override
+    public InternalAggregation buildEmptyAggregation() {
+        return new InternalEntityGroups(name, size, topDocs, ranking, afterValue, afterKey, 0,
+                Collections.emptyList(), pipelineAggregators(), metaData());
+    }
+
+    @Override
+    protected void doClose() {
+        Releasables.close(counts, scoreSums, maxScores, slots, heapSizes, heapDocs, heapScores);
+    }
+
+    private static final class Candidate {
+        long ord;
+        long count;
+        double scoreSum;
+        float maxScore;
+    }
+
+    /**
+     * Orders candidates worst first: by the ranking, then by descending
+     * ordinal (ordinals follow key order, ascending keys win ties).
+     */
+    private final class GroupQueue extends PriorityQueue<Candidate> {
+        GroupQueue(int maxSize) {
+            super(maxSize);
+        }
+
+        @Override
+        protected boolean lessThan(Candidate a, Candidate b) {
+            int cmp = InternalEntityGroups.compare(ranking,
+                    a.count, a.scoreSum, a.maxScore,
+                    b.count, b.scoreSum, b.maxScore);
+            if (cmp != 0) {
+                return cmp < 0;
+            }
+            return a.ord > b.ord;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package org.entitysearch.elasticsearch;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Objects;
+import java.util.Set;
+
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.index.TermState;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.ConjunctionDISI;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.search.TwoPhaseIterator;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * Matches documents in which the terms occur in order, each at a position
+ * after the previous one, with at most <code>slop</code> positions between
+ * the first and the last term beyond the query's own length. Terms may come
+ * from different fields whose positions are aligned (entity fields carry the
+ * placeholder at the positions of entity mentions in the text).
+ *
+ * <p>This is what <code>span_near</code> (in order) over <code>span_term</code>
+ * and <code>field_masking_span</code> clauses computes, evaluated directly on
+ * postings: documents are first found by a conjunction of the terms, led by the
+ * rarest one, and positions are only read for the documents it returns. Scores
+ * use the similarity of the masking field with a sloppy frequency, as
+ * <code>span_near</code> does.
+ */
+final class EntityNearQuery extends Query {
+    /**
+     * Approximate cost of reading a position relative to advancing a
+     * postings list, used to order two-phase checks.
+     */
+    private static final int POSITION_COST = 4;
+
+    private final Term[] terms;
+    private final String scoreField;
+    private final int slop;
+
+    EntityNearQuery(Term[] terms, String scoreField, int slop) {
+        if (terms.length == 0) {
+            throw new IllegalArgumentException("At least one term is required.");
+        }
+        if (slop < 0) {
+            throw new IllegalArgumentException("Slop must not be negative: " + slop);
+        }
+        this.terms = terms.clone();
+        this.scoreField = Objects.requireNonNull(scoreField);
+        this.slop = slop;
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+        return new EntityNearWeight(searcher, needsScores);
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder b = new StringBuilder("entity_near(");
+        for (int i = 0; i < terms.length; i++) {
+            if (i > 0) {
+                b.append(' ');
+            }
+            b.append(terms[i].field().equals(field) ? terms[i].text() : terms[i].toString());
+        }
+        return b.append(", slop=").append(slop).append(')').toString();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!sameClassAs(other)) {
+            return false;
+        }
+        EntityNearQuery that = (EntityNearQuery) other;
+        return slop == that.slop
+                && scoreField.equals(that.scoreField)
+                && Arrays.equals(terms, that.terms);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * (31 * classHash() + Arrays.hashCode(terms)) + scoreField.hashCode()) + slop;
+    }
+
+    private final class EntityNearWeight extends Weight {
+        private final boolean needsScores;
+        private final Similarity similarity;
+        private final Similarity.SimWeight simWeight;
+        private final TermContext[] termContexts;
+
+        EntityNearWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+            super(EntityNearQuery.this);
+            this.needsScores = needsScores;
+            this.similarity = searcher.getSimilarity(needsScores);
+
+            IndexReaderContext topContext = searcher.getTopReaderContext();
+            termContexts = new TermContext[terms.length];
+            TermStatistics[] termStats = new TermStatistics[terms.length];
+            for (int i = 0; i < terms.length; i++) {
+                termContexts[i] = TermContext.build(topContext, terms[i]);
+                termStats[i] = searcher.termStatistics(terms[i], termContexts[i]);
+            }
+            this.simWeight = needsScores
+                    ? similarity.computeWeight(searcher.collectionStatistics(scoreField), termStats)
+                    : null;
+        }
+
+        @Override
+        public void extractTerms(Set<Term> set) {
+            Collections.addAll(set, terms);
+        }
+
+        @Override
+        public float getValueForNormalization() throws IOException {
+            return simWeight == null ? 1f : simWeight.getValueForNormalization();
+        }
+
+        @Override
+        public void normalize(float norm, float boost) {
+            if (simWeight != null) {
+                simWeight.normalize(norm, boost);
+            }
+        }
+
+        @Override
+        public Scorer scorer(LeafReaderContext context) throws IOException {
+            PostingsEnum[] postings = new PostingsEnum[terms.length];
+            float matchCost = 0;
+            for (int i = 0; i < terms.length; i++) {
+                TermState state = termContexts[i].get(context.ord);
+                if (state == null) {
+                    // A term missing from the segment: nothing can match.
+                    return null;
+                }
+
+                Terms fieldTerms = context.reader().terms(terms[i].field());
+                if (!fieldTerms.hasPositions()) {
+                    throw new IllegalStateException("field \"" + terms[i].field()
+                            + "\" was indexed without position data; cannot run "
+                            + EntityNearQueryBuilder.NAME + " (term=" + terms[i].text() + ")");
+                }
+
+                TermsEnum termsEnum = fieldTerms.iterator();
+                termsEnum.seekExact(terms[i].bytes(), state);
+                postings[i] = termsEnum.postings(null, PostingsEnum.POSITIONS);
+                matchCost += POSITION_COST * (termsEnum.totalTermFreq() / (float) termsEnum.docFreq());
+            }
+
+            return new EntityNearScorer(this, postings, matchCost,
+                    needsScores ? similarity.simScorer(simWeight, context) : null);
+        }
+
+        @Override
+        public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+            EntityNearScorer scorer = (EntityNearScorer) scorer(context);
+            if (scorer != null && scorer.iterator().advance(doc) == doc) {
+                Similarity.SimScorer docScorer = similarity.simScorer(simWeight, context);
+                Explanation freq = Explanation.match(scorer.sloppyFreq, "phraseFreq=" + scorer.sloppyFreq);
+                Explanation score = docScorer.explain(doc, freq);
+                return Explanation.match(score.getValue(),
+                        "weight(" + getQuery() + " in " + doc + ") ["
+                                + similarity.getClass().getSimpleName() + "], result of:",
+                        score);
+            }
+            return Explanation.noMatch("no matching term positions");
+        }
+    }
+
+    private final class EntityNearScorer extends Scorer {
+        private final PostingsEnum[] postings;
+        private final DocIdSetIterator approximation;
+        private final TwoPhaseIterator twoPhase;
+        private final Similarity.SimScorer docScorer;
+
+        /** Positions of each term in the current document. */
+        private final int[][] positions;
+        private final int[] counts;
+        private final int[] cursors;
+
+        private int freq;
+        private float sloppyFreq;
+
+        EntityNearScorer(Weight weight, PostingsEnum[] postings, float matchCost,
+                         Similarity.SimScorer docScorer) {
+            super(weight);
+            this.postings = postings;
+            this.docScorer = docScorer;
+            this.positions = new int[postings.length][];
+            this.counts = new int[postings.length];
+            this.cursors = new int[postings.length];
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = new int[4];
+            }
+
+            // The conjunction is led by the cheapest (rarest) postings list.
+            this.approximation = postings.length == 1
+                    ? postings[0]
+                    : ConjunctionDISI.intersectIterators(Arrays.<DocIdSetIterator>asList(postings));
+            this.twoPhase = new TwoPhaseIterator(approximation) {
+                @Override
+                public boolean matches() throws IOException {
+                    return positionsMatch();
+                }
+
+                @Override
+                public float matchCost() {
+                    return matchCost;
+                }
+            };
+        }
+
+        /**
+         * For each position of the first term (in order), takes the earliest
+         * position of every following term after its predecessor; the
+         * resulting alignment is the narrowest one starting there. Stops at
+         * the first match if scores are not needed.
+         */
+        private boolean positionsMatch() throws IOException {
+            for (int i = 0; i < postings.length; i++) {
+                int count = postings[i].freq();
+                positions[i] = ArrayUtil.grow(positions[i], count);
+                for (int j = 0; j < count; j++) {
+                    positions[i][j] = postings[i].nextPosition();
+                }
+                counts[i] = count;
+                cursors[i] = 0;
+            }
+
+            freq = 0;
+            sloppyFreq = 0;
+            final int n = postings.length;
+            outer:
+            for (int s = 0; s < counts[0]; s++) {
+                final int start = positions[0][s];
+                int previous = start;
+                for (int i = 1; i < n; i++) {
+                    int[] termPositions = positions[i];
+                    int cursor = cursors[i];
+                    while (cursor < counts[i] && termPositions[cursor] <= previous) {
+                        cursor++;
+                    }
+                    cursors[i] = cursor;
+                    if (cursor == counts[i]) {
+                        // No later start can be completed either.
+                        break outer;
+                    }
+                    previous = termPositions[cursor];
+                }
+
+                int width = previous + 1 - start - n;
+                if (width <= slop) {
+                    freq++;
+                    if (docScorer == null) {
+                        return true;
+                    }
+                    sloppyFreq += docScorer.computeSlopFactor(width);
+                }
+            }
+            return freq > 0;
+        }
+
+        @Override
+        public int docID() {
+            return approximation.docID();
+        }
+
+        @Override
+        public DocIdSetIterator iterator() {
+            return TwoPhaseIterator.asDocIdSetIterator(twoPhase);
+        }
+
+        @Override
+        public TwoPhaseIterator twoPhaseIterator() {
+            return twoPhase;
+        }
+
+        @Override
+        public int freq() {
+            return freq;
+        }
+
+        @Override
+        public float score() throws IOException {
+            return docScorer == null ? 1f : docScorer.score(docID(), sloppyFreq);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package org.entitysearch.elasticsearch;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.Optional;
+
+import org.apache.lucene.search.Query;
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.query.AbstractQueryBuilder;
+import org.elasticsearch.index.query.QueryParseContext;
+import org.elasticsearch.index.query.QueryShardContext;
+
+/**
+ * The <code>entity_near</code> query: an entity query string matched
+ * positionally by {@link EntityNearQuery}.
+ *
+ * <pre>
+ * { "entity_near": { "query": "#person born in #city", "begin_fields": true, "slop": 7 } }
+ * </pre>
+ */
+public class EntityNearQueryBuilder extends AbstractQueryBuilder<EntityNearQueryBuilder> {
+    public static final String NAME = "entity_near";
+
+    private static final ParseField QUERY_FIELD = new ParseField("query");
+    private static final ParseField BEGIN_FIELDS_FIELD = new ParseField("begin_fields");
+    private static final ParseField SLOP_FIELD = new ParseField("slop");
+
+    private final String query;
+    private final boolean beginFields;
+    private int slop = EntityQueryTranslator.SLOP;
+
+    /**
+     * @param query The entity query string, tokens separated by spaces.
+     * @param beginFields If <code>true</code> entity tokens match
+     *                    <code>&lt;entity&gt;_begin</code> fields.
+     */
+    public EntityNearQueryBuilder(String query, boolean beginFields) {
+        if (query == null) {
+            throw new IllegalArgumentException("[" + NAME + "] requires a query");
+        }
+        // Fail early on queries without tokens.
+        EntityQueryTranslator.terms(query, beginFields);
+        this.query = query;
+        this.beginFields = beginFields;
+    }
+
+    public EntityNearQueryBuilder(StreamInput in) throws IOException {
+        super(in);
+        query = in.readString();
+        beginFields = in.readBoolean();
+        slop = in.readVInt();
+    }
+
+    @Override
+    protected void doWriteTo(StreamOutput out) throws IOException {
+        out.writeString(query);
+        out.writeBoolean(beginFields);
+        out.writeVInt(slop);
+    }
+
+    public String query() {
+        return query;
+    }
+
+    public boolean beginFields() {
+        return beginFields;
+    }
+
+    /**
+     * Sets the maximum number of positions between the first and the last
+     * term beyond the query's own length. Defaults to {@link EntityQueryTranslator#SLOP}.
+     */
+    public EntityNearQueryBuilder slop(int slop) {
+        if (slop < 0) {
+            throw new IllegalArgumentException("[" + NAME + "] slop must not be negative: " + slop);
+        }
+        this.slop = slop;
+        return this;
+    }
+
+    public int slop() {
+        return slop;
+    }
+
+    @Override
+    protected void doXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(NAME);
+        builder.field(QUERY_FIELD.getPreferredName(), query);
+        builder.field(BEGIN_FIELDS_FIELD.getPreferredName(), beginFields);
+        builder.field(SLOP_FIELD.getPreferredName(), slop);
+        printBoostAndQueryName(builder);
+        builder.endObject();
+    }
+
+    public static Optional<EntityNearQueryBuilder> fromXContent(QueryParseContext parseContext) throws IOException {
+        XContentParser parser = parseContext.parser();
+
+        String query = null;
+        boolean beginFields = false;
+        int slop = EntityQueryTranslator.SLOP;
+        float boost = AbstractQueryBuilder.DEFAULT_BOOST;
+        String queryName = null;
+
+        String currentFieldName = null;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (token.isValue()) {
+                if (QUERY_FIELD.match(currentFieldName)) {
+                    query = parser.text();
+                } else if (BEGIN_FIELDS_FIELD.match(currentFieldName)) {
+                    beginFields = parser.booleanValue();
+                } else if (SLOP_FIELD.match(currentFieldName)) {
+                    slop = parser.intValue();
+                } else if (AbstractQueryBuilder.BOOST_FIELD.match(currentFieldName)) {
+                    boost = parser.floatValue();
+                } else if (AbstractQueryBuilder.NAME_FIELD.match(currentFieldName)) {
+                    queryName = parser.text();
+                } else {
+                    throw new ParsingException(parser.getTokenLocation(),
+                            "[" + NAME + "] query does not support [" + currentFieldName + "]");
+                }
+            } else {
+                throw new ParsingException(parser.getTokenLocation(),
+                        "[" + NAME + "] unexpected token [" + token + "] after [" + currentFieldName + "]");
+            }
+        }
+
+        if (query == null) {
+            throw new ParsingException(parser.getTokenLocation(), "[" + NAME + "] requires [query]");
+        }
+
+        try {
+            return Optional.of(new EntityNearQueryBuilder(query, beginFields)
+                    .slop(slop)
+                    .boost(boost)
+                    .queryName(queryName));
+        } catch (IllegalArgumentException e) {
+            throw new ParsingException(parser.getTokenLocation(), e.getMessage(), e);
+        }
+    }
+
+    @Override
+    protected Query doToQuery(QueryShardContext context) throws IOException {
+        return new EntityNearQuery(EntityQueryTranslator.terms(query, beginFields),
+                EntityQueryTranslator.TEXT_FIELD, slop);
+    }
+
+    @Override
+    protected boolean doEquals(EntityNearQueryBuilder other) {
+        return query.equals(other.query)
+                && beginFields == other.beginFields
+                && slop == other.slop;
+    }
+
+    @Override
+    protected int doHashCode() {
+        return Objects.hash(query, beginFields, slop);
+    }
+
+    @Override
+    public String getWriteableName() {
+        return NAME;
+    }
+}
@@ -0,0 +1,118 @@
+package org.entitysearch.elasticsearch;
+
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.query.QueryBuilder;
+
+/**
+ * A node-level, size-bounded LRU cache of translated entity queries, keyed
+ * by the normalized query string and the <code>d_document</code> flag.
+ * Cached query builders are shared between requests and must never be
+ * modified.
+ */
+final class EntityQueryCache {
+    /**
+     * Maximum number of cached entity queries. Zero disables the cache.
+     */
+    static final Setting<Integer> QUERY_CACHE_SIZE_SETTING =
+            Setting.intSetting("carrot2.query_cache.size", 1000, 0, Property.NodeScope);
+
+    private final Cache<Key, QueryBuilder> cache;
+    private final boolean entityNear;
+
+    EntityQueryCache(Settings settings) {
+        this.entityNear = EntityQueryTranslator.ENTITY_NEAR_SETTING.get(settings);
+        int size = QUERY_CACHE_SIZE_SETTING.get(settings);
+        if (size > 0) {
+            this.cache = CacheBuilder.<Key, QueryBuilder>builder()
+                    .setMaximumWeight(size)
+                    .build();
+        } else {
+            this.cache = null;
+        }
+    }
+
+    /**
+     * Returns the translated query, reusing a cached instance if available.
+     * The query type follows {@link EntityQueryTranslator#ENTITY_NEAR_SETTING}.
+     *
+     * @see EntityQueryTranslator#translate(String, boolean, boolean)
+     */
+    QueryBuilder translate(String query, boolean beginFields) {
+        if (cache == null) {
+            return EntityQueryTranslator.translate(query, beginFields, entityNear);
+        }
+
+        Key key = new Key(EntityQueryTranslator.normalize(query), beginFields);
+        try {
+            return cache.computeIfAbsent(key,
+                    k -> EntityQueryTranslator.translate(k.query, k.beginFields, entityNear));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ClusteringException("Failed to translate query [" + query + "]", e.getCause());
+        }
+    }
+
+    /**
+     * @return Current cache counters.
+     */
+    Stats stats() {
+        if (cache == null) {
+            return new Stats(0, 0, 0, 0);
+        }
+        Cache.CacheStats stats = cache.stats();
+        return new Stats(stats.getHits(), stats.getMisses(), stats.getEvictions(), cache.count());
+    }
+
+    /**
+     * A snapshot of the cache's counters.
+     */
+    static final class Stats {
+        final long hits;
+        final long misses;
+        final long evictions;
+        final long count;
+
+        Stats(long hits, long misses, long evictions, long count) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.count = count;
+        }
+    }
+
+    private static final class Key {
+        final String query;
+        final boolean beginFields;
+
+        Key(String query, boolean beginFields) {
+            this.query = query;
+            this.beginFields = beginFields;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key other = (Key) o;
+            return beginFields == other.beginFields && query.equals(other.query);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(query, beginFields);
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package org.entitysearch.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.apache.lucene.index.Term;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.stats.IndexStats;
+import org.elasticsearch.action.admin.indices.stats.IndicesStatsRequest;
+import org.elasticsearch.action.admin.indices.stats.IndicesStatsResponse;
+import org.elasticsearch.action.admin.indices.stats.TransportIndicesStatsAction;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.query.FieldMaskingSpanQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.SpanNearQueryBuilder;
+import org.elasticsearch.index.query.SpanQueryBuilder;
+import org.elasticsearch.index.query.SpanTermQueryBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilder;
+import org.elasticsearch.search.aggregations.AggregatorFactories;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.entitysearch.elasticsearch.EntityTermStatsAction.EntityTermStatsRequest;
+import org.entitysearch.elasticsearch.EntityTermStatsAction.EntityTermStatsResponse;
+import org.entitysearch.elasticsearch.EntityTermStatsAction.TransportEntityTermStatsAction;
+
+/**
+ * Plans translated entity queries before they are sent to the shards. The
+ * document frequency of every clause in the target indices is looked up with
+ * {@link EntityTermStatsAction}; a query with a clause that occurs nowhere
+ * cannot match, and the search is skipped altogether.
+ *
+ * <p>Frequencies are cached per index and refresh count (looked up with an
+ * indices stats request, as in {@link ClusteringResultCache}), so repeated
+ * queries against an unchanged index cost a single stats round trip.
+ *
+ * <p>Clause order is positional (clauses match in order) and is never
+ * changed; the conjunction of postings is already led by the rarest clause
+ * in every segment. The plan reports which clause that is.
+ */
+final class EntityQueryPlanner {
+    /**
+     * Whether entity queries are planned. Off by default: every planned
+     * request pays an indices stats round trip to all target shards (a
+     * second one if the result cache is enabled too) and, on a cache miss,
+     * a term statistics round trip, which only pays off if queries that
+     * cannot match are common.
+     */
+    static final Setting<Boolean> ENABLED_SETTING =
+            Setting.boolSetting("carrot2.planner.enabled", false, Property.NodeScope);
+
+    /**
+     * Maximum number of cached (index, refresh count, term) frequencies.
+     * Zero disables the cache.
+     */
+    static final Setting<Integer> CACHE_SIZE_SETTING =
+            Setting.intSetting("carrot2.planner.cache_size", 10000, 0, Property.NodeScope);
+
+    private final boolean enabled;
+    private final Cache<Key, Long> cache;
+
+    EntityQueryPlanner(Settings settings) {
+        this.enabled = ENABLED_SETTING.get(settings);
+        int size = CACHE_SIZE_SETTING.get(settings);
+        if (size > 0) {
+            this.cache = CacheBuilder.<Key, Long>builder()
+                    .setMaximumWeight(size)
+                    .build();
+        } else {
+            this.cache = null;
+        }
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return The terms of the request's entity query, in clause order, or
+     * <code>null</code> if the query is not one produced by
+     * {@link EntityQueryTranslator}.
+     */
+    static Term[] terms(SearchRequest searchRequest) {
+        SearchSourceBuilder source = searchRequest.source();
+        QueryBuilder query = source == null ? null : source.query();
+        if (query instanceof EntityNearQueryBuilder) {
+            EntityNearQueryBuilder entityNear = (EntityNearQueryBuilder) query;
+            return EntityQueryTranslator.terms(entityNear.query(), entityNear.beginFields());
+        }
+
+        if (query instanceof SpanNearQueryBuilder && ((SpanNearQueryBuilder) query).inOrder()) {
+            List<SpanQueryBuilder> clauses = ((SpanNearQueryBuilder) query).clauses();
+            Term[] terms = new Term[clauses.size()];
+            for (int i = 0; i < terms.length; i++) {
+                SpanQueryBuilder clause = clauses.get(i);
+                if (clause instanceof FieldMaskingSpanQueryBuilder) {
+                    clause = ((FieldMaskingSpanQueryBuilder) clause).innerQuery();
+                }
+                if (!(clause instanceof SpanTermQueryBuilder)) {
+                    return null;
+                }
+                SpanTermQueryBuilder term = (SpanTermQueryBuilder) clause;
+                terms[i] = new Term(term.fieldName(), term.value().toString());
+            }
+            return terms;
+        }
+        return null;
+    }
+
+    /**
+     * @return <code>true</code> if a response without hits is all the search
+     * could return once its query is known not to match: no scroll,
+     * suggestions or aggregations other than the ones added for grouping.
+     */
+    static boolean canShortCircuit(SearchRequest searchRequest) {
+        SearchSourceBuilder source = searchRequest.source();
+        if (searchRequest.scroll() != null || source.suggest() != null) {
+            return false;
+        }
+
+        AggregatorFactories.Builder aggregations = source.aggregations();
+        if (aggregations != null) {
+            if (!aggregations.getPipelineAggregatorFactories().isEmpty()) {
+                return false;
+            }
+            for (AggregationBuilder aggregation : aggregations.getAggregatorFactories()) {
+                if (!aggregation.getName().startsWith(EntityGrouping.INTERNAL_AGGREGATION_PREFIX)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Looks up the frequencies of <code>terms</code> in the search's target indices.
+     */
+    void plan(SearchRequest searchRequest, Term[] terms,
+              TransportIndicesStatsAction indicesStatsAction,
+              TransportEntityTermStatsAction termStatsAction,
+              ActionListener<QueryPlan> listener) {
+        final long tsStart = System.nanoTime();
+        IndicesStatsRequest statsRequest = new IndicesStatsRequest()
+                .indices(searchRequest.indices())
+                .clear()
+                .refresh(true);
+        statsRequest.indicesOptions(searchRequest.indicesOptions());
+
+        indicesStatsAction.execute(statsRequest, new ActionListener<IndicesStatsResponse>() {
+            @Override
+            public void onResponse(IndicesStatsResponse statsResponse) {
+                final Map<String, Long> generations = new HashMap<>();
+                for (Map.Entry<String, IndexStats> e : statsResponse.getIndices().entrySet()) {
+                    generations.put(e.getKey(), e.getValue().getTotal().getRefresh().getTotal());
+                }
+
+                final long[] docFreqs = new long[terms.length];
+                final List<String> missing = new ArrayList<>();
+                for (Map.Entry<String, Long> e : generations.entrySet()) {
+                    if (!addCached(e.getKey(), e.getValue(), terms, docFreqs)) {
+                        missing.add(e.getKey());
+                    }
+                }
+
+                if (missing.isEmpty()) {
+                    listener.onResponse(new QueryPlan(terms, docFreqs, statsResponse.getFailedShards() == 0,
+                            true, System.nanoTime() - tsStart));
+                    return;
+                }
+
+                EntityTermStatsRequest termStatsRequest =
+                        new EntityTermStatsRequest(missing.toArray(new String[missing.size()])).terms(terms);
+                termStatsAction.execute(termStatsRequest, new ActionListener<EntityTermStatsResponse>() {
+                    @Override
+                    public void onResponse(EntityTermStatsResponse response) {
+                        boolean complete = statsResponse.getFailedShards() == 0
+                                && response.getFailedShards() == 0
+                                && response.getDocFreqs().keySet().containsAll(missing);
+                        for (Map.Entry<String, long[]> e : response.getDocFreqs().entrySet()) {
+                            long[] indexDocFreqs = e.getValue();
+                            for (int i = 0; i < terms.length; i++) {
+                                docFreqs[i] += indexDocFreqs[i];
+                            }
+                            if (complete) {
+                                put(e.getKey(), generations.get(e.getKey()), terms, indexDocFreqs);
+                            }
+                        }
+                        listener.onResponse(new QueryPlan(terms, docFreqs, complete, false,
+                                System.nanoTime() - tsStart));
+                    }
+
+                    @Override
+                    public void onFailure(Exception e) {
+                        listener.onFailure(e);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                listener.onFailure(e);
+            }
+        });
+    }
+
+    /**
+     * Adds cached frequencies of all terms in an index to <code>docFreqs</code>.
+     *
+     * @return <code>false</code> (leaving <code>docFreqs</code> untouched) if
+     * any of them is not cached.
+     */
+    private boolean addCached(String index, long generation, Term[] terms, long[] docFreqs) {
+        if (cache == null) {
+            return false;
+        }
+
+        long[] cached = new long[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            Long docFreq = cache.get(new Key(index, generation, terms[i]));
+            if (docFreq == null) {
+                return false;
+            }
+            cached[i] = docFreq;
+        }
+        for (int i = 0; i < terms.length; i++) {
+            docFreqs[i] += cached[i];
+        }
+        return true;
+    }
+
+    private void put(String index, Long generation, Term[] terms, long[] docFreqs) {
+        if (cache == null || generation == null) {
+            return;
+        }
+        for (int i = 0; i < terms.length; i++) {
+            cache.put(new Key(index, generation, terms[i]), docFreqs[i]);
+        }
+    }
+
+    private static final class Key {
+        final String index;
+        final long generation;
+        final Term term;
+
+        Key(String index, long generation, Term term) {
+            this.index = index;
+            this.generation = generation;
+            this.term = term;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key other = (Key) o;
+            return generation == other.generation && index.equals(other.index) && term.equals(other.term);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(index, generation, term);
+        }
+    }
+}
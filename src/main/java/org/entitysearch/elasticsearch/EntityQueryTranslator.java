@@ -0,0 +1,165 @@
+package org.entitysearch.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.index.Term;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.query.FieldMaskingSpanQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.SpanNearQueryBuilder;
+import org.elasticsearch.index.query.SpanQueryBuilder;
+import org.elasticsearch.index.query.SpanTermQueryBuilder;
+
+/**
+ * Translates an entity query string (such as <code>#person born in #city</code>)
+ * into an {@link EntityNearQueryBuilder entity_near} query or, as a fallback,
+ * an equivalent <code>span_near</code> query.
+ *
+ * <p>Tokens starting with <code>#</code> match the {@link #ENTITY_PLACEHOLDER}
+ * term in a per-entity field (or its <code>_begin</code> variant for
+ * {@link #DOCUMENT_TYPE} requests), masked as {@link #TEXT_FIELD} so they can be
+ * combined positionally with plain terms.
+ */
+final class EntityQueryTranslator {
+    /** The field plain query terms are matched against. */
+    static final String TEXT_FIELD = "text";
+
+    /** The token marking entity positions in per-entity fields. */
+    static final String ENTITY_PLACEHOLDER = "oentityo";
+
+    /** Suffix of per-entity fields marking entity starts only. */
+    static final String BEGIN_SUFFIX = "_begin";
+
+    /** Document type for which {@link #BEGIN_SUFFIX} fields are used. */
+    static final String DOCUMENT_TYPE = "d_document";
+
+    /** Prefix of entity tokens in the query string. */
+    static final char ENTITY_PREFIX = '#';
+
+    /** Maximum slop between consecutive clauses. */
+    static final int SLOP = 7;
+
+    /**
+     * Whether entity queries are translated to <code>entity_near</code> or
+     * to <code>span_near</code> over <code>field_masking_span</code> clauses
+     * (the default). Both match the same documents, see
+     * <code>EntityNearQueryTests</code>.
+     */
+    static final Setting<Boolean> ENTITY_NEAR_SETTING =
+            Setting.boolSetting("carrot2.query.entity_near", false, Property.NodeScope);
+
+    private static final String DELIMITER = " ";
+
+    private EntityQueryTranslator() {
+    }
+
+    /**
+     * Translates to the query type {@link #ENTITY_NEAR_SETTING} selects in
+     * <code>settings</code>.
+     *
+     * @see #translate(String, boolean, boolean)
+     */
+    static QueryBuilder translate(String query, boolean beginFields, Settings settings) {
+        return translate(query, beginFields, ENTITY_NEAR_SETTING.get(settings));
+    }
+
+    /**
+     * @param query The entity query string, tokens separated by spaces.
+     * @param beginFields If <code>true</code> entity tokens match
+     *                    <code>&lt;entity&gt;_begin</code> fields.
+     * @param entityNear If <code>false</code>, translates to <code>span_near</code>.
+     */
+    static QueryBuilder translate(String query, boolean beginFields, boolean entityNear) {
+        return entityNear
+                ? new EntityNearQueryBuilder(normalize(query), beginFields)
+                : translateSpans(query, beginFields);
+    }
+
+    /**
+     * Translates to <code>span_near</code> over <code>span_term</code> and
+     * <code>field_masking_span</code> clauses.
+     */
+    static SpanNearQueryBuilder translateSpans(String query, boolean beginFields) {
+        SpanNearQueryBuilder spanNear = null;
+        for (String token : query.split(DELIMITER)) {
+            if (token.isEmpty()) {
+                continue;
+            }
+
+            SpanQueryBuilder clause = clause(token, beginFields);
+            if (spanNear == null) {
+                spanNear = new SpanNearQueryBuilder(clause, SLOP);
+            } else {
+                spanNear.addClause(clause);
+            }
+        }
+
+        if (spanNear == null) {
+            throw new IllegalArgumentException("Entity query must contain at least one token.");
+        }
+        return spanNear;
+    }
+
+    /**
+     * @return The terms matched by each token, in query order: the
+     * placeholder in the entity's field for entity tokens, the token itself
+     * in {@link #TEXT_FIELD} otherwise.
+     */
+    static Term[] terms(String query, boolean beginFields) {
+        List<Term> terms = new ArrayList<>();
+        for (String token : query.split(DELIMITER)) {
+            if (!token.isEmpty()) {
+                terms.add(new Term(field(token, beginFields), value(token)));
+            }
+        }
+
+        if (terms.isEmpty()) {
+            throw new IllegalArgumentException("Entity query must contain at least one token.");
+        }
+        return terms.toArray(new Term[terms.size()]);
+    }
+
+    /**
+     * @return The query with empty tokens removed, so that queries which
+     * {@link #translate(String, boolean, boolean)} the same way compare equal.
+     */
+    static String normalize(String query) {
+        StringBuilder normalized = new StringBuilder(query.length());
+        for (String token : query.split(DELIMITER)) {
+            if (token.isEmpty()) {
+                continue;
+            }
+            if (normalized.length() > 0) {
+                normalized.append(DELIMITER);
+            }
+            normalized.append(token);
+        }
+        return normalized.toString();
+    }
+
+    private static SpanQueryBuilder clause(String token, boolean beginFields) {
+        SpanTermQueryBuilder term = new SpanTermQueryBuilder(field(token, beginFields), value(token));
+        return isEntity(token)
+                ? new FieldMaskingSpanQueryBuilder(term, TEXT_FIELD)
+                : term;
+    }
+
+    private static boolean isEntity(String token) {
+        return token.charAt(0) == ENTITY_PREFIX;
+    }
+
+    private static String field(String token, boolean beginFields) {
+        if (isEntity(token)) {
+            String field = token.substring(1);
+            return beginFields ? field + BEGIN_SUFFIX : field;
+        }
+        return TEXT_FIELD;
+    }
+
+    private static String value(String token) {
+        return isEntity(token) ? ENTITY_PLACEHOLDER : token;
+    }
+}
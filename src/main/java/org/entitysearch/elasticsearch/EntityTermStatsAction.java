@@ -0,0 +1,351 @@
+package org.entitysearch.elasticsearch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.DefaultShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.BroadcastRequest;
+import org.elasticsearch.action.support.broadcast.BroadcastResponse;
+import org.elasticsearch.action.support.broadcast.BroadcastShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.BroadcastShardRequest;
+import org.elasticsearch.action.support.broadcast.BroadcastShardResponse;
+import org.elasticsearch.action.support.broadcast.TransportBroadcastAction;
+import org.elasticsearch.client.ElasticsearchClient;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.block.ClusterBlockException;
+import org.elasticsearch.cluster.block.ClusterBlockLevel;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.routing.GroupShardsIterator;
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+/**
+ * Looks up the document frequency of a set of terms in one copy of every
+ * shard of the target indices, summed per index. Only term dictionaries are
+ * read, so this is much cheaper than running a query over the same terms.
+ * Used by {@link EntityQueryPlanner}.
+ */
+public class EntityTermStatsAction
+        extends Action<EntityTermStatsAction.EntityTermStatsRequest,
+        EntityTermStatsAction.EntityTermStatsResponse,
+        EntityTermStatsAction.EntityTermStatsRequestBuilder> {
+    /* Action name. */
+    public static final String NAME = "indices:data/read/clustering/term_stats";
+
+    /* Reusable singleton. */
+    public static final EntityTermStatsAction INSTANCE = new EntityTermStatsAction();
+
+    private EntityTermStatsAction() {
+        super(NAME);
+    }
+
+    @Override
+    public EntityTermStatsResponse newResponse() {
+        return new EntityTermStatsResponse();
+    }
+
+    @Override
+    public EntityTermStatsRequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new EntityTermStatsRequestBuilder(client);
+    }
+
+    private static void writeTerms(StreamOutput out, Term[] terms) throws IOException {
+        out.writeVInt(terms.length);
+        for (Term term : terms) {
+            out.writeString(term.field());
+            out.writeString(term.text());
+        }
+    }
+
+    private static Term[] readTerms(StreamInput in) throws IOException {
+        Term[] terms = new Term[in.readVInt()];
+        for (int i = 0; i < terms.length; i++) {
+            terms[i] = new Term(in.readString(), in.readString());
+        }
+        return terms;
+    }
+
+    /**
+     * The terms to look up and the indices to look them up in.
+     */
+    public static class EntityTermStatsRequest extends BroadcastRequest<EntityTermStatsRequest> {
+        private Term[] terms = new Term[0];
+
+        public EntityTermStatsRequest() {
+        }
+
+        public EntityTermStatsRequest(String... indices) {
+            super(indices);
+        }
+
+        public EntityTermStatsRequest terms(Term... terms) {
+            this.terms = Preconditions.checkNotNull(terms);
+            return this;
+        }
+
+        public Term[] terms() {
+            return terms;
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            writeTerms(out, terms);
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            terms = readTerms(in);
+        }
+    }
+
+    /**
+     * An {@link ActionRequestBuilder} for {@link EntityTermStatsAction}.
+     */
+    public static class EntityTermStatsRequestBuilder
+            extends ActionRequestBuilder<EntityTermStatsRequest,
+            EntityTermStatsResponse,
+            EntityTermStatsRequestBuilder> {
+        public EntityTermStatsRequestBuilder(ElasticsearchClient client) {
+            super(client, EntityTermStatsAction.INSTANCE, new EntityTermStatsRequest());
+        }
+
+        public EntityTermStatsRequestBuilder setIndices(String... indices) {
+            super.request.indices(indices);
+            return this;
+        }
+
+        public EntityTermStatsRequestBuilder setTerms(Term... terms) {
+            super.request.terms(terms);
+            return this;
+        }
+    }
+
+    /**
+     * The per-shard request sent by {@link TransportEntityTermStatsAction}.
+     */
+    public static class ShardEntityTermStatsRequest extends BroadcastShardRequest {
+        private Term[] terms;
+
+        public ShardEntityTermStatsRequest() {
+        }
+
+        ShardEntityTermStatsRequest(ShardId shardId, EntityTermStatsRequest request) {
+            super(shardId, request);
+            this.terms = request.terms();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            writeTerms(out, terms);
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            terms = readTerms(in);
+        }
+    }
+
+    /**
+     * Document frequencies of the requested terms in a single shard.
+     */
+    public static class ShardEntityTermStatsResponse extends BroadcastShardResponse {
+        private long[] docFreqs;
+
+        public ShardEntityTermStatsResponse() {
+        }
+
+        ShardEntityTermStatsResponse(ShardId shardId, long[] docFreqs) {
+            super(shardId);
+            this.docFreqs = docFreqs;
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeVLongArray(docFreqs);
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            docFreqs = in.readVLongArray();
+        }
+    }
+
+    /**
+     * Document frequencies of the requested terms, per index, in request order.
+     */
+    public static class EntityTermStatsResponse extends BroadcastResponse {
+        private Map<String, long[]> docFreqs;
+
+        EntityTermStatsResponse() {
+        }
+
+        EntityTermStatsResponse(int totalShards, int successfulShards, int failedShards,
+                                List<DefaultShardOperationFailedException> shardFailures,
+                                Map<String, long[]> docFreqs) {
+            super(totalShards, successfulShards, failedShards, shardFailures);
+            this.docFreqs = docFreqs;
+        }
+
+        /**
+         * @return Document frequencies of each index with at least one
+         * successful shard.
+         */
+        public Map<String, long[]> getDocFreqs() {
+            return docFreqs;
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeVInt(docFreqs.size());
+            for (Map.Entry<String, long[]> e : docFreqs.entrySet()) {
+                out.writeString(e.getKey());
+                out.writeVLongArray(e.getValue());
+            }
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            int size = in.readVInt();
+            docFreqs = new HashMap<>(size);
+            for (int i = 0; i < size; i++) {
+                docFreqs.put(in.readString(), in.readVLongArray());
+            }
+        }
+    }
+
+    /**
+     * A {@link TransportBroadcastAction} for {@link EntityTermStatsAction}.
+     */
+    public static class TransportEntityTermStatsAction
+            extends TransportBroadcastAction<EntityTermStatsRequest,
+            EntityTermStatsResponse,
+            ShardEntityTermStatsRequest,
+            ShardEntityTermStatsResponse> {
+        private final IndicesService indicesService;
+
+        @Inject
+        public TransportEntityTermStatsAction(Settings settings,
+                                              ThreadPool threadPool,
+                                              ClusterService clusterService,
+                                              TransportService transportService,
+                                              IndicesService indicesService,
+                                              ActionFilters actionFilters,
+                                              IndexNameExpressionResolver indexNameExpressionResolver) {
+            super(settings,
+                  EntityTermStatsAction.NAME,
+                  threadPool,
+                  clusterService,
+                  transportService,
+                  actionFilters,
+                  indexNameExpressionResolver,
+                  EntityTermStatsRequest::new,
+                  ShardEntityTermStatsRequest::new,
+                  ThreadPool.Names.SEARCH);
+            this.indicesService = indicesService;
+        }
+
+        @Override
+        protected ShardEntityTermStatsRequest newShardRequest(int numShards, ShardRouting shard,
+                                                              EntityTermStatsRequest request) {
+            return new ShardEntityTermStatsRequest(shard.shardId(), request);
+        }
+
+        @Override
+        protected ShardEntityTermStatsResponse newShardResponse() {
+            return new ShardEntityTermStatsResponse();
+        }
+
+        @Override
+        protected ShardEntityTermStatsResponse shardOperation(ShardEntityTermStatsRequest request)
+                throws IOException {
+            IndexShard shard = indicesService.indexServiceSafe(request.shardId().getIndex())
+                    .getShard(request.shardId().id());
+            try (Engine.Searcher searcher = shard.acquireSearcher("entity_term_stats")) {
+                IndexReader reader = searcher.reader();
+                long[] docFreqs = new long[request.terms.length];
+                for (int i = 0; i < docFreqs.length; i++) {
+                    docFreqs[i] = reader.docFreq(request.terms[i]);
+                }
+                return new ShardEntityTermStatsResponse(request.shardId(), docFreqs);
+            }
+        }
+
+        @Override
+        protected EntityTermStatsResponse newResponse(EntityTermStatsRequest request,
+                                                      AtomicReferenceArray shardsResponses,
+                                                      ClusterState clusterState) {
+            int successfulShards = 0;
+            int failedShards = 0;
+            List<DefaultShardOperationFailedException> shardFailures = null;
+            Map<String, long[]> docFreqs = new HashMap<>();
+            for (int i = 0; i < shardsResponses.length(); i++) {
+                Object shardResponse = shardsResponses.get(i);
+                if (shardResponse == null) {
+                    // A shard without an active copy.
+                    failedShards++;
+                } else if (shardResponse instanceof BroadcastShardOperationFailedException) {
+                    failedShards++;
+                    if (shardFailures == null) {
+                        shardFailures = new ArrayList<>();
+                    }
+                    shardFailures.add(new DefaultShardOperationFailedException(
+                            (BroadcastShardOperationFailedException) shardResponse));
+                } else {
+                    ShardEntityTermStatsResponse response = (ShardEntityTermStatsResponse) shardResponse;
+                    long[] indexDocFreqs = docFreqs.computeIfAbsent(response.getIndex(),
+                            k -> new long[request.terms().length]);
+                    for (int t = 0; t < indexDocFreqs.length; t++) {
+                        indexDocFreqs[t] += response.docFreqs[t];
+                    }
+                    successfulShards++;
+                }
+            }
+            return new EntityTermStatsResponse(shardsResponses.length(), successfulShards, failedShards,
+                    shardFailures, docFreqs);
+        }
+
+        @Override
+        protected GroupShardsIterator shards(ClusterState clusterState, EntityTermStatsRequest request,
+                                             String[] concreteIndices) {
+            return clusterService.operationRouting().searchShards(clusterState, concreteIndices, null, "_local");
+        }
+
+        @Override
+        protected ClusterBlockException checkGlobalBlock(ClusterState state, EntityTermStatsRequest request) {
+            return state.blocks().globalBlockedException(ClusterBlockLevel.READ);
+        }
+
+        @Override
+        protected ClusterBlockException checkRequestBlock(ClusterState state, EntityTermStatsRequest request,
+                                                          String[] concreteIndices) {
+            return state.blocks().indicesBlockedException(ClusterBlockLevel.READ, concreteIndices);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package org.entitysearch.elasticsearch;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * How entity groups are ranked in the response.
+ */
+public enum GroupRanking {
+    /**
+     * Largest groups first.
+     */
+    SIZE((byte) 0),
+
+    /**
+     * Groups with the highest sum of their hits' scores first.
+     */
+    SCORE_SUM((byte) 1),
+
+    /**
+     * Groups with the highest scoring hit first.
+     */
+    SCORE_MAX((byte) 2);
+
+    private final byte id;
+
+    GroupRanking(byte id) {
+        this.id = id;
+    }
+
+    byte id() {
+        return id;
+    }
+
+    boolean isScoreBased() {
+        return this != SIZE;
+    }
+
+    static GroupRanking fromId(byte id) {
+        for (GroupRanking ranking : values()) {
+            if (ranking.id == id) {
+                return ranking;
+            }
+        }
+        throw new IllegalArgumentException("Unknown group ranking id: " + id);
+    }
+
+    public static GroupRanking fromString(String name) {
+        try {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown group ranking [" + name + "], expected one of: "
+                    + Arrays.toString(values()).toLowerCase(Locale.ROOT));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,66 @@
+package org.entitysearch.elasticsearch;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Where and how search results are grouped by their entity.
+ */
+public enum GroupingMode {
+    /**
+     * Group the returned hits on the coordinating node. Groups only cover
+     * the top <code>size</code> hits of the delegate search.
+     */
+    HITS((byte) 0),
+
+    /**
+     * Group with a <code>terms</code> aggregation computed on the shards. Group
+     * counts cover the full match set. The grouping field must be aggregatable
+     * (a <code>keyword</code> field with doc values).
+     */
+    AGGREGATION((byte) 1),
+
+    /**
+     * Group with the {@link EntityGroupsAggregationBuilder entity_groups}
+     * aggregation, which works on global ordinals of the grouping field and
+     * keeps the best documents of each group without a fetch phase. Groups
+     * are selected per shard, as with <code>terms</code>: a group left out
+     * by some shard's <code>shard_size</code> misses that shard's documents,
+     * bounded by <code>doc_count_error_upper_bound</code>. Hits are not
+     * returned unless the delegate search sets <code>size</code>.
+     */
+    ENTITY_GROUPS((byte) 2);
+
+    private final byte id;
+
+    GroupingMode(byte id) {
+        this.id = id;
+    }
+
+    byte id() {
+        return id;
+    }
+
+    static GroupingMode fromId(byte id) {
+        for (GroupingMode mode : values()) {
+            if (mode.id == id) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("Unknown grouping mode id: " + id);
+    }
+
+    public static GroupingMode fromString(String name) {
+        try {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown grouping mode [" + name + "], expected one of: "
+                    + Arrays.toString(values()).toLowerCase(Locale.ROOT));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,59 @@
+package org.entitysearch.elasticsearch;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * How much of the delegate search response is returned next to the clusters.
+ */
+public enum HitsMode {
+    /**
+     * The full search response, every hit with its <code>_source</code>.
+     */
+    FULL((byte) 0),
+
+    /**
+     * The response header and the index, type, id and score of each hit.
+     * Sources are not fetched.
+     */
+    IDS((byte) 1),
+
+    /**
+     * The response header and hit totals only. Sources are not fetched and,
+     * if grouping does not read hits, no hits are fetched at all.
+     */
+    NONE((byte) 2);
+
+    private final byte id;
+
+    HitsMode(byte id) {
+        this.id = id;
+    }
+
+    byte id() {
+        return id;
+    }
+
+    static HitsMode fromId(byte id) {
+        for (HitsMode mode : values()) {
+            if (mode.id == id) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("Unknown hits mode id: " + id);
+    }
+
+    public static HitsMode fromString(String name) {
+        try {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown hits mode [" + name + "], expected one of: "
+                    + Arrays.toString(values()).toLowerCase(Locale.ROOT));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
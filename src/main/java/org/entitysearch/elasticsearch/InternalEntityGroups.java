@@ -0,0 +1,397 @@
+package org.entitysearch.elasticsearch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.pipeline.PipelineAggregator;
+
+/**
+ * Result of the {@link EntityGroupsAggregationBuilder entity_groups}
+ * aggregation. Shard results are merged by key: counts and score sums add
+ * up, maximum scores and the best documents are kept. As with the
+ * <code>terms</code> aggregation, a group that ranked below
+ * <code>shard_size</code> on some shard is missing that shard's documents,
+ * so counts (and scores) may be too low and the ranking off. Each group
+ * carries an upper bound of its missing count, the sum of the bounds of the
+ * shards that left it out: the count of the shard's worst kept group under
+ * {@link GroupRanking#SIZE}, <code>-1</code> (unknown) under score rankings.
+ * Groups ranked at or before the <code>after</code> position (if any) are
+ * dropped by the reduce.
+ */
+public final class InternalEntityGroups extends InternalAggregation {
+    private final int size;
+    private final int topDocs;
+    private final GroupRanking ranking;
+    private final double afterValue;
+    private final String afterKey;
+    /** Upper bound of the count of any group missing from a shard, <code>-1</code> if unknown. */
+    private final long docCountError;
+    private final List<Group> groups;
+
+    InternalEntityGroups(String name, int size, int topDocs, GroupRanking ranking,
+                         double afterValue, String afterKey, long docCountError, List<Group> groups,
+                         List<PipelineAggregator> pipelineAggregators, Map<String, Object> metaData) {
+        super(name, pipelineAggregators, metaData);
+        this.size = size;
+        this.topDocs = topDocs;
+        this.ranking = ranking;
+        this.afterValue = afterValue;
+        this.afterKey = afterKey;
+        this.docCountError = docCountError;
+        this.groups = groups;
+    }
+
+    public InternalEntityGroups(StreamInput in) throws IOException {
+        super(in);
+        size = in.readVInt();
+        topDocs = in.readVInt();
+        ranking = GroupRanking.fromId(in.readByte());
+        groups = in.readList(Group::new);
+        afterKey = in.readOptionalString();
+        afterValue = in.readDouble();
+        docCountError = in.readLong();
+    }
+
+    @Override
+    protected void doWriteTo(StreamOutput out) throws IOException {
+        out.writeVInt(size);
+        out.writeVInt(topDocs);
+        out.writeByte(ranking.id());
+        out.writeList(groups);
+        out.writeOptionalString(afterKey);
+        out.writeDouble(afterValue);
+        out.writeLong(docCountError);
+    }
+
+    @Override
+    public String getWriteableName() {
+        return EntityGroupsAggregationBuilder.NAME;
+    }
+
+    /**
+     * @return Groups, best ranked first.
+     */
+    public List<Group> getGroups() {
+        return Collections.unmodifiableList(groups);
+    }
+
+    public GroupRanking getRanking() {
+        return ranking;
+    }
+
+    /**
+     * @return An upper bound of the documents any group may be missing,
+     * <code>-1</code> if unknown, 0 if counts are exact.
+     */
+    public long getDocCountError() {
+        return docCountError;
+    }
+
+    @Override
+    public InternalAggregation doReduce(List<InternalAggregation> aggregations, ReduceContext reduceContext) {
+        // A group's error is the sum of the errors of the aggregations that
+        // left it out, plus its own in those that did not: its own errors
+        // minus those of the aggregations it is in are accumulated here, and
+        // the sum of all aggregations' errors added at the end.
+        Map<String, Group> merged = new LinkedHashMap<>();
+        long sumDocCountError = 0;
+        for (InternalAggregation aggregation : aggregations) {
+            InternalEntityGroups entityGroups = (InternalEntityGroups) aggregation;
+            if (sumDocCountError != -1) {
+                sumDocCountError = entityGroups.docCountError == -1
+                        ? -1 : sumDocCountError + entityGroups.docCountError;
+            }
+            for (Group group : entityGroups.groups) {
+                group = group.withDocCountError(group.docCountError - entityGroups.docCountError);
+                Group existing = merged.get(group.key);
+                merged.put(group.key, existing == null ? group : existing.merge(group, topDocs));
+            }
+        }
+
+        List<Group> reduced = new ArrayList<>(merged.size());
+        for (Group group : merged.values()) {
+            group = group.withDocCountError(sumDocCountError == -1 ? -1 : group.docCountError + sumDocCountError);
+            if (afterKey == null || isAfter(rankValue(ranking, group.docCount, group.scoreSum, group.maxScore),
+                    group.key, afterValue, afterKey)) {
+                reduced.add(group);
+            }
+        }
+        reduced.sort(comparator(ranking));
+        if (reduced.size() > size) {
+            reduced = new ArrayList<>(reduced.subList(0, size));
+        }
+        return new InternalEntityGroups(name, size, topDocs, ranking, afterValue, afterKey, sumDocCountError,
+                reduced, pipelineAggregators(), getMetaData());
+    }
+
+    @Override
+    public Object getProperty(List<String> path) {
+        if (path.isEmpty()) {
+            return this;
+        }
+        throw new IllegalArgumentException("path not supported for [" + getName() + "]: " + path);
+    }
+
+    @Override
+    public XContentBuilder doXContentBody(XContentBuilder builder, Params params) throws IOException {
+        builder.field("doc_count_error_upper_bound", docCountError);
+        builder.startArray("buckets");
+        for (Group group : groups) {
+            group.toXContent(builder);
+        }
+        builder.endArray();
+        return builder;
+    }
+
+    protected boolean doEquals(Object obj) {
+        InternalEntityGroups other = (InternalEntityGroups) obj;
+        return size == other.size
+                && topDocs == other.topDocs
+                && ranking == other.ranking
+                && Double.compare(afterValue, other.afterValue) == 0
+                && Objects.equals(afterKey, other.afterKey)
+                && docCountError == other.docCountError
+                && groups.equals(other.groups);
+    }
+
+    protected int doHashCode() {
+        return Objects.hash(size, topDocs, ranking, afterValue, afterKey, docCountError, groups);
+    }
+
+    /**
+     * Compares group statistics under a ranking.
+     *
+     * @return A positive value if the first group ranks better, negative if
+     * the second one does, zero on ties.
+     */
+    static int compare(GroupRanking ranking,
+                       long count1, double scoreSum1, float maxScore1,
+                       long count2, double scoreSum2, float maxScore2) {
+        switch (ranking) {
+            case SIZE:
+                return Long.compare(count1, count2);
+            case SCORE_SUM:
+                return Double.compare(scoreSum1, scoreSum2);
+            case SCORE_MAX:
+                return Float.compare(maxScore1, maxScore2);
+            default:
+                throw Preconditions.unreachable();
+        }
+    }
+
+    /**
+     * @return The value a group is ranked by, as it is returned: its size,
+     * or its score (as a <code>float</code>).
+     */
+    static double rankValue(GroupRanking ranking, long count, double scoreSum, float maxScore) {
+        switch (ranking) {
+            case SIZE:
+                return count;
+            case SCORE_SUM:
+                return (float) scoreSum;
+            case SCORE_MAX:
+                return maxScore;
+            default:
+                throw Preconditions.unreachable();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if a group ranks strictly after the
+     * <code>after</code> position: a lower rank value, or the same value and
+     * a greater key.
+     */
+    static boolean isAfter(double value, String key, double afterValue, String afterKey) {
+        int cmp = Double.compare(value, afterValue);
+        return cmp != 0 ? cmp < 0 : key.compareTo(afterKey) > 0;
+    }
+
+    /**
+     * Orders groups by their rank value as it is returned, then key, the
+     * order {@link #isAfter} positions the <code>after</code> cursor in. Score
+     * sums that differ only beyond <code>float</code> precision tie.
+     */
+    private static Comparator<Group> comparator(GroupRanking ranking) {
+        return (a, b) -> {
+            int cmp = Double.compare(
+                    rankValue(ranking, b.docCount, b.scoreSum, b.maxScore),
+                    rankValue(ranking, a.docCount, a.scoreSum, a.maxScore));
+            return cmp != 0 ? cmp : a.key.compareTo(b.key);
+        };
+    }
+
+    /**
+     * A single entity group.
+     */
+    public static final class Group implements Writeable {
+        private final String key;
+        private final long docCount;
+        /** Upper bound of documents missing from {@link #docCount}, <code>-1</code> if unknown. */
+        private final long docCountError;
+        private final double scoreSum;
+        private final float maxScore;
+        /** Ids of the best documents, by descending score. */
+        private final List<String> ids;
+        private final float[] scores;
+
+        Group(String key, long docCount, long docCountError, double scoreSum, float maxScore,
+              List<String> ids, float[] scores) {
+            this.key = key;
+            this.docCount = docCount;
+            this.docCountError = docCountError;
+            this.scoreSum = scoreSum;
+            this.maxScore = maxScore;
+            this.ids = ids;
+            this.scores = scores;
+        }
+
+        Group(StreamInput in) throws IOException {
+            key = in.readString();
+            docCount = in.readVLong();
+            scoreSum = in.readDouble();
+            maxScore = in.readFloat();
+            int count = in.readVInt();
+            ids = new ArrayList<>(count);
+            scores = new float[count];
+            for (int i = 0; i < count; i++) {
+                ids.add(in.readString());
+                scores[i] = in.readFloat();
+            }
+            docCountError = in.readLong();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeString(key);
+            out.writeVLong(docCount);
+            out.writeDouble(scoreSum);
+            out.writeFloat(maxScore);
+            out.writeVInt(ids.size());
+            for (int i = 0; i < ids.size(); i++) {
+                out.writeString(ids.get(i));
+                out.writeFloat(scores[i]);
+            }
+            out.writeLong(docCountError);
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getDocCount() {
+            return docCount;
+        }
+
+        /**
+         * @return An upper bound of the documents missing from
+         * {@link #getDocCount()}, <code>-1</code> if unknown.
+         */
+        public long getDocCountError() {
+            return docCountError;
+        }
+
+        public double getScoreSum() {
+            return scoreSum;
+        }
+
+        /**
+         * @return The maximum score, {@link Float#NaN} if scores were not collected.
+         */
+        public float getMaxScore() {
+            return maxScore;
+        }
+
+        public List<String> getIds() {
+            return Collections.unmodifiableList(ids);
+        }
+
+        /**
+         * Merges the statistics of the same group from another shard, keeping
+         * the <code>topDocs</code> best documents of both.
+         */
+        Group merge(Group other, int topDocs) {
+            int total = Math.min(topDocs, ids.size() + other.ids.size());
+            List<String> mergedIds = new ArrayList<>(total);
+            float[] mergedScores = new float[total];
+            int i = 0;
+            int j = 0;
+            for (int k = 0; k < total; k++) {
+                if (j >= other.ids.size() || (i < ids.size() && scores[i] >= other.scores[j])) {
+                    mergedIds.add(ids.get(i));
+                    mergedScores[k] = scores[i++];
+                } else {
+                    mergedIds.add(other.ids.get(j));
+                    mergedScores[k] = other.scores[j++];
+                }
+            }
+
+            float mergedMax = Float.isNaN(maxScore) ? other.maxScore
+                    : Float.isNaN(other.maxScore) ? maxScore : Math.max(maxScore, other.maxScore);
+            return new Group(key, docCount + other.docCount, docCountError + other.docCountError,
+                    scoreSum + other.scoreSum, mergedMax, mergedIds, mergedScores);
+        }
+
+        Group withDocCountError(long docCountError) {
+            return new Group(key, docCount, docCountError, scoreSum, maxScore, ids, scores);
+        }
+
+        void toXContent(XContentBuilder builder) throws IOException {
+            builder.startObject();
+            builder.field("key", key);
+            builder.field("doc_count", docCount);
+            if (docCountError != 0) {
+                builder.field("doc_count_error_upper_bound", docCountError);
+            }
+            if (!Float.isNaN(maxScore)) {
+                builder.field("max_score", maxScore);
+                builder.field("score_sum", scoreSum);
+            }
+            if (!ids.isEmpty()) {
+                builder.startArray("docs");
+                for (int i = 0; i < ids.size(); i++) {
+                    builder.startObject()
+                            .field("_id", ids.get(i))
+                            .field("_score", scores[i])
+                            .endObject();
+                }
+                builder.endArray();
+            }
+            builder.endObject();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            Group other = (Group) obj;
+            return key.equals(other.key)
+                    && docCount == other.docCount
+                    && docCountError == other.docCountError
+                    && Double.compare(scoreSum, other.scoreSum) == 0
+                    && Float.compare(maxScore, other.maxScore) == 0
+                    && ids.equals(other.ids)
+                    && Arrays.equals(scores, other.scores);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(key, docCount, docCountError, scoreSum, maxScore, ids);
+        }
+    }
+}
@@ -0,0 +1,659 @@
+package org.entitysearch.elasticsearch;
+
+import static org.entitysearch.elasticsearch.LoggerUtils.emitErrorResponse;
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.TransportMultiSearchAction;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.HandledTransportAction;
+import org.elasticsearch.client.ElasticsearchClient;
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+import org.entitysearch.elasticsearch.ClusteringAction.ClusteringActionRequest;
+import org.entitysearch.elasticsearch.ClusteringAction.ClusteringActionResponse;
+
+/**
+ * Perform clustering of many entity queries in one round trip. All delegate
+ * searches are sent together as a single {@link MultiSearchRequest}.
+ */
+public class MultiClusteringAction
+        extends Action<MultiClusteringAction.MultiClusteringActionRequest,
+        MultiClusteringAction.MultiClusteringActionResponse,
+        MultiClusteringAction.MultiClusteringActionRequestBuilder> {
+    /* Action name. */
+    public static final String NAME = "clustering/mcluster";
+
+    /* Reusable singleton. */
+    public static final MultiClusteringAction INSTANCE = new MultiClusteringAction();
+
+    private MultiClusteringAction() {
+        super(NAME);
+    }
+
+    @Override
+    public MultiClusteringActionResponse newResponse() {
+        return new MultiClusteringActionResponse();
+    }
+
+    @Override
+    public MultiClusteringActionRequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new MultiClusteringActionRequestBuilder(client);
+    }
+
+    /**
+     * An {@link ActionRequest} for {@link MultiClusteringAction}.
+     */
+    public static class MultiClusteringActionRequest extends ActionRequest {
+        private List<ClusteringActionRequest> requests = new ArrayList<>();
+
+        /** The failure of each item that could not be parsed, <code>null</code> for the others. */
+        private List<Exception> failures = new ArrayList<>();
+        private int maxConcurrentSearchRequests = 0;
+
+        public MultiClusteringActionRequest add(ClusteringActionRequest request) {
+            requests.add(Preconditions.checkNotNull(request));
+            failures.add(null);
+            return this;
+        }
+
+        /**
+         * Adds an item that could not be parsed. It takes a position among
+         * the requests (with an empty placeholder request) and is answered
+         * with the failure.
+         */
+        MultiClusteringActionRequest addFailure(Exception failure) {
+            requests.add(new ClusteringActionRequest().setSearchRequest(new SearchRequest()));
+            failures.add(Preconditions.checkNotNull(failure));
+            return this;
+        }
+
+        /**
+         * @return The failure of the item at <code>index</code>, <code>null</code>
+         * if it holds a request.
+         */
+        Exception getFailure(int index) {
+            return failures.get(index);
+        }
+
+        public List<ClusteringActionRequest> requests() {
+            return Collections.unmodifiableList(requests);
+        }
+
+        /**
+         * Sets the maximum number of delegate searches executed concurrently.
+         * Zero (the default) leaves the choice to {@link MultiSearchRequest}.
+         */
+        public MultiClusteringActionRequest maxConcurrentSearchRequests(int maxConcurrentSearchRequests) {
+            if (maxConcurrentSearchRequests < 0) {
+                throw new IllegalArgumentException("max_concurrent_searches must not be negative: "
+                        + maxConcurrentSearchRequests);
+            }
+            this.maxConcurrentSearchRequests = maxConcurrentSearchRequests;
+            return this;
+        }
+
+        public int maxConcurrentSearchRequests() {
+            return maxConcurrentSearchRequests;
+        }
+
+        @Override
+        public ActionRequestValidationException validate() {
+            ActionRequestValidationException validationException = null;
+            if (requests.isEmpty()) {
+                validationException = addValidationError("No clustering requests added", validationException);
+            }
+
+            for (int i = 0; i < requests.size(); i++) {
+                if (failures.get(i) != null) {
+                    continue;
+                }
+                ActionRequestValidationException ex = requests.get(i).validate();
+                if (ex != null) {
+                    if (validationException == null) {
+                        validationException = new ActionRequestValidationException();
+                    }
+                    for (String error : ex.validationErrors()) {
+                        validationException.addValidationError("item [" + i + "]: " + error);
+                    }
+                }
+            }
+            return validationException;
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeVInt(maxConcurrentSearchRequests);
+            out.writeVInt(requests.size());
+            for (int i = 0; i < requests.size(); i++) {
+                out.writeBoolean(failures.get(i) != null);
+                if (failures.get(i) != null) {
+                    out.writeException(failures.get(i));
+                } else {
+                    requests.get(i).writeTo(out);
+                }
+            }
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            maxConcurrentSearchRequests = in.readVInt();
+            int size = in.readVInt();
+            requests = new ArrayList<>(size);
+            failures = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                if (in.readBoolean()) {
+                    addFailure(in.readException());
+                } else {
+                    ClusteringActionRequest request = new ClusteringActionRequest();
+                    request.readFrom(in);
+                    add(request);
+                }
+            }
+        }
+    }
+
+    /**
+     * An {@link ActionRequestBuilder} for {@link MultiClusteringAction}.
+     */
+    public static class MultiClusteringActionRequestBuilder
+            extends ActionRequestBuilder<MultiClusteringActionRequest,
+            MultiClusteringActionResponse,
+            MultiClusteringActionRequestBuilder> {
+
+        public MultiClusteringActionRequestBuilder(ElasticsearchClient client) {
+            super(client, MultiClusteringAction.INSTANCE, new MultiClusteringActionRequest());
+        }
+
+        public MultiClusteringActionRequestBuilder add(ClusteringActionRequest request) {
+            super.request.add(request);
+            return this;
+        }
+
+        public MultiClusteringActionRequestBuilder setMaxConcurrentSearchRequests(int maxConcurrentSearchRequests) {
+            super.request.maxConcurrentSearchRequests(maxConcurrentSearchRequests);
+            return this;
+        }
+    }
+
+    /**
+     * An {@link ActionResponse} for {@link MultiClusteringAction}. Items are in
+     * the order of requests; each holds either a response or a failure.
+     */
+    public static class MultiClusteringActionResponse extends ActionResponse implements ToXContent {
+        static final class Fields {
+            static final String RESPONSES = "responses";
+            static final String STATUS = "status";
+            static final String ERROR = "error";
+            static final String TYPE = "type";
+            static final String REASON = "reason";
+        }
+
+        /**
+         * A single item's outcome.
+         */
+        public static class Item {
+            private final ClusteringActionResponse response;
+            private final Exception failure;
+
+            Item(ClusteringActionResponse response, Exception failure) {
+                this.response = response;
+                this.failure = failure;
+            }
+
+            public boolean isFailure() {
+                return failure != null;
+            }
+
+            public ClusteringActionResponse getResponse() {
+                return response;
+            }
+
+            public Exception getFailure() {
+                return failure;
+            }
+        }
+
+        private Item[] items;
+
+        MultiClusteringActionResponse() {
+        }
+
+        MultiClusteringActionResponse(Item[] items) {
+            this.items = items;
+        }
+
+        public Item[] getItems() {
+            return items;
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startArray(Fields.RESPONSES);
+            for (Item item : items) {
+                builder.startObject();
+                if (item.isFailure()) {
+                    builder.startObject(Fields.ERROR);
+                    builder.field(Fields.TYPE, ElasticsearchException.getExceptionName(item.getFailure()));
+                    builder.field(Fields.REASON, item.getFailure().getMessage());
+                    builder.endObject();
+                    builder.field(Fields.STATUS, ExceptionsHelper.status(item.getFailure()).getStatus());
+                } else {
+                    item.getResponse().toXContent(builder, params);
+                    builder.field(Fields.STATUS, item.getResponse().getSearchResponse().status().getStatus());
+                }
+                builder.endObject();
+            }
+            builder.endArray();
+            return builder;
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeVInt(items.length);
+            for (Item item : items) {
+                out.writeBoolean(item.isFailure());
+                if (item.isFailure()) {
+                    out.writeException(item.getFailure());
+                } else {
+                    item.getResponse().writeTo(out);
+                }
+            }
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            items = new Item[in.readVInt()];
+            for (int i = 0; i < items.length; i++) {
+                if (in.readBoolean()) {
+                    items[i] = new Item(null, in.readException());
+                } else {
+                    ClusteringActionResponse response = new ClusteringActionResponse();
+                    response.readFrom(in);
+                    items[i] = new Item(response, null);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return ToString.objectToJson(this);
+        }
+    }
+
+    /**
+     * A {@link HandledTransportAction} for {@link MultiClusteringAction}.
+     */
+    public static class TransportMultiClusteringAction
+            extends HandledTransportAction<MultiClusteringActionRequest, MultiClusteringActionResponse> {
+        private final TransportMultiSearchAction multiSearchAction;
+        private final ClusteringStats stats;
+        private final ClusteringAdmission admission;
+        private final CircuitBreaker breaker;
+        private final boolean keyDocValues;
+        private final boolean approximate;
+        private final int shardSampleSize;
+
+        @Inject
+        public TransportMultiClusteringAction(Settings settings,
+                                              ThreadPool threadPool,
+                                              TransportService transportService,
+                                              TransportMultiSearchAction multiSearchAction,
+                                              ClusteringStats stats,
+                                              ClusteringAdmission admission,
+                                              CircuitBreakerService breakerService,
+                                              ActionFilters actionFilters,
+                                              IndexNameExpressionResolver indexNameExpressionResolver) {
+            super(settings,
+                  MultiClusteringAction.NAME,
+                  threadPool,
+                  transportService,
+                  actionFilters,
+                  indexNameExpressionResolver,
+                  MultiClusteringActionRequest::new);
+            this.multiSearchAction = multiSearchAction;
+            this.stats = stats;
+            this.admission = admission;
+            this.breaker = breakerService.getBreaker(CircuitBreaker.REQUEST);
+            this.keyDocValues = EntityGrouping.KEY_DOC_VALUES_SETTING.get(settings);
+            this.approximate = EntityGrouping.APPROXIMATE_SETTING.get(settings);
+            this.shardSampleSize = EntityGrouping.SHARD_SAMPLE_SIZE_SETTING.get(settings);
+        }
+
+        /**
+         * A multi request takes an admission slot per item; grouping memory
+         * is charged per item.
+         */
+        @Override
+        protected void doExecute(final MultiClusteringActionRequest request,
+                                 final ActionListener<MultiClusteringActionResponse> listener) {
+            admission.execute(threadPool.generic(), request.requests().size(), listener,
+                    admittedListener -> execute(request, admittedListener));
+        }
+
+        private void execute(final MultiClusteringActionRequest request,
+                             final ActionListener<MultiClusteringActionResponse> listener) {
+            final List<ClusteringActionRequest> requests = request.requests();
+            final MultiClusteringActionResponse.Item[] items = new MultiClusteringActionResponse.Item[requests.size()];
+
+            // Items which can't be part of the multi search fail individually.
+            final MultiSearchRequest multiSearchRequest = new MultiSearchRequest();
+            if (request.maxConcurrentSearchRequests() > 0) {
+                multiSearchRequest.maxConcurrentSearchRequests(request.maxConcurrentSearchRequests());
+            }
+            final List<Integer> slots = new ArrayList<>(requests.size());
+            for (int i = 0; i < requests.size(); i++) {
+                if (request.getFailure(i) != null) {
+                    items[i] = new MultiClusteringActionResponse.Item(null, request.getFailure(i));
+                    continue;
+                }
+                ClusteringActionRequest clusteringRequest = requests.get(i);
+                String unsupported = unsupportedOption(clusteringRequest);
+                if (unsupported != null) {
+                    items[i] = new MultiClusteringActionResponse.Item(null, new IllegalArgumentException(
+                            unsupported + " is not supported in " + RestMultiClusteringAction.NAME));
+                    continue;
+                }
+                if (clusteringRequest.getApproximate() == null
+                        && clusteringRequest.getGroupingMode() != GroupingMode.HITS) {
+                    clusteringRequest.setApproximate(approximate);
+                }
+                try {
+                    EntityGrouping.prepare(clusteringRequest, keyDocValues, shardSampleSize);
+                } catch (IllegalArgumentException e) {
+                    items[i] = new MultiClusteringActionResponse.Item(null, e);
+                    continue;
+                }
+                multiSearchRequest.add(clusteringRequest.getSearchRequest());
+                slots.add(i);
+            }
+
+            if (slots.isEmpty()) {
+                listener.onResponse(new MultiClusteringActionResponse(items));
+                return;
+            }
+
+            // Items are searched concurrently, so each one is attributed the whole search phase.
+            final long tsSearchStart = System.nanoTime();
+            multiSearchAction.execute(multiSearchRequest, new ActionListener<MultiSearchResponse>() {
+                @Override
+                public void onResponse(MultiSearchResponse multiSearchResponse) {
+                    final long searchNanos = System.nanoTime() - tsSearchStart;
+                    threadPool.executor(ClusteringPlugin.THREAD_POOL_NAME).execute(new AbstractRunnable() {
+                        @Override
+                        public void onFailure(Exception e) {
+                            listener.onFailure(e);
+                        }
+
+                        @Override
+                        protected void doRun() {
+                            listener.onResponse(group(requests, slots, items, multiSearchResponse, searchNanos));
+                        }
+                    });
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    listener.onFailure(e);
+                }
+            });
+        }
+
+        /**
+         * @return The name of an option of the single-request action the
+         * multi search cannot honour, <code>null</code> if there is none.
+         */
+        private static String unsupportedOption(ClusteringActionRequest clusteringRequest) {
+            if (clusteringRequest.isStreaming()) {
+                return "max_hits";
+            }
+            if (Boolean.TRUE.equals(clusteringRequest.getRequestCache())) {
+                return "request_cache";
+            }
+            if (clusteringRequest.isExplainPlan()) {
+                return "explain_plan";
+            }
+            return null;
+        }
+
+        /**
+         * Groups the responses of the multi search into the items at their slots.
+         */
+        private MultiClusteringActionResponse group(List<ClusteringActionRequest> requests, List<Integer> slots,
+                                                    MultiClusteringActionResponse.Item[] items,
+                                                    MultiSearchResponse multiSearchResponse, long searchNanos) {
+            MultiSearchResponse.Item[] responses = multiSearchResponse.getResponses();
+            for (int j = 0; j < responses.length; j++) {
+                int slot = slots.get(j);
+                if (responses[j].isFailure()) {
+                    items[slot] = new MultiClusteringActionResponse.Item(null, responses[j].getFailure());
+                    continue;
+                }
+                try {
+                    ClusteringActionRequest clusteringRequest = requests.get(slot);
+                    PhaseTook took = new PhaseTook(clusteringRequest.getTranslateNanos());
+                    took.searchNanos = searchNanos;
+                    final long tsGroupingStart = System.nanoTime();
+                    final EntityClusters clusters;
+                    final long reserved = admission.reserve(breaker,
+                            EntityGrouping.estimateBytes(responses[j].getResponse(), clusteringRequest));
+                    try {
+                        clusters = EntityGrouping.group(responses[j].getResponse(), clusteringRequest);
+                    } finally {
+                        ClusteringAdmission.release(breaker, reserved);
+                    }
+                    took.groupingNanos = System.nanoTime() - tsGroupingStart;
+                    stats.record(took);
+
+                    items[slot] = new MultiClusteringActionResponse.Item(new ClusteringActionResponse(
+                            responses[j].getResponse(), clusters, clusteringRequest.isPhaseTook() ? took : null,
+                            clusteringRequest.getHitsMode()), null);
+                } catch (Exception e) {
+                    items[slot] = new MultiClusteringActionResponse.Item(null, e);
+                }
+            }
+            return new MultiClusteringActionResponse(items);
+        }
+    }
+
+    /**
+     * An {@link BaseRestHandler} for {@link MultiClusteringAction}. The body is
+     * newline-delimited: an optional header line (<code>index</code>,
+     * <code>type</code>) followed by a <code>_search_with_clusters</code> body line
+     * per request. An empty body line fails its item; <code>{}</code> searches
+     * all documents.
+     */
+    public static class RestMultiClusteringAction extends BaseRestHandler {
+        /**
+         * Action name suffix.
+         */
+        public static String NAME = "_msearch_with_clusters";
+
+        private final EntityQueryCache queryCache;
+
+        RestMultiClusteringAction(
+                Settings settings,
+                RestController controller,
+                EntityQueryCache queryCache) {
+            super(settings);
+            this.queryCache = queryCache;
+
+            controller.registerHandler(POST, "/" + NAME, this);
+            controller.registerHandler(POST, "/{index}/" + NAME, this);
+            controller.registerHandler(POST, "/{index}/{type}/" + NAME, this);
+
+            controller.registerHandler(GET, "/" + NAME, this);
+            controller.registerHandler(GET, "/{index}/" + NAME, this);
+            controller.registerHandler(GET, "/{index}/{type}/" + NAME, this);
+        }
+
+        @Override
+        public RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
+            if (!request.hasContent()) {
+                return channel -> emitErrorResponse(channel, logger,
+                        new IllegalArgumentException("Request body was expected for " + NAME + "."));
+            }
+
+            final MultiClusteringActionRequest multiRequest = new MultiClusteringActionRequest();
+            if (request.hasParam("max_concurrent_searches")) {
+                multiRequest.maxConcurrentSearchRequests(request.paramAsInt("max_concurrent_searches", 0));
+            }
+            parseMultiLineRequest(request.content(),
+                    XContentFactory.xContent(request.getXContentType()),
+                    request.getXContentRegistry(),
+                    Strings.splitStringByCommaToArray(request.param("index")),
+                    Strings.splitStringByCommaToArray(request.param("type")),
+                    queryCache,
+                    multiRequest);
+
+            return channel -> client.execute(MultiClusteringAction.INSTANCE, multiRequest,
+                    new ActionListener<MultiClusteringActionResponse>() {
+                        @Override
+                        public void onResponse(MultiClusteringActionResponse response) {
+                            try {
+                                XContentBuilder builder = channel.newBuilder();
+                                builder.startObject();
+                                response.toXContent(builder, request);
+                                builder.endObject();
+                                channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+                            } catch (Exception e) {
+                                logger.debug("Failed to emit response.", e);
+                                onFailure(e);
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(Exception e) {
+                            emitErrorResponse(channel, logger, e);
+                        }
+                    });
+        }
+
+        /**
+         * Parses header and body line pairs into the requests of
+         * <code>multiRequest</code>, in order. An empty body line is added as
+         * a failed item rather than a search of all documents.
+         */
+        static void parseMultiLineRequest(BytesReference data,
+                                          XContent xContent,
+                                          NamedXContentRegistry xContentRegistry,
+                                          String[] defaultIndices,
+                                          String[] defaultTypes,
+                                          EntityQueryCache queryCache,
+                                          MultiClusteringActionRequest multiRequest) throws IOException {
+            final byte marker = xContent.streamSeparator();
+            int from = 0;
+            final int length = data.length();
+            while (true) {
+                int nextMarker = findNextMarker(marker, from, data, length);
+                if (nextMarker == -1) {
+                    break;
+                }
+
+                // Header line, may be empty.
+                String[] indices = defaultIndices;
+                String[] types = defaultTypes;
+                if (nextMarker - from > 0) {
+                    try (XContentParser parser = xContent.createParser(xContentRegistry, data.slice(from, nextMarker - from))) {
+                        Map<String, Object> header = parser.map();
+                        if (header.containsKey("index")) {
+                            indices = stringArray(header.get("index"));
+                        }
+                        if (header.containsKey("type")) {
+                            types = stringArray(header.get("type"));
+                        }
+                    }
+                }
+                from = nextMarker + 1;
+
+                nextMarker = findNextMarker(marker, from, data, length);
+                if (nextMarker == -1) {
+                    nextMarker = length;
+                }
+
+                if (nextMarker - from == 0) {
+                    multiRequest.addFailure(new IllegalArgumentException(
+                            "Empty request body line, use {} to search all documents."));
+                } else {
+                    SearchRequest searchRequest = new SearchRequest();
+                    searchRequest.indices(indices);
+                    searchRequest.types(types);
+                    ClusteringActionRequest clusteringRequest = new ClusteringActionRequest();
+                    clusteringRequest.setSearchRequest(searchRequest);
+                    clusteringRequest.source(data.slice(from, nextMarker - from), xContentRegistry, queryCache);
+                    multiRequest.add(clusteringRequest);
+                }
+
+                from = nextMarker + 1;
+                if (from >= length) {
+                    break;
+                }
+            }
+        }
+
+        private static String[] stringArray(Object value) {
+            if (value instanceof List) {
+                List<?> list = (List<?>) value;
+                String[] array = new String[list.size()];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = String.valueOf(list.get(i));
+                }
+                return array;
+            }
+            return Strings.splitStringByCommaToArray(String.valueOf(value));
+        }
+
+        private static int findNextMarker(byte marker, int from, BytesReference data, int length) {
+            for (int i = from; i < length; i++) {
+                if (data.get(i) == marker) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
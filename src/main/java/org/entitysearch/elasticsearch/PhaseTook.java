@@ -0,0 +1,63 @@
+package org.entitysearch.elasticsearch;
+
+import java.io.IOException;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * Time spent in each phase of a single clustering request. Filled in by
+ * the transport action as the request progresses.
+ */
+public final class PhaseTook implements Writeable, ToXContent {
+    static final String PHASE_TOOK = "phase_took";
+    static final String TRANSLATE = "translate_in_millis";
+    static final String SEARCH = "search_in_millis";
+    static final String GROUPING = "grouping_in_millis";
+
+    long translateNanos;
+    long searchNanos;
+    long groupingNanos;
+
+    PhaseTook(long translateNanos) {
+        this.translateNanos = translateNanos;
+    }
+
+    public PhaseTook(StreamInput in) throws IOException {
+        translateNanos = in.readVLong();
+        searchNanos = in.readVLong();
+        groupingNanos = in.readVLong();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVLong(translateNanos);
+        out.writeVLong(searchNanos);
+        out.writeVLong(groupingNanos);
+    }
+
+    public long getTranslateNanos() {
+        return translateNanos;
+    }
+
+    public long getSearchNanos() {
+        return searchNanos;
+    }
+
+    public long getGroupingNanos() {
+        return groupingNanos;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(PHASE_TOOK);
+        builder.field(TRANSLATE, translateNanos / 1e6);
+        builder.field(SEARCH, searchNanos / 1e6);
+        builder.field(GROUPING, groupingNanos / 1e6);
+        builder.endObject();
+        return builder;
+    }
+}
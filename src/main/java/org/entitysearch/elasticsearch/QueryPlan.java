@@ -0,0 +1,125 @@
+package org.entitysearch.elasticsearch;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.Term;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * The plan {@link EntityQueryPlanner} chose for an entity query: the document
+ * frequency of each clause in the target indices, the clause leading the
+ * conjunction and whether the search was skipped because a clause cannot
+ * match.
+ */
+public final class QueryPlan implements Writeable, ToXContent {
+    static final String PLAN = "plan";
+    static final String CLAUSES = "clauses";
+    static final String FIELD = "field";
+    static final String TERM = "term";
+    static final String DOC_FREQ = "doc_freq";
+    static final String LEAD = "lead";
+    static final String SHORT_CIRCUIT = "short_circuit";
+    static final String CACHED = "cached";
+    static final String TOOK = "took_in_millis";
+
+    private final Term[] terms;
+    private final long[] docFreqs;
+    private final boolean complete;
+    private final boolean cached;
+    private final long tookNanos;
+
+    /**
+     * @param complete <code>false</code> if statistics of some shards are missing.
+     */
+    QueryPlan(Term[] terms, long[] docFreqs, boolean complete, boolean cached, long tookNanos) {
+        assert terms.length == docFreqs.length;
+        this.terms = terms;
+        this.docFreqs = docFreqs;
+        this.complete = complete;
+        this.cached = cached;
+        this.tookNanos = tookNanos;
+    }
+
+    public QueryPlan(StreamInput in) throws IOException {
+        terms = new Term[in.readVInt()];
+        docFreqs = new long[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            terms[i] = new Term(in.readString(), in.readString());
+            docFreqs[i] = in.readVLong();
+        }
+        complete = in.readBoolean();
+        cached = in.readBoolean();
+        tookNanos = in.readVLong();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVInt(terms.length);
+        for (int i = 0; i < terms.length; i++) {
+            out.writeString(terms[i].field());
+            out.writeString(terms[i].text());
+            out.writeVLong(docFreqs[i]);
+        }
+        out.writeBoolean(complete);
+        out.writeBoolean(cached);
+        out.writeVLong(tookNanos);
+    }
+
+    /**
+     * @return The index of the rarest clause, which leads the conjunction of
+     * postings in every segment (clause order itself is positional and is
+     * left unchanged).
+     */
+    public int getLead() {
+        int lead = 0;
+        for (int i = 1; i < docFreqs.length; i++) {
+            if (docFreqs[i] < docFreqs[lead]) {
+                lead = i;
+            }
+        }
+        return lead;
+    }
+
+    /**
+     * @return <code>true</code> if a clause occurs in no document of any
+     * target shard, so the query cannot match.
+     */
+    public boolean isShortCircuit() {
+        return complete && docFreqs[getLead()] == 0;
+    }
+
+    /**
+     * @return <code>true</code> if statistics came from the planner's cache.
+     */
+    public boolean isCached() {
+        return cached;
+    }
+
+    public long getTookNanos() {
+        return tookNanos;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(PLAN);
+        builder.startArray(CLAUSES);
+        for (int i = 0; i < terms.length; i++) {
+            builder.startObject()
+                    .field(FIELD, terms[i].field())
+                    .field(TERM, terms[i].text())
+                    .field(DOC_FREQ, docFreqs[i])
+                    .endObject();
+        }
+        builder.endArray();
+        builder.field(LEAD, getLead());
+        builder.field(SHORT_CIRCUIT, isShortCircuit());
+        builder.field(CACHED, cached);
+        builder.field(TOOK, tookNanos / 1e6);
+        builder.endObject();
+        return builder;
+    }
+}
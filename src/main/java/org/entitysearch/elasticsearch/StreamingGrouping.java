@@ -0,0 +1,277 @@
+package org.entitysearch.elasticsearch;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.ClearScrollResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.action.search.TransportClearScrollAction;
+import org.elasticsearch.action.search.TransportSearchAction;
+import org.elasticsearch.action.search.TransportSearchScrollAction;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.aggregations.InternalAggregations;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.internal.InternalSearchResponse;
+import org.elasticsearch.search.internal.SearchContext;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.entitysearch.elasticsearch.ClusteringAction.ClusteringActionRequest;
+
+/**
+ * Pages through up to <code>maxHits</code> matches of the delegate search
+ * with a scroll sorted by <code>_doc</code>, folding each page into an
+ * {@link EntityGrouper} before the next one is fetched. Only the entity key
+ * and id of each hit are retained, so heap use does not depend on the size
+ * of pages seen so far.
+ *
+ * <p>The scroll runs on a copy of the delegate search. The returned search
+ * response holds the first page's header, hit total and aggregations, no
+ * scroll id and, if the caller sorted the search, its first
+ * <code>size</code> hits; without a sort, pages are in <code>_doc</code>
+ * order rather than by relevance and no hits are returned.
+ * <code>from</code> is not supported.
+ *
+ * <p>A scroll is used rather than <code>search_after</code> because
+ * <code>_doc</code> values are only unique within a shard.
+ *
+ * <p>Approximate requests set <code>terminate_after</code> to
+ * <code>max_hits</code> (unless the search sets its own), so each shard
+ * stops matching after the first <code>max_hits</code> matches in index
+ * order instead of counting all of them. The hit total is then the number
+ * of matches the shards collected and the response is
+ * <code>terminated_early</code>; group counts are scaled to that total.
+ */
+final class StreamingGrouping {
+    /**
+     * Number of hits fetched per page (at least the delegate search's own
+     * <code>size</code>).
+     */
+    static final Setting<Integer> PAGE_SIZE_SETTING =
+            Setting.intSetting("carrot2.stream.page_size", 1000, 1, Property.NodeScope);
+
+    /**
+     * How long the scroll context is kept alive between pages.
+     */
+    static final Setting<TimeValue> KEEP_ALIVE_SETTING =
+            Setting.timeSetting("carrot2.stream.keep_alive", TimeValue.timeValueMinutes(1), Property.NodeScope);
+
+    /** The number of hits a search without an explicit <code>size</code> returns. */
+    private static final int DEFAULT_SIZE = 10;
+
+    private final TransportSearchAction searchAction;
+    private final TransportSearchScrollAction scrollAction;
+    private final TransportClearScrollAction clearScrollAction;
+    private final Executor executor;
+    private final ClusteringAdmission admission;
+    private final CircuitBreaker breaker;
+    private final int defaultPageSize;
+    private final TimeValue keepAlive;
+
+    StreamingGrouping(TransportSearchAction searchAction,
+                      TransportSearchScrollAction scrollAction,
+                      TransportClearScrollAction clearScrollAction,
+                      Executor executor,
+                      ClusteringAdmission admission,
+                      CircuitBreaker breaker,
+                      int defaultPageSize,
+                      TimeValue keepAlive) {
+        this.searchAction = searchAction;
+        this.scrollAction = scrollAction;
+        this.clearScrollAction = clearScrollAction;
+        this.executor = executor;
+        this.admission = admission;
+        this.breaker = breaker;
+        this.defaultPageSize = defaultPageSize;
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Executes the delegate search and groups up to the request's
+     * <code>max_hits</code> matches. The listener receives the first page's
+     * response along with the clusters. Time spent fetching and grouping
+     * pages is added to <code>took</code>. Pages are grouped on
+     * <code>executor</code>, off the thread completing the search. Grouping memory is charged to the
+     * breaker page by page and released once the clusters are built.
+     */
+    void execute(ClusteringActionRequest request,
+                 PhaseTook took,
+                 ActionListener<ClusteringAction.ClusteringActionResponse> listener) {
+        SearchRequest original = request.getSearchRequest();
+        int maxHits = request.getMaxHits();
+        SearchSourceBuilder source = original.source() == null
+                ? new SearchSourceBuilder()
+                : original.source().copyWithNewSlice(original.source().slice());
+
+        int size = source.size() >= 0 ? source.size() : DEFAULT_SIZE;
+        boolean sorted = source.sorts() != null && !source.sorts().isEmpty();
+        int pageSize = Math.min(Math.max(size, defaultPageSize), maxHits);
+        source.size(pageSize);
+        if (!sorted) {
+            source.sort(SortBuilders.fieldSort("_doc"));
+        }
+        if (request.getGroupRanking().isScoreBased()) {
+            source.trackScores(true);
+        }
+        if (request.isApproximate() && source.terminateAfter() == SearchContext.DEFAULT_TERMINATE_AFTER) {
+            // No shard contributes more than max_hits to the stream.
+            source.terminateAfter(maxHits);
+        }
+
+        SearchRequest searchRequest = new SearchRequest(original.indices(), source)
+                .types(original.types())
+                .routing(original.routing())
+                .preference(original.preference())
+                .indicesOptions(original.indicesOptions())
+                .requestCache(original.requestCache())
+                .searchType(original.searchType())
+                .scroll(keepAlive);
+
+        searchAction.execute(searchRequest, new Pages(request, took, pageSize, sorted ? size : 0, listener));
+    }
+
+    /**
+     * Receives consecutive pages and requests the next one until done.
+     */
+    private final class Pages implements ActionListener<SearchResponse> {
+        private final ClusteringActionRequest request;
+        private final int maxHits;
+        private final ActionListener<ClusteringAction.ClusteringActionResponse> listener;
+        private final EntityGrouper grouper;
+        private final PhaseTook took;
+        private final long tsStart = System.nanoTime();
+
+        /** The number of first-page hits to return. */
+        private final int returnedHits;
+
+        /** The first page without its scroll id, trimmed to the returned hits. */
+        private SearchResponse firstPage;
+        private String scrollId;
+        private int seen;
+        private long reserved;
+
+        Pages(ClusteringActionRequest request, PhaseTook took, int pageSize, int returnedHits,
+              ActionListener<ClusteringAction.ClusteringActionResponse> listener) {
+            this.request = request;
+            this.returnedHits = returnedHits;
+            this.took = took;
+            this.maxHits = request.getMaxHits();
+            this.listener = listener;
+            this.grouper = new EntityGrouper(Math.min(pageSize, maxHits), request.getMaxDocsPerGroup());
+        }
+
+        @Override
+        public void onResponse(SearchResponse page) {
+            executor.execute(new AbstractRunnable() {
+                @Override
+                public void onFailure(Exception e) {
+                    Pages.this.onFailure(e);
+                }
+
+                @Override
+                protected void doRun() {
+                    onPage(page);
+                }
+            });
+        }
+
+        private void onPage(SearchResponse page) {
+            if (firstPage == null) {
+                firstPage = trim(page);
+            }
+            if (page.getScrollId() != null) {
+                scrollId = page.getScrollId();
+            }
+
+            SearchHit[] hits = page.getHits().getHits();
+            final long tsGroupingStart = System.nanoTime();
+            try {
+                int limit = Math.min(hits.length, maxHits - seen);
+                reserved += admission.reserve(breaker, EntityGrouping.estimateBytes(limit));
+                for (int i = 0; i < limit; i++) {
+                    grouper.add(EntityGrouping.entityKey(hits[i]), hits[i].getId(), hits[i].getScore());
+                }
+                seen += limit;
+            } catch (Exception e) {
+                onFailure(e);
+                return;
+            }
+            took.groupingNanos += System.nanoTime() - tsGroupingStart;
+
+            if (hits.length == 0 || seen >= maxHits || seen >= firstPage.getHits().getTotalHits()) {
+                clearScroll();
+
+                final long tsBuildStart = System.nanoTime();
+                EntityClusters clusters = ClustersCursor.page(
+                        grouper.build(request.getMaxGroups(), request.getGroupRanking(), request.getClustersAfter()),
+                        request);
+                clusters = EntityGrouping.estimate(clusters, request, seen, firstPage.getHits().getTotalHits());
+                releaseReserved();
+                final long tsEnd = System.nanoTime();
+                took.groupingNanos += tsEnd - tsBuildStart;
+                took.searchNanos = tsEnd - tsStart - took.groupingNanos;
+
+                listener.onResponse(new ClusteringAction.ClusteringActionResponse(firstPage, clusters,
+                        request.isPhaseTook() ? took : null, request.getHitsMode()));
+                return;
+            }
+
+            scrollAction.execute(new SearchScrollRequest(scrollId).scroll(keepAlive), this);
+        }
+
+        /**
+         * @return The page's header, hit total and aggregations, and its
+         * first {@link #returnedHits} hits.
+         */
+        private SearchResponse trim(SearchResponse page) {
+            SearchHits hits = page.getHits();
+            SearchHit[] kept = Arrays.copyOf(hits.getHits(), Math.min(returnedHits, hits.getHits().length));
+            InternalSearchResponse internalResponse = new InternalSearchResponse(
+                    new SearchHits(kept, hits.getTotalHits(), hits.getMaxScore()),
+                    (InternalAggregations) page.getAggregations(), page.getSuggest(), null,
+                    page.isTimedOut(), page.isTerminatedEarly(), page.getNumReducePhases());
+            return new SearchResponse(internalResponse, null, page.getTotalShards(), page.getSuccessfulShards(),
+                    page.getTookInMillis(), page.getShardFailures());
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+            clearScroll();
+            releaseReserved();
+            listener.onFailure(e);
+        }
+
+        private void releaseReserved() {
+            ClusteringAdmission.release(breaker, reserved);
+            reserved = 0;
+        }
+
+        private void clearScroll() {
+            if (scrollId == null) {
+                return;
+            }
+
+            ClearScrollRequest clearScrollRequest = new ClearScrollRequest();
+            clearScrollRequest.addScrollId(scrollId);
+            scrollId = null;
+            clearScrollAction.execute(clearScrollRequest, new ActionListener<ClearScrollResponse>() {
+                @Override
+                public void onResponse(ClearScrollResponse response) {
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    // The scroll context expires on its own.
+                }
+            });
+        }
+    }
+}
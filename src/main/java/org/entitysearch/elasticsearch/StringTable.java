@@ -0,0 +1,81 @@
+package org.entitysearch.elasticsearch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.carrotsearch.hppc.ObjectIntHashMap;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+/**
+ * A table of distinct strings written once, ahead of the values that refer
+ * to them, in the compact response format. Entity names, document ids,
+ * index names and node ids repeat across groups and hits; each occurrence
+ * after the table costs a single VInt.
+ *
+ * <p>The writer first {@link #add}s every string it is going to write, then
+ * writes the table and {@link #writeRef references}. The reader reads the
+ * table back with {@link #StringTable(StreamInput)} and resolves references
+ * in the same order. A reference is the string's ordinal plus one, zero
+ * stands for <code>null</code>.
+ */
+final class StringTable {
+    private final ObjectIntHashMap<String> ordinals;
+    private final List<String> strings;
+
+    StringTable() {
+        this.ordinals = new ObjectIntHashMap<>();
+        this.strings = new ArrayList<>();
+    }
+
+    StringTable(StreamInput in) throws IOException {
+        int size = in.readVInt();
+        this.ordinals = null;
+        this.strings = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            strings.add(in.readString());
+        }
+    }
+
+    /**
+     * Adds a string to the table, unless it is already there or <code>null</code>.
+     */
+    void add(String value) {
+        if (value != null && !ordinals.containsKey(value)) {
+            ordinals.put(value, strings.size());
+            strings.add(value);
+        }
+    }
+
+    void writeTo(StreamOutput out) throws IOException {
+        out.writeVInt(strings.size());
+        for (String value : strings) {
+            out.writeString(value);
+        }
+    }
+
+    /**
+     * Writes a reference to a string previously {@link #add}ed.
+     */
+    void writeRef(StreamOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeVInt(0);
+        } else {
+            assert ordinals.containsKey(value) : "Not in the table: " + value;
+            out.writeVInt(ordinals.get(value) + 1);
+        }
+    }
+
+    String readRef(StreamInput in) throws IOException {
+        int ref = in.readVInt();
+        if (ref == 0) {
+            return null;
+        }
+        if (ref > strings.size()) {
+            throw new IOException("String reference out of range: " + ref + " > " + strings.size());
+        }
+        return strings.get(ref - 1);
+    }
+}
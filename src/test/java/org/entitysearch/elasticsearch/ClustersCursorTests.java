@@ -0,0 +1,145 @@
+package org.entitysearch.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.test.ESTestCase;
+import org.entitysearch.elasticsearch.ClusteringAction.ClusteringActionRequest;
+import org.entitysearch.elasticsearch.EntityGrouperTests.Group;
+import org.entitysearch.elasticsearch.EntityGrouperTests.Hit;
+
+/**
+ * Pages through groups with <code>clusters_after</code> until the end and
+ * checks that the pages add up to the unpaged groups, none skipped or
+ * repeated.
+ */
+public class ClustersCursorTests extends ESTestCase {
+    public void testHitsPagesAddUpToAllGroups() {
+        for (int iteration = 0; iteration < 20; iteration++) {
+            List<Hit> hits = EntityGrouperTests.randomHits();
+            int maxDocsPerGroup = randomBoolean() ? Integer.MAX_VALUE : randomIntBetween(1, 5);
+            for (GroupRanking ranking : GroupRanking.values()) {
+                EntityGrouper grouper = EntityGrouperTests.grouper(hits, maxDocsPerGroup);
+                List<Group> expected = EntityGrouperTests.expected(hits, maxDocsPerGroup, ranking, Integer.MAX_VALUE);
+
+                ClusteringActionRequest request = new ClusteringActionRequest()
+                        .setSearchRequest(new SearchRequest())
+                        .setGroupRanking(ranking);
+                int offset = 0;
+                for (int page = 0; page <= expected.size(); page++) {
+                    int pageSize = randomIntBetween(1, 10);
+                    request.setMaxGroups(pageSize);
+                    ClustersCursor.bind(request);
+                    EntityClusters clusters = ClustersCursor.page(
+                            grouper.build(pageSize, ranking, request.getClustersAfter()), request);
+
+                    int end = Math.min(offset + pageSize, expected.size());
+                    EntityGrouperTests.assertClusters(expected.subList(offset, end), clusters, ranking);
+                    offset = end;
+                    if (clusters.getNextAfter() == null) {
+                        break;
+                    }
+                    request.setClustersAfter(clusters.getNextAfter());
+                }
+                assertEquals(ranking.toString(), expected.size(), offset);
+            }
+        }
+    }
+
+    public void testReducedPagesAddUpToAllGroups() {
+        for (int iteration = 0; iteration < 20; iteration++) {
+            int shards = randomIntBetween(1, 4);
+            int topDocs = randomIntBetween(0, 3);
+            List<List<Hit>> shardHits = new ArrayList<>();
+            for (int shard = 0; shard < shards; shard++) {
+                List<Hit> hits = new ArrayList<>();
+                for (Hit hit : EntityGrouperTests.randomHits()) {
+                    // Entity groups always have a key and every match is scored.
+                    hits.add(new Hit(hit.key == null ? "k" : hit.key, shard + "_" + hit.id,
+                            Float.isNaN(hit.score) ? 0f : hit.score));
+                }
+                shardHits.add(hits);
+            }
+
+            for (GroupRanking ranking : GroupRanking.values()) {
+                List<InternalEntityGroups.Group> expected =
+                        reduce(shardHits, topDocs, ranking, Integer.MAX_VALUE, Double.NaN, null).getGroups();
+
+                List<InternalEntityGroups.Group> paged = new ArrayList<>();
+                double afterValue = Double.NaN;
+                String afterKey = null;
+                for (int page = 0; page <= expected.size(); page++) {
+                    int pageSize = randomIntBetween(1, 10);
+                    List<InternalEntityGroups.Group> groups =
+                            reduce(shardHits, topDocs, ranking, pageSize, afterValue, afterKey).getGroups();
+                    paged.addAll(groups);
+                    if (groups.size() < pageSize) {
+                        break;
+                    }
+                    InternalEntityGroups.Group last = groups.get(groups.size() - 1);
+                    afterValue = InternalEntityGroups.rankValue(ranking,
+                            last.getDocCount(), last.getScoreSum(), last.getMaxScore());
+                    afterKey = last.getKey();
+                }
+                assertEquals(ranking.toString(), keys(expected), keys(paged));
+                assertEquals(ranking.toString(), expected, paged);
+            }
+        }
+    }
+
+    /**
+     * @return The reduce of one complete <code>entity_groups</code> result per shard.
+     */
+    private static InternalEntityGroups reduce(List<List<Hit>> shardHits, int topDocs, GroupRanking ranking,
+                                               int size, double afterValue, String afterKey) {
+        List<InternalAggregation> aggregations = new ArrayList<>();
+        for (List<Hit> hits : shardHits) {
+            aggregations.add(new InternalEntityGroups("groups", size, topDocs, ranking, afterValue, afterKey, 0,
+                    shardGroups(hits, topDocs), Collections.emptyList(), null));
+        }
+        return (InternalEntityGroups) aggregations.get(0).doReduce(aggregations, null);
+    }
+
+    private static List<InternalEntityGroups.Group> shardGroups(List<Hit> hits, int topDocs) {
+        Map<String, List<Hit>> byKey = new TreeMap<>();
+        for (Hit hit : hits) {
+            byKey.computeIfAbsent(hit.key, key -> new ArrayList<>()).add(hit);
+        }
+
+        List<InternalEntityGroups.Group> groups = new ArrayList<>();
+        for (Map.Entry<String, List<Hit>> entry : byKey.entrySet()) {
+            double scoreSum = 0;
+            float maxScore = Float.NEGATIVE_INFINITY;
+            for (Hit hit : entry.getValue()) {
+                scoreSum += hit.score;
+                maxScore = Math.max(maxScore, hit.score);
+            }
+
+            List<Hit> best = new ArrayList<>(entry.getValue());
+            best.sort((a, b) -> Float.compare(b.score, a.score));
+            best = best.subList(0, Math.min(topDocs, best.size()));
+            List<String> ids = new ArrayList<>();
+            float[] scores = new float[best.size()];
+            for (int i = 0; i < best.size(); i++) {
+                ids.add(best.get(i).id);
+                scores[i] = best.get(i).score;
+            }
+            groups.add(new InternalEntityGroups.Group(entry.getKey(), entry.getValue().size(), 0,
+                    scoreSum, maxScore, ids, scores));
+        }
+        return groups;
+    }
+
+    private static List<String> keys(List<InternalEntityGroups.Group> groups) {
+        List<String> keys = new ArrayList<>();
+        for (InternalEntityGroups.Group group : groups) {
+            keys.add(group.getKey());
+        }
+        return keys;
+    }
+}
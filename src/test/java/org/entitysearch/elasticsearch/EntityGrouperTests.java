@@ -0,0 +1,183 @@
+package org.entitysearch.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.test.ESTestCase;
+
+/**
+ * Checks {@link EntityGrouper} against a plain map of lists sorted with a
+ * comparator, on random hits with colliding sizes and scores.
+ */
+public class EntityGrouperTests extends ESTestCase {
+    public void testAllGroupsBySize() {
+        for (int iteration = 0; iteration < 20; iteration++) {
+            List<Hit> hits = randomHits();
+            EntityGrouper grouper = grouper(hits, Integer.MAX_VALUE);
+            assertClusters(expected(hits, Integer.MAX_VALUE, GroupRanking.SIZE, Integer.MAX_VALUE), grouper.build(),
+                    GroupRanking.SIZE);
+        }
+    }
+
+    public void testEveryRankingAndMaxGroups() {
+        for (int iteration = 0; iteration < 50; iteration++) {
+            List<Hit> hits = randomHits();
+            int maxDocsPerGroup = randomBoolean() ? Integer.MAX_VALUE : randomIntBetween(1, 5);
+            int maxGroups = randomFrom(Integer.MAX_VALUE, randomIntBetween(1, 30));
+            for (GroupRanking ranking : GroupRanking.values()) {
+                EntityGrouper grouper = grouper(hits, maxDocsPerGroup);
+                assertClusters(expected(hits, maxDocsPerGroup, ranking, maxGroups),
+                        grouper.build(maxGroups, ranking), ranking);
+            }
+        }
+    }
+
+    public void testGroupCountAndHitCount() {
+        List<Hit> hits = randomHits();
+        int maxDocsPerGroup = randomIntBetween(1, 5);
+        EntityGrouper grouper = grouper(hits, maxDocsPerGroup);
+
+        List<Group> expected = expected(hits, maxDocsPerGroup, GroupRanking.SIZE, Integer.MAX_VALUE);
+        int stored = 0;
+        for (Group group : expected) {
+            stored += group.ids.size();
+        }
+        assertEquals(expected.size(), grouper.groupCount());
+        assertEquals(stored, grouper.hitCount());
+    }
+
+    public void testUnscoredHits() {
+        EntityGrouper grouper = new EntityGrouper(0);
+        grouper.add("a", "1");
+        grouper.add("a", "2");
+        grouper.add("b", "3", 2f);
+
+        EntityClusters clusters = grouper.build(Integer.MAX_VALUE, GroupRanking.SCORE_MAX);
+        assertEquals("b", clusters.getName(0));
+        assertEquals(2f, clusters.getScore(0), 0f);
+        assertEquals("a", clusters.getName(1));
+        assertEquals(0f, clusters.getScore(1), 0f);
+
+        clusters = grouper.build(Integer.MAX_VALUE, GroupRanking.SCORE_SUM);
+        assertEquals("b", clusters.getName(0));
+        assertEquals(0f, clusters.getScore(1), 0f);
+    }
+
+    /**
+     * @return Hits over few keys (including <code>null</code>) and few
+     * distinct scores, some of them unscored, so that sizes and scores tie.
+     */
+    static List<Hit> randomHits() {
+        int keys = randomIntBetween(1, 40);
+        int count = randomIntBetween(0, 500);
+        List<Hit> hits = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int key = randomInt(keys);
+            float score = rarely() ? Float.NaN : randomFrom(0f, 0.1f, 0.2f, 0.3f, 1f, 2.5f);
+            hits.add(new Hit(key == keys ? null : "k" + key, "d" + i, score));
+        }
+        return hits;
+    }
+
+    static EntityGrouper grouper(List<Hit> hits, int maxDocsPerGroup) {
+        EntityGrouper grouper = new EntityGrouper(randomIntBetween(0, hits.size()), maxDocsPerGroup);
+        for (Hit hit : hits) {
+            grouper.add(hit.key, hit.id, hit.score);
+        }
+        return grouper;
+    }
+
+    /**
+     * @return The best <code>maxGroups</code> groups, computed naively.
+     */
+    static List<Group> expected(List<Hit> hits, int maxDocsPerGroup, GroupRanking ranking, int maxGroups) {
+        Map<String, Group> groups = new HashMap<>();
+        for (Hit hit : hits) {
+            Group group = groups.computeIfAbsent(hit.key, Group::new);
+            group.count++;
+            if (group.ids.size() < maxDocsPerGroup) {
+                group.ids.add(hit.id);
+            }
+            if (!Float.isNaN(hit.score)) {
+                group.scoreSum += hit.score;
+                group.scoreMax = Math.max(group.scoreMax, hit.score);
+            }
+        }
+
+        List<Group> sorted = new ArrayList<>(groups.values());
+        sorted.sort((a, b) -> {
+            int cmp;
+            switch (ranking) {
+                case SIZE:
+                    cmp = Integer.compare(b.count, a.count);
+                    break;
+                case SCORE_SUM:
+                    cmp = Double.compare(b.scoreSum, a.scoreSum);
+                    break;
+                case SCORE_MAX:
+                    cmp = Float.compare(b.scoreMax, a.scoreMax);
+                    break;
+                default:
+                    throw new AssertionError(ranking);
+            }
+            if (cmp != 0) {
+                return cmp;
+            }
+            if (a.key == null || b.key == null) {
+                return a.key == null ? (b.key == null ? 0 : -1) : 1;
+            }
+            return a.key.compareTo(b.key);
+        });
+        return sorted.subList(0, Math.min(maxGroups, sorted.size()));
+    }
+
+    static void assertClusters(List<Group> expected, EntityClusters actual, GroupRanking ranking) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Group group = expected.get(i);
+            String message = "group " + i + " [" + group.key + "]";
+            assertEquals(message, group.key, actual.getName(i));
+            assertEquals(message, group.count, actual.getDocCount(i));
+            assertEquals(message, group.ids, actual.getDocumentIds(i));
+            switch (ranking) {
+                case SIZE:
+                    assertTrue(message, Float.isNaN(actual.getScore(i)));
+                    break;
+                case SCORE_SUM:
+                    assertEquals(message, (float) group.scoreSum, actual.getScore(i), 0f);
+                    break;
+                case SCORE_MAX:
+                    assertEquals(message, Math.max(0f, group.scoreMax), actual.getScore(i), 0f);
+                    break;
+                default:
+                    throw new AssertionError(ranking);
+            }
+        }
+    }
+
+    static final class Hit {
+        final String key;
+        final String id;
+        final float score;
+
+        Hit(String key, String id, float score) {
+            this.key = key;
+            this.id = id;
+            this.score = score;
+        }
+    }
+
+    static final class Group {
+        final String key;
+        final List<String> ids = new ArrayList<>();
+        int count;
+        double scoreSum;
+        float scoreMax = Float.NEGATIVE_INFINITY;
+
+        Group(String key) {
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package org.entitysearch.elasticsearch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.analysis.MockTokenizer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.RandomIndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.spans.FieldMaskingSpanQuery;
+import org.apache.lucene.search.spans.SpanNearQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.store.Directory;
+import org.elasticsearch.test.ESTestCase;
+
+/**
+ * Checks that {@link EntityNearQuery} matches the same documents as the
+ * <code>span_near</code> (in order) over <code>span_term</code> and
+ * <code>field_masking_span</code> clauses it replaces, on random documents
+ * with aligned text and entity fields.
+ */
+public class EntityNearQueryTests extends ESTestCase {
+    private static final String[] WORDS = {"a", "b", "c", "d", "e"};
+    private static final String[] ENTITIES = {"person", "city"};
+
+    public void testMatchesSpanNear() throws IOException {
+        MockAnalyzer analyzer = new MockAnalyzer(random(), MockTokenizer.WHITESPACE, false);
+        try (Directory directory = newDirectory()) {
+            IndexReader reader;
+            try (RandomIndexWriter writer = new RandomIndexWriter(random(), directory, analyzer)) {
+                int docs = randomIntBetween(1, 200);
+                for (int i = 0; i < docs; i++) {
+                    writer.addDocument(randomDocument());
+                }
+                reader = writer.getReader();
+            }
+
+            try {
+                IndexSearcher searcher = newSearcher(reader);
+                for (int i = 0; i < 100; i++) {
+                    String query = randomQuery();
+                    boolean beginFields = randomBoolean();
+                    assertEquals(query + " (begin fields: " + beginFields + ")",
+                            matches(searcher, spanNear(query, beginFields)),
+                            matches(searcher, new EntityNearQuery(EntityQueryTranslator.terms(query, beginFields),
+                                    EntityQueryTranslator.TEXT_FIELD, EntityQueryTranslator.SLOP)));
+                }
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * @return A document whose entity fields hold the placeholder at some of
+     * the text's positions, as {@link EntityAnnotateProcessor} produces them.
+     */
+    private static Document randomDocument() {
+        int length = randomIntBetween(1, 30);
+        StringBuilder text = new StringBuilder();
+        Document document = new Document();
+        List<StringBuilder> masked = new ArrayList<>();
+        for (int e = 0; e < ENTITIES.length * 2; e++) {
+            masked.add(new StringBuilder());
+        }
+        for (int position = 0; position < length; position++) {
+            String word = randomFrom(WORDS);
+            text.append(word).append(' ');
+            for (int e = 0; e < ENTITIES.length; e++) {
+                boolean mention = rarely() || randomInt(4) == 0;
+                boolean begin = mention && randomBoolean();
+                masked.get(2 * e).append(mention ? EntityQueryTranslator.ENTITY_PLACEHOLDER : word).append(' ');
+                masked.get(2 * e + 1).append(begin ? EntityQueryTranslator.ENTITY_PLACEHOLDER : word).append(' ');
+            }
+        }
+        document.add(new TextField(EntityQueryTranslator.TEXT_FIELD, text.toString(), Field.Store.NO));
+        for (int e = 0; e < ENTITIES.length; e++) {
+            document.add(new TextField(ENTITIES[e], masked.get(2 * e).toString(), Field.Store.NO));
+            document.add(new TextField(ENTITIES[e] + EntityQueryTranslator.BEGIN_SUFFIX,
+                    masked.get(2 * e + 1).toString(), Field.Store.NO));
+        }
+        return document;
+    }
+
+    private static String randomQuery() {
+        int tokens = randomIntBetween(1, 4);
+        StringBuilder query = new StringBuilder();
+        for (int i = 0; i < tokens; i++) {
+            if (i > 0) {
+                query.append(' ');
+            }
+            if (randomInt(2) == 0) {
+                query.append(EntityQueryTranslator.ENTITY_PREFIX).append(randomFrom(ENTITIES));
+            } else {
+                query.append(randomFrom(WORDS));
+            }
+        }
+        return query.toString();
+    }
+
+    /**
+     * @return The Lucene query {@link EntityQueryTranslator#translateSpans}
+     * builds.
+     */
+    private static Query spanNear(String query, boolean beginFields) {
+        Term[] terms = EntityQueryTranslator.terms(query, beginFields);
+        SpanQuery[] clauses = new SpanQuery[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            SpanQuery clause = new SpanTermQuery(terms[i]);
+            clauses[i] = terms[i].field().equals(EntityQueryTranslator.TEXT_FIELD)
+                    ? clause
+                    : new FieldMaskingSpanQuery(clause, EntityQueryTranslator.TEXT_FIELD);
+        }
+        return new SpanNearQuery(clauses, EntityQueryTranslator.SLOP, true);
+    }
+
+    private static Set<Integer> matches(IndexSearcher searcher, Query query) throws IOException {
+        Set<Integer> docs = new TreeSet<>();
+        for (ScoreDoc scoreDoc : searcher.search(query, searcher.getIndexReader().maxDoc()).scoreDocs) {
+            docs.add(scoreDoc.doc);
+        }
+        return docs;
+    }
+}
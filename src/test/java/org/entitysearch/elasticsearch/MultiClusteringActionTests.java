@@ -0,0 +1,115 @@
+package org.entitysearch.elasticsearch;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.test.ESTestCase;
+import org.entitysearch.elasticsearch.ClusteringAction.ClusteringActionRequest;
+import org.entitysearch.elasticsearch.MultiClusteringAction.MultiClusteringActionRequest;
+import org.entitysearch.elasticsearch.MultiClusteringAction.RestMultiClusteringAction;
+
+/**
+ * Checks how <code>_msearch_with_clusters</code> bodies are split into items.
+ */
+public class MultiClusteringActionTests extends ESTestCase {
+    private static final String[] DEFAULT_INDICES = {"default"};
+    private static final String[] DEFAULT_TYPES = {};
+
+    public void testHeaderBodyPairing() throws IOException {
+        MultiClusteringActionRequest request = parse(
+                "{\"index\":\"a\"}\n"
+                + "{\"search_request\":{\"query\":\"#person born\"}}\n"
+                + "\n"
+                + "{\"grouping\":\"aggregation\"}\n"
+                + "{\"index\":[\"b\",\"c\"],\"type\":\"t\"}\n"
+                + "{\"search_request\":{\"query\":\"#city\",\"type\":\"d_document\"}}\n");
+
+        assertEquals(3, request.requests().size());
+
+        ClusteringActionRequest first = request.requests().get(0);
+        assertNull(request.getFailure(0));
+        assertArrayEquals(new String[] {"a"}, first.getSearchRequest().indices());
+        assertEquals("#person born", first.getEntityQuery());
+
+        ClusteringActionRequest second = request.requests().get(1);
+        assertNull(request.getFailure(1));
+        assertArrayEquals(DEFAULT_INDICES, second.getSearchRequest().indices());
+        assertEquals(GroupingMode.AGGREGATION, second.getGroupingMode());
+        assertNull(second.getEntityQuery());
+
+        ClusteringActionRequest third = request.requests().get(2);
+        assertNull(request.getFailure(2));
+        assertArrayEquals(new String[] {"b", "c"}, third.getSearchRequest().indices());
+        assertArrayEquals(new String[] {"t"}, third.getSearchRequest().types());
+        assertEquals("#city", third.getEntityQuery());
+    }
+
+    public void testLastBodyWithoutNewline() throws IOException {
+        MultiClusteringActionRequest request = parse("\n{\"grouping\":\"entity_groups\"}");
+        assertEquals(1, request.requests().size());
+        assertNull(request.getFailure(0));
+        assertEquals(GroupingMode.ENTITY_GROUPS, request.requests().get(0).getGroupingMode());
+    }
+
+    public void testEmptyBodyLineFailsItsItemOnly() throws IOException {
+        MultiClusteringActionRequest request = parse(
+                "{\"index\":\"a\"}\n"
+                + "{}\n"
+                + "{\"index\":\"b\"}\n"
+                + "\n"
+                + "{\"index\":\"c\"}\n"
+                + "{\"grouping\":\"aggregation\"}\n"
+                + "{\"index\":\"d\"}\n");
+
+        assertEquals(4, request.requests().size());
+        assertNull(request.getFailure(0));
+        assertNull(request.requests().get(0).getSearchRequest().source());
+        assertTrue(request.getFailure(1) instanceof IllegalArgumentException);
+        assertNull(request.getFailure(2));
+        assertArrayEquals(new String[] {"c"}, request.requests().get(2).getSearchRequest().indices());
+        assertTrue(request.getFailure(3) instanceof IllegalArgumentException);
+
+        // Failed items do not take part in validation.
+        assertNull(request.validate());
+    }
+
+    public void testFailuresKeepTheirPositionOnTheWire() throws IOException {
+        StringBuilder body = new StringBuilder();
+        int items = randomIntBetween(1, 20);
+        boolean[] failed = new boolean[items];
+        for (int i = 0; i < items; i++) {
+            failed[i] = randomBoolean();
+            body.append("{\"index\":\"i").append(i).append("\"}\n");
+            body.append(failed[i] ? "" : "{}").append('\n');
+        }
+
+        MultiClusteringActionRequest request = parse(body.toString());
+        BytesStreamOutput out = new BytesStreamOutput();
+        request.writeTo(out);
+        MultiClusteringActionRequest read = new MultiClusteringActionRequest();
+        try (StreamInput in = out.bytes().streamInput()) {
+            read.readFrom(in);
+        }
+
+        assertEquals(items, read.requests().size());
+        for (int i = 0; i < items; i++) {
+            assertEquals("item " + i, failed[i], read.getFailure(i) != null);
+            if (!failed[i]) {
+                assertArrayEquals(new String[] {"i" + i}, read.requests().get(i).getSearchRequest().indices());
+            }
+        }
+    }
+
+    private static MultiClusteringActionRequest parse(String body) throws IOException {
+        MultiClusteringActionRequest request = new MultiClusteringActionRequest();
+        RestMultiClusteringAction.parseMultiLineRequest(new BytesArray(body.getBytes(StandardCharsets.UTF_8)),
+                XContentType.JSON.xContent(), NamedXContentRegistry.EMPTY, DEFAULT_INDICES, DEFAULT_TYPES,
+                null, request);
+        return request;
+    }
+}